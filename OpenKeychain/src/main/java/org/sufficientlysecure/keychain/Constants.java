@@ -96,6 +96,7 @@ public final class Constants {
         public static final String PASSPHRASE_CACHE_TTLS = "passphraseCacheTtls";
         public static final String PASSPHRASE_CACHE_DEFAULT = "passphraseCacheDefault";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String PASSPHRASE_CACHE_UNLOCKED_KEYS = "passphraseCacheUnlockedKeys";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_DEFAULT_VERSION = "keyServersDefaultVersion";
@@ -103,6 +104,7 @@ public final class Constants {
         public static final String CACHED_CONSOLIDATE = "cachedConsolidate";
         public static final String SEARCH_KEYSERVER = "search_keyserver_pref";
         public static final String SEARCH_KEYBASE = "search_keybase_pref";
+        public static final String KEYSERVER_MAX_KEY_SIZE = "keyserverMaxKeySize";
         public static final String USE_NUMKEYPAD_FOR_SECURITY_TOKEN_PIN = "useNumKeypadForYubikeyPin";
         public static final String ENCRYPT_FILENAMES = "encryptFilenames";
         public static final String FILE_USE_COMPRESSION = "useFileCompression";
@@ -123,6 +125,11 @@ public final class Constants {
         public static final String EXPERIMENTAL_ENABLE_WORD_CONFIRM = "experimentalEnableWordConfirm";
         public static final String EXPERIMENTAL_ENABLE_LINKED_IDENTITIES = "experimentalEnableLinkedIdentities";
         public static final String EXPERIMENTAL_ENABLE_KEYBASE = "experimentalEnableKeybase";
+        public static final String EXPERIMENTAL_PREGENERATE_KEYS = "experimentalPregenerateKeys";
+        // s2k calibration
+        public static final String S2K_UNLOCK_BUDGET = "s2kUnlockBudget";
+        public static final String S2K_CALIBRATION_HASH_RATE = "s2kCalibrationHashRate";
+        public static final String S2K_CALIBRATION_VERSION = "s2kCalibrationVersion";
 
         public static final class Theme {
             public static final String LIGHT = "light";
@@ -148,6 +155,7 @@ public final class Constants {
     public static final class Defaults {
         public static final String KEY_SERVERS = "hkps://hkps.pool.sks-keyservers.net, hkps://pgp.mit.edu";
         public static final int PREF_VERSION = 6;
+        public static final int S2K_UNLOCK_BUDGET_MILLIS = 100;
     }
 
     public static final class key {
@@ -37,6 +37,7 @@ import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.util.ContactHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -161,6 +162,7 @@ public class KeychainApplication extends Application {
 
         if (level >= TRIM_MEMORY_UI_HIDDEN) {
             qrCodeCache.clear();
+            ContactHelper.clearPhotoCache();
         }
     }
 
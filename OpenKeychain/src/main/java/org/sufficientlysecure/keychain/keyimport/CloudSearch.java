@@ -23,20 +23,71 @@ import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.os.Parcel;
 import android.support.annotation.NonNull;
 
 /**
  * Search two or more types of server for online keys.
+ *
+ * Searches run on a shared pool of threads. Their results are cached for a few minutes per
+ * server and query, and concurrent searches for the same query on the same server are
+ * coalesced into a single request.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    private static final long CACHE_TTL = 5 * 60 * SECONDS;
+    private static final int MAX_CACHE_ENTRIES = 32;
+    private static final int MAX_THREADS = 6;
+
+    private static final ThreadPoolExecutor sSearchExecutor;
+    static {
+        sSearchExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        sSearchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // searches by server and normalized query, both in flight and finished. access ordered, so
+    // the least recently used ones are dropped first
+    private static final LinkedHashMap<String, SearchTask> sSearches =
+            new LinkedHashMap<String, SearchTask>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SearchTask> eldest) {
+                    return size() > MAX_CACHE_ENTRIES;
+                }
+            };
+
+    public interface SearchListener {
+        /** Called with all results so far whenever a server answers, on the searching thread.
+         * The entries are copies, which are not modified by the search afterwards.
+         */
+        void onPartialResults(ArrayList<ImportKeysListEntry> results);
+    }
+
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy)
             throws Keyserver.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null);
+    }
+
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy,
+            SearchListener listener)
+            throws Keyserver.CloudSearchFailureException {
         final ArrayList<Keyserver> servers = new ArrayList<>();
 
         // it's a Vector for sync, multiple threads might report problems
@@ -53,38 +104,38 @@ public class CloudSearch {
         }
         final ImportKeysList results = new ImportKeysList(servers.size());
 
-        ArrayList<Thread> searchThreads = new ArrayList<>();
-        for (final Keyserver keyserver : servers) {
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        results.addAll(keyserver.search(query));
-                    } catch (Keyserver.CloudSearchFailureException e) {
-                        problems.add(e);
-                    }
-                    results.finishedAdding(); // notifies if all searchers done
-                }
-            };
-            Thread searchThread = new Thread(r);
-            searchThreads.add(searchThread);
-            searchThread.start();
+        BlockingQueue<SearchTask> finishedSearches = new LinkedBlockingQueue<>();
+        for (Keyserver keyserver : servers) {
+            getSearch(keyserver, query).notifyWhenDone(finishedSearches);
         }
 
         // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-        synchronized (results) {
-            try {
-                if (proxy == Proxy.NO_PROXY) {
-                    results.wait(30 * SECONDS);
-                } else {
-                    results.wait(10 * SECONDS);
+        // searches which don't make it in time are not cancelled, they may still end up in the cache
+        long timeout = proxy == Proxy.NO_PROXY ? 30 * SECONDS : 10 * SECONDS;
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (results.outstandingSuppliers() > 0) {
+                SearchTask search = finishedSearches.poll(
+                        deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (search == null) {
+                    break;
                 }
-                for (Thread thread : searchThreads) {
-                    // kill threads that haven't returned yet
-                    thread.interrupt();
+                try {
+                    results.addAll(copyEntries(search.get(), query));
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Keyserver.CloudSearchFailureException) {
+                        problems.add((Keyserver.CloudSearchFailureException) e.getCause());
+                    } else {
+                        problems.add(new Keyserver.QueryFailedException(e.getCause().getMessage()));
+                    }
+                }
+                results.finishedAdding();
+                if (listener != null && results.outstandingSuppliers() > 0) {
+                    // results are still merged on this thread while the listener's copy is shown
+                    listener.onPartialResults(copyEntries(results, null));
                 }
-            } catch (InterruptedException ignored) {
             }
+        } catch (InterruptedException ignored) {
         }
 
         if (results.outstandingSuppliers() > 0) {
@@ -106,4 +157,99 @@ public class CloudSearch {
 
         return results;
     }
+
+    /**
+     * Returns a search on the given keyserver which is in flight or finished less than
+     * CACHE_TTL ago, or starts a new one. Failed searches are not reused.
+     */
+    private static SearchTask getSearch(final Keyserver keyserver, final String query) {
+        String key = keyserver + "\n" + query.trim().toLowerCase(Locale.ENGLISH);
+        synchronized (sSearches) {
+            SearchTask search = sSearches.get(key);
+            if (search != null && search.isReusable()) {
+                Log.d(Constants.TAG, "Reusing cloud search for " + keyserver);
+                return search;
+            }
+            search = new SearchTask(key, new Callable<List<ImportKeysListEntry>>() {
+                @Override
+                public List<ImportKeysListEntry> call() throws Exception {
+                    return keyserver.search(query);
+                }
+            });
+            sSearches.put(key, search);
+            sSearchExecutor.execute(search);
+            return search;
+        }
+    }
+
+    /**
+     * Entries are merged and modified by their consumers, so each of them gets its own copy of
+     * the shared results. If query is null, the copies keep the query of the original entries.
+     */
+    private static ArrayList<ImportKeysListEntry> copyEntries(List<ImportKeysListEntry> entries, String query) {
+        ArrayList<ImportKeysListEntry> result = new ArrayList<>(entries.size());
+        Parcel parcel = Parcel.obtain();
+        try {
+            for (ImportKeysListEntry entry : entries) {
+                parcel.setDataPosition(0);
+                entry.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                ImportKeysListEntry copy = ImportKeysListEntry.CREATOR.createFromParcel(parcel);
+                if (query != null) {
+                    copy.setQuery(query);
+                }
+                result.add(copy);
+            }
+        } finally {
+            parcel.recycle();
+        }
+        return result;
+    }
+
+    private static class SearchTask extends FutureTask<List<ImportKeysListEntry>> {
+        private final String mKey;
+        private final ArrayList<BlockingQueue<SearchTask>> mWaiting = new ArrayList<>();
+        private long mFinishedTime;
+        private boolean mFailed;
+
+        SearchTask(String key, Callable<List<ImportKeysListEntry>> callable) {
+            super(callable);
+            mKey = key;
+        }
+
+        synchronized boolean isReusable() {
+            return !isDone() || (!mFailed && System.currentTimeMillis() - mFinishedTime < CACHE_TTL);
+        }
+
+        /** Adds this task to the queue once it is done, right away if it already is. */
+        synchronized void notifyWhenDone(BlockingQueue<SearchTask> queue) {
+            if (isDone()) {
+                queue.add(this);
+            } else {
+                mWaiting.add(queue);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            synchronized (this) {
+                mFailed = true;
+            }
+            synchronized (sSearches) {
+                if (sSearches.get(mKey) == this) {
+                    sSearches.remove(mKey);
+                }
+            }
+            super.setException(t);
+        }
+
+        @Override
+        protected synchronized void done() {
+            mFinishedTime = System.currentTimeMillis();
+            for (BlockingQueue<SearchTask> queue : mWaiting) {
+                queue.add(this);
+            }
+            mWaiting.clear();
+        }
+    }
 }
@@ -133,6 +133,11 @@ public class FacebookKeyserver extends Keyserver {
         }
     }
 
+    @Override
+    public String toString() {
+        return ORIGIN;
+    }
+
     @Override
     public void add(String armoredKey) throws AddKeyException {
         // Implementing will require usage of FB API
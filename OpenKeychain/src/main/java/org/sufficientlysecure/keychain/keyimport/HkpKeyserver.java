@@ -25,15 +25,21 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -79,6 +85,7 @@ public class HkpKeyserver extends Keyserver {
     private short mPort;
     private Proxy mProxy;
     private boolean mSecure;
+    private long mMaxKeySize = DEFAULT_MAX_KEY_SIZE;
 
     /**
      * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
@@ -112,10 +119,8 @@ public class HkpKeyserver extends Keyserver {
      * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
      */
     public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                            + "((uid:([^:]*):([0-9]+):([0-9]*):([rde]*)[ \n\r]*)+)", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE
-            );
+            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)",
+                    Pattern.CASE_INSENSITIVE);
 
     /**
      * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
@@ -145,6 +150,9 @@ public class HkpKeyserver extends Keyserver {
             .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
                     Pattern.CASE_INSENSITIVE);
 
+    /** Default maximum size of a key response, in bytes. */
+    public static final long DEFAULT_MAX_KEY_SIZE = 8 * 1024 * 1024;
+
     private static final short PORT_DEFAULT = 11371;
     private static final short PORT_DEFAULT_HKPS = 443;
 
@@ -196,35 +204,59 @@ public class HkpKeyserver extends Keyserver {
         mSecure = secure;
     }
 
+    /**
+     * Sets the maximum size of a key response. Larger responses, like keys flooded with
+     * signatures, are rejected as soon as the limit is reached while downloading.
+     */
+    public void setMaxKeySize(long maxKeySize) {
+        mMaxKeySize = maxKeySize;
+    }
+
     private String getUrlPrefix() {
         return mSecure ? "https://" : "http://";
     }
 
 
-    private String query(String request, @NonNull Proxy proxy) throws QueryFailedException, HttpError {
+    /**
+     * Queries the keyserver, conditionally if eTag or lastModified are given. On success or if the
+     * server reported the resource as unmodified, the returned Response's body is still unread and
+     * must be closed by the caller.
+     */
+    private Response query(String request, @NonNull Proxy proxy, String eTag, String lastModified)
+            throws QueryFailedException, HttpError {
         try {
             URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
             Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
             OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url, proxy);
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
-
-            String responseBody = response.body().string(); // contains body both in case of success or failure
+            Request.Builder builder = new Request.Builder().url(url);
+            if (eTag != null) {
+                builder.header("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+            Response response = client.newCall(builder.build()).execute();
 
-            if (response.isSuccessful()) {
-                return responseBody;
-            } else {
-                throw new HttpError(response.code(), responseBody);
+            if (response.isSuccessful() || response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return response;
             }
+
+            // error messages are short, so they are read in one piece
+            throw new HttpError(response.code(), response.body().string());
         } catch (IOException e) {
-            Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
-            throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
-                    (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
+            throw queryFailed(e, proxy);
         } catch (TlsHelper.TlsHelperException e) {
             Log.e(Constants.TAG, "Exception in pinning certs", e);
             throw new QueryFailedException("Exception in pinning certs");
         }
     }
 
+    private QueryFailedException queryFailed(IOException e, Proxy proxy) {
+        Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
+        return new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
+                (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
+    }
+
     /**
      * Results are sorted by creation date of key!
      */
@@ -245,9 +277,9 @@ public class HkpKeyserver extends Keyserver {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
+        Response response;
         try {
-            data = query(request, mProxy);
+            response = query(request, mProxy, null, null);
         } catch (HttpError e) {
             if (e.getData() != null) {
                 Log.d(Constants.TAG, "returned error data: " + e.getData().toLowerCase(Locale.ENGLISH));
@@ -271,104 +303,268 @@ public class HkpKeyserver extends Keyserver {
             throw new QueryFailedException("Querying server(s) for '" + mHost + "' failed.");
         }
 
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-            entry.addOrigin(getUrlPrefix() + mHost + ":" + mPort);
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                entry.setFingerprintHex(fingerprintOrKeyId);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
+        // the index is parsed line by line as it comes in, instead of buffering the whole body
+        BufferedReader reader = new BufferedReader(response.body().charStream());
+        try {
+            ImportKeysListEntry entry = null;
+            ArrayList<String> userIds = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher pubMatcher = PUB_KEY_LINE.matcher(line);
+                if (pubMatcher.find()) {
+                    addSearchResult(results, entry, userIds);
+                    entry = parsePubLine(pubMatcher, query);
+                    userIds = new ArrayList<>();
+                    continue;
+                }
+                Matcher uidMatcher = UID_LINE.matcher(line);
+                if (uidMatcher.find()) {
+                    if (entry != null) {
+                        String userId = parseUidLine(uidMatcher);
+                        if (userId != null) {
+                            userIds.add(userId);
+                        }
+                    }
+                    continue;
+                }
+                if (!line.trim().isEmpty()) {
+                    // uid lines must follow their pub line directly
+                    addSearchResult(results, entry, userIds);
+                    entry = null;
+                }
             }
+            addSearchResult(results, entry, userIds);
+        } catch (IOException e) {
+            throw queryFailed(e, mProxy);
+        } finally {
+            response.body().close();
+        }
 
-            try {
-                int bitSize = Integer.parseInt(matcher.group(3));
-                entry.setBitStrength(bitSize);
-                int algorithmId = Integer.decode(matcher.group(2));
-                entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-                final long creationDate = Long.parseLong(matcher.group(4));
-                final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                tmpGreg.setTimeInMillis(creationDate * 1000);
-                entry.setDate(tmpGreg.getTime());
-            } catch (NumberFormatException e) {
-                Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
-                // skip this key
-                continue;
-            }
+        return results;
+    }
 
-            try {
-                entry.setRevoked(matcher.group(6).contains("r"));
-                entry.setExpired(matcher.group(6).contains("e"));
-            } catch (NullPointerException e) {
-                Log.e(Constants.TAG, "Check for revocation or expiry failed.", e);
-                // skip this key
-                continue;
-            }
+    private static void addSearchResult(ArrayList<ImportKeysListEntry> results,
+                                        ImportKeysListEntry entry, ArrayList<String> userIds) {
+        if (entry == null || userIds.isEmpty()) {
+            return;
+        }
+        entry.setUserIds(userIds);
+        entry.setPrimaryUserId(userIds.get(0));
+        results.add(entry);
+    }
 
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Log.e(Constants.TAG, "User ID encoding broken", e);
-                        // skip this user id
-                        continue;
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
+    /** Parses a pub line of a machine readable index, returns null if the key should be skipped. */
+    private ImportKeysListEntry parsePubLine(Matcher matcher, String query) {
+        final ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(query);
+        entry.addOrigin(getUrlPrefix() + mHost + ":" + mPort);
+
+        // group 1 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
+        if (fingerprintOrKeyId.length() == 40) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
+            // skip this key
+            return null;
+        }
 
-            results.add(entry);
+        try {
+            int bitSize = Integer.parseInt(matcher.group(3));
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.decode(matcher.group(2));
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            final long creationDate = Long.parseLong(matcher.group(4));
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
+            // skip this key
+            return null;
         }
-        return results;
+
+        try {
+            entry.setRevoked(matcher.group(6).contains("r"));
+            entry.setExpired(matcher.group(6).contains("e"));
+        } catch (NullPointerException e) {
+            Log.e(Constants.TAG, "Check for revocation or expiry failed.", e);
+            // skip this key
+            return null;
+        }
+
+        return entry;
+    }
+
+    /** Parses a uid line of a machine readable index, returns null if the user id should be skipped. */
+    private static String parseUidLine(Matcher uidMatcher) {
+        String tmp = uidMatcher.group(1).trim();
+        if (tmp.contains("%")) {
+            if (tmp.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                tmp = tmp.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                tmp = URLDecoder.decode(tmp, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Log.e(Constants.TAG, "User ID encoding broken", e);
+                // skip this user id
+                return null;
+            }
+        }
+        return tmp;
     }
 
     @Override
     public String get(String keyIdHex) throws QueryFailedException {
+        byte[] keyData = getIfModified(keyIdHex, null, null).mKeyData;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ArmoredOutputStream aos = new ArmoredOutputStream(out);
+            aos.write(keyData);
+            aos.close();
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            // can't happen writing to a ByteArrayOutputStream
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Fetches a key, sending a conditional request if eTag or lastModified are given, as
+     * returned for the key by an earlier call. If the keyserver reports that the key has not
+     * been modified since, the returned FetchedKey has no key data.
+     *
+     * The armored response is decoded while it is downloaded, and the download is aborted as
+     * soon as it exceeds the maximum key size.
+     */
+    @NonNull
+    public FetchedKey getIfModified(String keyIdHex, String eTag, String lastModified)
+            throws QueryFailedException {
         String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
         Log.d(Constants.TAG, "hkp keyserver get: " + request + " using Proxy: " + mProxy);
-        String data;
+        Response response;
         try {
-            data = query(request, mProxy);
+            response = query(request, mProxy, eTag, lastModified);
         } catch (HttpError httpError) {
             Log.d(Constants.TAG, "Failed to get key at HkpKeyserver", httpError);
             throw new QueryFailedException("not found");
         }
-        if (data == null) {
-            throw new QueryFailedException("data is null");
+
+        try {
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (eTag == null && lastModified == null) {
+                    throw new QueryFailedException("data is null");
+                }
+                return new FetchedKey(null, eTag, lastModified);
+            }
+
+            // reject flooded keys before downloading anything, if the server tells us their size
+            long contentLength = response.body().contentLength();
+            if (contentLength > mMaxKeySize) {
+                throw new QueryFailedException("key exceeds maximum size of " + mMaxKeySize + " bytes");
+            }
+
+            byte[] keyData = readArmoredKey(response.body().byteStream());
+            if (keyData.length == 0) {
+                throw new QueryFailedException("data is null");
+            }
+            return new FetchedKey(keyData, response.header("ETag"), response.header("Last-Modified"));
+        } catch (KeyTooLargeException e) {
+            throw new QueryFailedException("key exceeds maximum size of " + mMaxKeySize + " bytes");
+        } catch (IOException e) {
+            throw queryFailed(e, mProxy);
+        } finally {
+            response.body().close();
+        }
+    }
+
+    /** Decodes the first armored block of the stream, which is read at most up to the maximum key size. */
+    private byte[] readArmoredKey(InputStream in) throws IOException {
+        ArmoredInputStream armorIn = new ArmoredInputStream(new SizeLimitedInputStream(in, mMaxKeySize));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 13];
+        int len;
+        // the armor decoder returns -1 at the end of the first armored block
+        while ((len = armorIn.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /** A key as returned by the keyserver in binary form, along with its http validators. */
+    public static class FetchedKey {
+        // null if the key was not modified since the validators of a conditional request
+        public final byte[] mKeyData;
+        public final String mETag;
+        public final String mLastModified;
+
+        FetchedKey(byte[] keyData, String eTag, String lastModified) {
+            mKeyData = keyData;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return mKeyData == null;
         }
-        Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
-        if (matcher.find()) {
-            return matcher.group(1);
+    }
+
+    private static class KeyTooLargeException extends IOException {
+        private static final long serialVersionUID = -2469313592850925613L;
+    }
+
+    /** Throws a KeyTooLargeException as soon as more than the given number of bytes are read. */
+    private static class SizeLimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        SizeLimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            mRemaining = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                consume(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            consume(result);
+            return result;
+        }
+
+        private void consume(long count) throws KeyTooLargeException {
+            mRemaining -= count;
+            if (mRemaining < 0) {
+                throw new KeyTooLargeException();
+            }
         }
-        throw new QueryFailedException("data is null");
     }
 
     @Override
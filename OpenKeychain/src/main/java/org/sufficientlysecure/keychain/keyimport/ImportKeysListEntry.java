@@ -86,6 +86,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         dest.writeString(mKeybaseName);
         dest.writeString(mFbUsername);
         dest.writeStringList(mOrigins);
+        dest.writeString(mCurveOid);
+        dest.writeString(mQuery);
     }
 
     public static final Creator<ImportKeysListEntry> CREATOR = new Creator<ImportKeysListEntry>() {
@@ -109,6 +111,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.mFbUsername = source.readString();
             vr.mOrigins = new ArrayList<>();
             source.readStringList(vr.mOrigins);
+            vr.mCurveOid = source.readString();
+            vr.mQuery = source.readString();
 
             return vr;
         }
@@ -117,6 +117,11 @@ public class KeybaseKeyserver extends Keyserver {
         }
     }
 
+    @Override
+    public String toString() {
+        return ORIGIN;
+    }
+
     @Override
     public void add(String armoredKey) throws AddKeyException {
         throw new AddKeyException();
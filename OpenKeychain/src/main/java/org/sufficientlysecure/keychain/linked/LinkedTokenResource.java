@@ -19,7 +19,6 @@ package org.sufficientlysecure.keychain.linked;
 
 import android.content.Context;
 
-import okhttp3.CertificatePinner;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -246,22 +245,13 @@ public abstract class LinkedTokenResource extends LinkedResource {
     }
 
 
-    private static CertificatePinner getCertificatePinner(String hostname, String[] pins){
-        CertificatePinner.Builder builder = new CertificatePinner.Builder();
-        for(String pin : pins){
-            builder.add(hostname,pin);
-        }
-        return builder.build();
-    }
-
-
     public static String getResponseBody(Request request, String... pins)
             throws IOException, HttpStatusException {
 
         Log.d("Connection to: " + request.url().url().getHost(), "");
         OkHttpClient client;
         if (pins != null) {
-            client = OkHttpClientFactory.getSimpleClientPinned(getCertificatePinner(request.url().url().getHost(), pins));
+            client = OkHttpClientFactory.getSimpleClientPinned(request.url().url().getHost(), pins);
         } else {
             client = OkHttpClientFactory.getSimpleClient();
         }
@@ -123,6 +123,17 @@ public abstract class BaseOperation <T extends Parcelable> implements Passphrase
         }
     }
 
+    /**
+     * Hands session keys which were derived while unlocking a key back to the passphrase cache,
+     * so the expensive S2K doesn't have to be repeated while the passphrase stays cached. This
+     * does nothing if the passphrase is not cached (anymore).
+     */
+    protected void updateCachedSessionKeys(long masterKeyId, long subKeyId, Passphrase passphrase) {
+        if (passphrase != null && passphrase.hasNewSessionKeys()) {
+            PassphraseCacheService.addCachedSessionKeys(mContext, masterKeyId, subKeyId, passphrase);
+        }
+    }
+
     @Override
     public Passphrase getCachedPassphrase(long masterKeyId, long subKeyId) throws NoSecretKeyException {
         try {
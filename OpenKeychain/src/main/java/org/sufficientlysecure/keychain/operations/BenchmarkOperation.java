@@ -20,140 +20,542 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.support.annotation.NonNull;
 
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
-import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
-import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
-import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.KeyType;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.Suite;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.ui.adapter.KeyAdapter;
+import org.sufficientlysecure.keychain.util.BenchmarkHistory;
+import org.sufficientlysecure.keychain.util.BenchmarkHistory.Measurement;
+import org.sufficientlysecure.keychain.util.BenchmarkHistory.Run;
+import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
+/** This operation runs the on-device benchmark suite, as configured by a BenchmarkInputParcel.
+ *
+ * Each benchmarked operation is run once for warmup, and then timed for a number of runs. The
+ * median, 95th percentile and maximum time, and the throughput where applicable, are logged and
+ * stored in the BenchmarkHistory, and compared to the most recent run of another app version.
+ *
+ * Keys needed for the asymmetric and import benchmarks are created with a benchmark user id and
+ * saved to the database for the duration of the benchmark, and removed again afterwards. Keys
+ * left over from a run which didn't get to clean up are removed before the benchmark starts.
+ */
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
+    static final String BENCHMARK_USER_ID = "OpenKeychain Benchmark <benchmark@openkeychain.invalid>";
+
+    private static final int[] SYMMETRIC_ALGORITHMS = {
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_128,
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_256,
+            OpenKeychainSymmetricKeyAlgorithmTags.TWOFISH,
+    };
+    private static final String[] SYMMETRIC_ALGORITHM_NAMES = { "AES-128", "AES-256", "Twofish" };
+
+    private static final int[] COMPRESSION_ALGORITHMS = {
+            CompressionAlgorithmTags.UNCOMPRESSED,
+            CompressionAlgorithmTags.ZIP,
+            CompressionAlgorithmTags.ZLIB,
+    };
+    private static final String[] COMPRESSION_ALGORITHM_NAMES = { "none", "ZIP", "ZLIB" };
+
+    // same as in KeyListFragment
+    private static final String KEY_LIST_ORDER =
+            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.USER_ID + " COLLATE NOCASE ASC";
+
+    /** A benchmarked operation. */
+    private interface Benchmark {
+        /** Runs the operation once, with iteration 0 for the warmup run.
+         * @return false if the operation failed */
+        boolean run(int iteration);
+    }
+
+    private static class BenchmarkFailedException extends Exception {
+        BenchmarkFailedException(String name) {
+            super(name);
+        }
+    }
+
+    private static class BenchmarkCancelledException extends Exception {
+    }
+
     public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
+            progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
     @NonNull
     @Override
-    public BenchmarkResult execute(BenchmarkInputParcel consolidateInputParcel,
+    public BenchmarkResult execute(BenchmarkInputParcel input,
                                      CryptoInputParcel cryptoInputParcel) {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_BENCH, 0);
 
         // random data
-        byte[] buf = new byte[1024*1024*10];
-        new Random().nextBytes(buf);
+        byte[] buf = new byte[input.getDataSize()];
+        Random random = new Random();
+        random.nextBytes(buf);
 
-        Passphrase passphrase = new Passphrase("a");
+        // text-like data, to see an effect of compression
+        byte[] compressibleBuf = new byte[input.getDataSize()];
+        for (int i = 0; i < compressibleBuf.length; i++) {
+            compressibleBuf[i] = (byte) ('a' + random.nextInt(16));
+        }
 
-        int numRepeats = 5;
-        long totalTime = 0;
+        ArrayList<Measurement> measurements = new ArrayList<>();
+        ArrayList<Long> benchmarkKeyIds = new ArrayList<>();
+
+        int steps = 0;
+        for (Suite suite : Suite.values()) {
+            if (input.hasSuite(suite)) {
+                steps += 1;
+            }
+        }
+        // asymmetric and sign/verify share their keys, and are a single step
+        boolean asymmetric = input.hasSuite(Suite.ASYMMETRIC) || input.hasSuite(Suite.SIGN_VERIFY);
+        if (input.hasSuite(Suite.ASYMMETRIC) && input.hasSuite(Suite.SIGN_VERIFY)) {
+            steps -= 1;
+        }
+        int step = 0;
+
+        deleteBenchmarkKeys(findLeftoverBenchmarkKeys(), log);
 
-        // encrypt
-        SignEncryptResult encryptResult;
-        int i = 0;
-        do {
-            SignEncryptOperation op =
-                    new SignEncryptOperation(mContext, mProviderHelper,
-                            new ProgressScaler(mProgressable, i*(50/numRepeats), (i+1)*(50/numRepeats), 100), mCancelled);
-            PgpSignEncryptData data = new PgpSignEncryptData();
-            data.setSymmetricPassphrase(passphrase);
-            data.setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
-            SignEncryptParcel input = new SignEncryptParcel(data);
-            input.setBytes(buf);
-            encryptResult = op.execute(input, new CryptoInputParcel());
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BENCH_ENC_TIME, 2,
-                    String.format("%.2f", encryptResult.getResults().get(0).mOperationTime / 1000.0));
-            totalTime += encryptResult.getResults().get(0).mOperationTime;
-        } while (++i < numRepeats);
-
-        long encryptionTime = totalTime / numRepeats;
-        totalTime = 0;
-
-        // decrypt
-        i = 0;
-        do {
-            DecryptVerifyResult decryptResult;
-            PgpDecryptVerifyOperation op =
-                    new PgpDecryptVerifyOperation(mContext, mProviderHelper,
-                            new ProgressScaler(mProgressable, 50 +i*(50/numRepeats), 50 +(i+1)*(50/numRepeats), 100));
-            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(encryptResult.getResultBytes());
-            input.setAllowSymmetricDecryption(true);
-            decryptResult = op.execute(input, new CryptoInputParcel(passphrase));
-            log.add(decryptResult, 1);
-            log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptResult.mOperationTime / 1000.0));
-            totalTime += decryptResult.mOperationTime;
-        } while (++i < numRepeats);
-
-        long decryptionTime = totalTime / numRepeats;
-        totalTime = 0;
-
-        int iterationsFor100ms;
         try {
-            PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
-            PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
-                    digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                    "".toCharArray());
-
-            byte[] iv = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
-            int iterations = 0;
-            while (iterations < 255 && totalTime < 100) {
-                iterations += 1;
-
-                S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
-                totalTime = System.currentTimeMillis();
-                decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
-                totalTime = System.currentTimeMillis() -totalTime;
-
-                if ((iterations % 10) == 0) {
-                    log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
+
+            // before any benchmark key is saved, so only the user's own keys are listed
+            if (input.hasSuite(Suite.KEY_LIST)) {
+                updateProgress(step++, steps);
+                benchmarkKeyList(input, measurements, log);
+            }
+
+            if (input.hasSuite(Suite.SYMMETRIC)) {
+                updateProgress(step++, steps);
+                for (int i = 0; i < SYMMETRIC_ALGORITHMS.length; i++) {
+                    benchmarkSymmetric("symmetric " + SYMMETRIC_ALGORITHM_NAMES[i], SYMMETRIC_ALGORITHMS[i],
+                            CompressionAlgorithmTags.UNCOMPRESSED, false, buf, input, measurements, log);
+                }
+            }
+
+            if (input.hasSuite(Suite.COMPRESSION)) {
+                updateProgress(step++, steps);
+                for (int i = 0; i < COMPRESSION_ALGORITHMS.length; i++) {
+                    benchmarkSymmetric("compression " + COMPRESSION_ALGORITHM_NAMES[i],
+                            OpenKeychainSymmetricKeyAlgorithmTags.AES_256, COMPRESSION_ALGORITHMS[i], false,
+                            compressibleBuf, input, measurements, log);
+                }
+            }
+
+            if (input.hasSuite(Suite.ARMOR)) {
+                updateProgress(step++, steps);
+                benchmarkSymmetric("binary", OpenKeychainSymmetricKeyAlgorithmTags.AES_256,
+                        CompressionAlgorithmTags.UNCOMPRESSED, false, buf, input, measurements, log);
+                benchmarkSymmetric("armored", OpenKeychainSymmetricKeyAlgorithmTags.AES_256,
+                        CompressionAlgorithmTags.UNCOMPRESSED, true, buf, input, measurements, log);
+            }
+
+            if (asymmetric) {
+                updateProgress(step++, steps);
+                for (KeyType keyType : input.getKeyTypes()) {
+                    long masterKeyId = createBenchmarkKey(keyType.name(), keyType.mAlgorithm,
+                            keyType.mKeySize, keyType.mCurve, benchmarkKeyIds, log).getMasterKeyId();
+
+                    if (input.hasSuite(Suite.ASYMMETRIC)) {
+                        PgpSignEncryptData data = new PgpSignEncryptData();
+                        data.setEncryptionMasterKeyIds(new long[] { masterKeyId });
+                        benchmarkRoundTrip(keyType.name() + " encrypt", keyType.name() + " decrypt",
+                                data, buf, new Passphrase(), input, measurements, log);
+                    }
+
+                    if (input.hasSuite(Suite.SIGN_VERIFY)) {
+                        // the master key of benchmark keys is also used for signing
+                        PgpSignEncryptData data = new PgpSignEncryptData();
+                        data.setSignatureMasterKeyId(masterKeyId);
+                        data.setSignatureSubKeyId(masterKeyId);
+                        benchmarkRoundTrip(keyType.name() + " sign", keyType.name() + " verify",
+                                data, buf, new Passphrase(), input, measurements, log);
+                    }
                 }
+            }
+
+            if (input.hasSuite(Suite.KEY_IMPORT)) {
+                updateProgress(step++, steps);
+                benchmarkKeyImport(input, benchmarkKeyIds, measurements, log);
+            }
 
+            if (input.hasSuite(Suite.S2K)) {
+                updateProgress(step, steps);
+                benchmarkS2k(log);
             }
-            iterationsFor100ms = iterations;
 
+        } catch (BenchmarkFailedException e) {
+            log.add(LogType.MSG_BENCH_ERROR, 1, e.getMessage());
+            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        } catch (BenchmarkCancelledException e) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new BenchmarkResult(BenchmarkResult.RESULT_CANCELLED, log);
         } catch (PGPException e) {
             Log.e(Constants.TAG, "internal error during benchmark", e);
             log.add(LogType.MSG_INTERNAL_ERROR, 0);
             return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        } finally {
+            deleteBenchmarkKeys(benchmarkKeyIds, log);
         }
 
-        log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
-        log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
-        log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
+        saveAndCompare(measurements, log);
+        updateProgress(100, 100);
 
         log.add(LogType.MSG_BENCH_SUCCESS, 0);
         return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
     }
 
+    private void benchmarkSymmetric(String name, int algorithm, int compression, boolean armor,
+            byte[] buf, BenchmarkInputParcel input, ArrayList<Measurement> measurements, OperationLog log)
+            throws BenchmarkFailedException, BenchmarkCancelledException {
+        Passphrase passphrase = new Passphrase("a");
+
+        PgpSignEncryptData data = new PgpSignEncryptData();
+        data.setSymmetricPassphrase(passphrase);
+        data.setSymmetricEncryptionAlgorithm(algorithm);
+        data.setCompressionAlgorithm(compression);
+        data.setEnableAsciiArmorOutput(armor);
+
+        benchmarkRoundTrip(name + " encrypt", name + " decrypt", data, buf, passphrase, input,
+                measurements, log);
+    }
+
+    /** Benchmarks a PgpSignEncryptOperation with the given data, and the PgpDecryptVerifyOperation
+     * of its output.
+     */
+    private void benchmarkRoundTrip(String forwardName, String backwardName, final PgpSignEncryptData data,
+            final byte[] buf, final Passphrase passphrase, BenchmarkInputParcel input,
+            ArrayList<Measurement> measurements, final OperationLog log)
+            throws BenchmarkFailedException, BenchmarkCancelledException {
+
+        final ByteArrayOutputStream lastOutput = new ByteArrayOutputStream(buf.length);
+        measure(forwardName, input.getRepeats(), buf.length, new Benchmark() {
+            @Override
+            public boolean run(int iteration) {
+                lastOutput.reset();
+                return signEncrypt(data, buf, passphrase, lastOutput, log);
+            }
+        }, measurements, log);
+
+        final byte[] signedEncrypted = lastOutput.toByteArray();
+        measure(backwardName, input.getRepeats(), buf.length, new Benchmark() {
+            @Override
+            public boolean run(int iteration) {
+                return decryptVerify(signedEncrypted, passphrase, log);
+            }
+        }, measurements, log);
+    }
+
+    private void benchmarkKeyList(BenchmarkInputParcel input, ArrayList<Measurement> measurements,
+            OperationLog log) throws BenchmarkFailedException, BenchmarkCancelledException {
+        measure("key list query", input.getRepeats(), 0, new Benchmark() {
+            @Override
+            public boolean run(int iteration) {
+                Cursor cursor = mProviderHelper.getContentResolver().query(
+                        KeyRings.buildUnifiedKeyRingsUri(), KeyAdapter.PROJECTION, null, null, KEY_LIST_ORDER);
+                if (cursor == null) {
+                    return false;
+                }
+                try {
+                    // the query is only run as the cursor is read
+                    while (cursor.moveToNext()) {
+                        cursor.getLong(KeyAdapter.INDEX_MASTER_KEY_ID);
+                        cursor.getString(KeyAdapter.INDEX_USER_ID);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return true;
+            }
+        }, measurements, log);
+    }
+
+    private void benchmarkKeyImport(BenchmarkInputParcel input, ArrayList<Long> benchmarkKeyIds,
+            ArrayList<Measurement> measurements, OperationLog log)
+            throws BenchmarkFailedException, BenchmarkCancelledException {
+
+        // one more for the warmup run
+        int keyCount = input.getImportKeyCount() + 1;
+        final ArrayList<UncachedKeyRing> publicRings = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            UncachedKeyRing ring = createBenchmarkKey(null, Algorithm.ECDSA, null, Curve.NIST_P256, null, log);
+            try {
+                publicRings.add(ring.extractPublicKeyRing());
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error extracting public benchmark key", e);
+                throw new BenchmarkFailedException("key import");
+            }
+            benchmarkKeyIds.add(ring.getMasterKeyId());
+        }
+
+        Measurement measurement = measure("key import", input.getImportKeyCount(), 0, new Benchmark() {
+            @Override
+            public boolean run(int iteration) {
+                SaveKeyringResult result = mProviderHelper.savePublicKeyRing(publicRings.get(iteration));
+                return result.success();
+            }
+        }, measurements, log);
+
+        log.add(LogType.MSG_BENCH_KEYS_PER_SECOND, 2, measurement.mName,
+                String.format("%.1f", 1000000.0 / Math.max(1, measurement.mMeanMicros)));
+    }
+
+    private void benchmarkS2k(OperationLog log) throws PGPException {
+        long totalTime = 0;
+
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+        PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                "".toCharArray());
+
+        byte[] iv = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        int iterations = 0;
+        while (iterations < 255 && totalTime < 100) {
+            iterations += 1;
+
+            S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
+            totalTime = System.currentTimeMillis();
+            decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
+            totalTime = System.currentTimeMillis() -totalTime;
+
+            if ((iterations % 10) == 0) {
+                log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
+            }
+
+        }
+
+        log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterations));
+    }
+
+    /** Runs a benchmark once for warmup and then the given number of timed runs, and logs and
+     * records the resulting measurement.
+     *
+     * @param bytesPerRun the amount of data processed per run, to report throughput, or 0
+     */
+    private Measurement measure(String name, int runs, long bytesPerRun, Benchmark benchmark,
+            ArrayList<Measurement> measurements, OperationLog log)
+            throws BenchmarkFailedException, BenchmarkCancelledException {
+
+        if (!benchmark.run(0)) {
+            throw new BenchmarkFailedException(name);
+        }
+
+        long[] nanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            if (checkCancelled()) {
+                throw new BenchmarkCancelledException();
+            }
+            long startNanos = System.nanoTime();
+            boolean success = benchmark.run(i + 1);
+            nanos[i] = System.nanoTime() - startNanos;
+            if (!success) {
+                throw new BenchmarkFailedException(name);
+            }
+        }
+
+        Measurement measurement = Measurement.fromNanos(name, nanos, bytesPerRun);
+        log.add(LogType.MSG_BENCH_RESULT, 1, name, formatMillis(measurement.mP50Micros),
+                formatMillis(measurement.mP95Micros), formatMillis(measurement.mMaxMicros));
+        if (measurement.mThroughput > 0) {
+            log.add(LogType.MSG_BENCH_THROUGHPUT, 2, name, String.format("%.2f", measurement.mThroughput));
+        }
+        measurements.add(measurement);
+        return measurement;
+    }
+
+    private boolean signEncrypt(PgpSignEncryptData data, byte[] buf, Passphrase passphrase,
+            ByteArrayOutputStream out, OperationLog log) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper, null);
+        ByteArrayInputStream in = new ByteArrayInputStream(buf);
+        PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(data),
+                new CryptoInputParcel(new Date(), passphrase), new InputData(in, buf.length), out);
+        if (!result.success()) {
+            log.add(result, 2);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean decryptVerify(byte[] buf, Passphrase passphrase, OperationLog log) {
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(mContext, mProviderHelper, null);
+        PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(buf);
+        input.setAllowSymmetricDecryption(true);
+        DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(passphrase));
+        if (!result.success()) {
+            log.add(result, 2);
+            return false;
+        }
+        return true;
+    }
+
+    /** Creates a key without passphrase, which can certify and sign with its master key and
+     * encrypt with its subkey. If name is given, the secret key is saved to the database.
+     */
+    private UncachedKeyRing createBenchmarkKey(String name, Algorithm algorithm, Integer keySize,
+            Curve curve, ArrayList<Long> benchmarkKeyIds, OperationLog log)
+            throws BenchmarkFailedException, BenchmarkCancelledException {
+
+        if (checkCancelled()) {
+            throw new BenchmarkCancelledException();
+        }
+        if (name != null) {
+            log.add(LogType.MSG_BENCH_KEY_CREATE, 1, name);
+        }
+
+        Algorithm encryptAlgorithm = algorithm == Algorithm.ECDSA ? Algorithm.ECDH : algorithm;
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                algorithm, keySize, curve, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                encryptAlgorithm, keySize, curve, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+        parcel.mAddUserIds.add(BENCHMARK_USER_ID);
+        parcel.setNewUnlock(new ChangeUnlockParcel(new Passphrase()));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null, mCancelled).createSecretKeyRing(parcel);
+        if (!result.success()) {
+            log.add(result, 2);
+            throw new BenchmarkFailedException("key creation");
+        }
+        UncachedKeyRing ring = result.getRing();
+
+        if (name != null) {
+            benchmarkKeyIds.add(ring.getMasterKeyId());
+            SaveKeyringResult saveResult = mProviderHelper.saveSecretKeyRing(ring, new ProgressScaler());
+            if (!saveResult.success()) {
+                log.add(saveResult, 2);
+                throw new BenchmarkFailedException("key creation");
+            }
+        }
+
+        return ring;
+    }
+
+    /** Returns the master key ids of benchmark keys which are still in the database, e.g. because
+     * the app was killed during a previous benchmark.
+     */
+    private ArrayList<Long> findLeftoverBenchmarkKeys() {
+        ArrayList<Long> masterKeyIds = new ArrayList<>();
+        Cursor cursor = mProviderHelper.getContentResolver().query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[] { KeyRings.MASTER_KEY_ID }, KeyRings.USER_ID + " = ?",
+                new String[] { BENCHMARK_USER_ID }, null);
+        if (cursor == null) {
+            return masterKeyIds;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return masterKeyIds;
+    }
+
+    private void deleteBenchmarkKeys(ArrayList<Long> benchmarkKeyIds, OperationLog log) {
+        if (benchmarkKeyIds.isEmpty()) {
+            return;
+        }
+        log.add(LogType.MSG_BENCH_KEY_CLEANUP, 1);
+        for (long masterKeyId : benchmarkKeyIds) {
+            mProviderHelper.getContentResolver().delete(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+            mProviderHelper.invalidateCachedKeyRing(masterKeyId);
+        }
+    }
+
+    /** Stores the measurements in the BenchmarkHistory, and logs how they compare to the most
+     * recent run of another app version.
+     */
+    private void saveAndCompare(ArrayList<Measurement> measurements, OperationLog log) {
+        if (measurements.isEmpty()) {
+            return;
+        }
+
+        BenchmarkHistory history = new BenchmarkHistory(mContext);
+
+        Run previousRun = history.getLastRunOfOtherVersion(BuildConfig.VERSION_CODE);
+        if (previousRun != null) {
+            for (Measurement measurement : measurements) {
+                Measurement previous = previousRun.getMeasurement(measurement.mName);
+                if (previous == null || previous.mP50Micros <= 0) {
+                    continue;
+                }
+                double change = (measurement.mP50Micros - previous.mP50Micros) * 100.0 / previous.mP50Micros;
+                log.add(LogType.MSG_BENCH_COMPARE, 1, measurement.mName,
+                        String.format("%+.1f", change), previousRun.mVersionName);
+            }
+        }
+
+        try {
+            history.addRun(new Run(BuildConfig.VERSION_CODE, BuildConfig.VERSION_NAME,
+                    System.currentTimeMillis(), measurements));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error saving benchmark history", e);
+            log.add(LogType.MSG_BENCH_ERROR_HISTORY, 1);
+        }
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
 }
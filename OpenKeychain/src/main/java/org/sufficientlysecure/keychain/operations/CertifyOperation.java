@@ -130,6 +130,7 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
                 log.add(LogType.MSG_CRT_ERROR_UNLOCK, 2);
                 return new CertifyResult(CertifyResult.RESULT_ERROR, log);
             }
+            updateCachedSessionKeys(parcel.mMasterKeyId, certificationKey.getKeyId(), passphrase);
         } catch (PgpGeneralException e) {
             log.add(LogType.MSG_CRT_ERROR_UNLOCK, 2);
             return new CertifyResult(CertifyResult.RESULT_ERROR, log);
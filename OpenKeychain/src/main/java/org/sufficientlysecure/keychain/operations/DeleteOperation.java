@@ -84,6 +84,7 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
             int count = mProviderHelper.getContentResolver().delete(
                     KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null
             );
+            mProviderHelper.invalidateCachedKeyRing(masterKeyId);
             if (count > 0) {
                 log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
                 success += 1;
@@ -95,7 +96,7 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
 
         if (isSecret && success > 0) {
             log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
-            ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            ConsolidateResult sub = mProviderHelper.consolidateKeyRingsCertifiedBy(masterKeyIds, mProgressable);
             log.add(sub, 2);
         }
 
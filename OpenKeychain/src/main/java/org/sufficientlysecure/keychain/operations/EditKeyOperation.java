@@ -32,8 +32,10 @@ import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.operations.results.UploadResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyPairPool;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.S2kCalibration;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
@@ -87,6 +89,8 @@ public class EditKeyOperation extends BaseOperation<SaveKeyringParcel> {
         {
             PgpKeyOperation keyOperations =
                     new PgpKeyOperation(new ProgressScaler(mProgressable, 10, 60, 100), mCancelled);
+            keyOperations.setKeyPairSource(KeyPairPool.getInstance(mContext));
+            keyOperations.setS2kCount(S2kCalibration.getS2kCount(mContext));
 
             // If a key id is specified, fetch and edit
             if (saveParcel.mMasterKeyId != null) {
@@ -22,20 +22,25 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.IOException;
 import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserver;
@@ -45,18 +50,22 @@ import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
-import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.KeyUpdateState;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
@@ -85,6 +94,20 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     public static final int MAX_THREADS = 10;
 
+    /** Number of fetched keyrings per fetching thread which may be waiting for the writer
+     * during multi-threaded import. */
+    private static final int IMPORT_QUEUE_SIZE_PER_THREAD = 2;
+
+    /** Default number of keyrings which are written to the database in a single transaction
+     * during serial imports. */
+    public static final int DEFAULT_BULK_CHUNK_SIZE = 200;
+
+    private int mBulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
+    private int mMaxThreads = MAX_THREADS;
+    // state of keyserver data merged into existing keyrings, by master key id
+    private HashMap<Long, KeyUpdateState> mKeyUpdateStates;
+    private long mFetchSpacingMillis, mFetchJitterMillis;
+
     public ImportOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -95,10 +118,35 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         super(context, providerHelper, progressable, cancelled);
     }
 
+    /**
+     * Sets the number of keyrings to be written in a single database transaction during serial
+     * imports, or 0 to use one transaction per keyring.
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        mBulkChunkSize = bulkChunkSize;
+    }
+
+    /**
+     * Sets the number of keyrings which are fetched concurrently during multi-threaded imports.
+     */
+    public void setMaxThreads(int maxThreads) {
+        mMaxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * Makes each thread wait for the given time plus a random jitter of up to jitterMillis
+     * before fetching a keyring, except for the very first one. This is used to spread
+     * keyserver requests over different Tor circuits, as performed by parcimonie.
+     */
+    public void setFetchSpacing(long spacingMillis, long jitterMillis) {
+        mFetchSpacingMillis = spacingMillis;
+        mFetchJitterMillis = jitterMillis;
+    }
+
     // Overloaded functions for using progressable supplied in constructor during import
     public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
                                                String keyServerUri, Proxy proxy) {
-        return serialKeyRingImport(entries, num, keyServerUri, mProgressable, proxy);
+        return serialKeyRingImport(entries, num, keyServerUri, mProgressable, proxy, mBulkChunkSize);
     }
 
     @NonNull
@@ -110,7 +158,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyServerUri, mProgressable, proxy);
+            return serialKeyRingImport(it, numEntries, keyServerUri, mProgressable, proxy, mBulkChunkSize);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -130,240 +178,372 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
      * @param entries      keys to import
      * @param num          number of keys to import
      * @param keyServerUri contains uri of keyserver to import from, if it is an import from cloud
-     * @param progressable Allows multi-threaded import to supply a progressable that ignores the
-     *                     progress of a single key being imported
+     * @param progressable progress of the import is reported here, may be null
+     * @param bulkChunkSize number of keyrings to write per database transaction, or 0 to use
+     *                      one transaction per keyring
      */
     @NonNull
-    private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
-                                                String keyServerUri, Progressable progressable,
-                                                @NonNull Proxy proxy) {
-        if (progressable != null) {
-            progressable.setProgress(R.string.progress_importing, 0, 100);
-        }
+    private ImportKeyResult serialKeyRingImport(final Iterator<ParcelableKeyRing> entries, int num,
+                                                final String keyServerUri, Progressable progressable,
+                                                @NonNull Proxy proxy, int bulkChunkSize) {
+        final KeyserverClients clients = new KeyserverClients(proxy);
+
+        // keyrings are fetched on this thread, right before they are saved
+        KeyRingSource source = new KeyRingSource() {
+            @Override
+            public boolean hasNext() {
+                return entries != null && entries.hasNext();
+            }
 
-        OperationLog log = new OperationLog();
-        log.add(LogType.MSG_IMPORT, 0, num);
+            @Override
+            public FetchedKeyRing next() {
+                return fetchKeyRing(entries.next(), keyServerUri, clients);
+            }
 
-        // If there aren't even any keys, do nothing here.
-        if (entries == null || !entries.hasNext()) {
-            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
-        }
+            @Override
+            boolean isNextReady() {
+                return true;
+            }
+        };
 
-        int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
-        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        return saveKeyRings(source, num, progressable, bulkChunkSize);
+    }
 
-        boolean cancelled = false;
-        int position = 0;
-        double progSteps = 100.0 / num;
+    /**
+     * First stage of the import: retrieves the keyring of a single entry, either from its byte
+     * data or from keyservers, and canonicalizes it. This does not touch the database, and may be
+     * called from multiple threads at once as long as each thread uses its own KeyserverClients.
+     */
+    @NonNull
+    private FetchedKeyRing fetchKeyRing(ParcelableKeyRing entry, String keyServerUri,
+                                        KeyserverClients clients) {
+        FetchedKeyRing fetched = new FetchedKeyRing(entry);
+        OperationLog log = fetched.mLog;
 
-        KeybaseKeyserver keybaseServer = null;
-        FacebookKeyserver facebookServer = null;
-        HkpKeyserver keyServer = null;
+        long startTime = System.currentTimeMillis();
+        try {
 
-        // iterate over all entries
-        while (entries.hasNext()) {
-            ParcelableKeyRing entry = entries.next();
+            UncachedKeyRing key = null;
 
-            // Has this action been cancelled? If so, don't proceed any further
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
+            // If there is already byte data, use that
+            if (entry.mBytes != null) {
+                key = UncachedKeyRing.decodeFromData(entry.mBytes);
             }
+            // Otherwise, we need to fetch the data from a server first
+            else {
+
+                // We fetch from keyservers first, because we tend to get more certificates
+                // from there, so the number of certificates which are merged in later is
+                // smaller.
+
+                // If we have a keyServerUri and a fingerprint or at least a keyId,
+                // download from HKP
+                if (keyServerUri != null
+                        && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                    // Make sure we have the keyserver instance cached
+                    if (clients.mKeyServer == null) {
+                        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+                        clients.mKeyServer = new HkpKeyserver(keyServerUri, clients.mProxy);
+                        clients.mKeyServer.setMaxKeySize(
+                                Preferences.getPreferences(mContext).getKeyserverMaxKeySize());
+                    }
 
-            try {
-
-                UncachedKeyRing key = null;
-
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
-                }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri, proxy);
-                        }
-
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
+                    try {
+                        byte[] data;
+                        // Download by fingerprint, or keyId - whichever is available
+                        if (entry.mExpectedFingerprint != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                                    entry.mExpectedFingerprint.substring(24));
+                            // if the keyserver is the only source, we can skip keyrings
+                            // whose data didn't change since it was last merged
+                            boolean isKeyserverOnly = entry.mKeybaseName == null && entry.mFbUsername == null;
+                            KeyUpdateState state = isKeyserverOnly ? getKeyUpdateState(entry) : null;
+                            HkpKeyserver.FetchedKey fetchedKey = clients.mKeyServer.getIfModified(
+                                    "0x" + entry.mExpectedFingerprint,
+                                    state != null ? state.mETag : null,
+                                    state != null ? state.mLastModified : null);
+                            if (fetchedKey.isNotModified()) {
+                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED, 3);
+                                fetched.mUpdateState = state;
+                                fetched.mUnchanged = true;
+                                return fetched;
                             }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                            data = fetchedKey.mKeyData;
+                            if (isKeyserverOnly) {
+                                fetched.mUpdateState = new KeyUpdateState(sha256(data),
+                                        fetchedKey.mETag, fetchedKey.mLastModified);
+                                if (state != null && Arrays.equals(state.mContentHash,
+                                        fetched.mUpdateState.mContentHash)) {
+                                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED, 3);
+                                    fetched.mUnchanged = true;
+                                    return fetched;
+                                }
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.d(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                            data = clients.mKeyServer.getIfModified(entry.mKeyIdHex, null, null).mKeyData;
+                        }
+                        key = UncachedKeyRing.decodeFromData(data);
+                        if (key != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
                         }
+                    } catch (Keyserver.QueryFailedException e) {
+                        Log.d(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
                     }
+                }
 
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver(proxy);
-                        }
+                // If we have a keybase name, try to fetch from there
+                if (entry.mKeybaseName != null) {
+                    // Make sure we have this cached
+                    if (clients.mKeybaseServer == null) {
+                        clients.mKeybaseServer = new KeybaseKeyserver(clients.mProxy);
+                    }
 
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                        byte[] data = clients.mKeybaseServer.get(entry.mKeybaseName).getBytes();
+                        UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
 
-                            if (keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
+                        if (keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
 
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
+                        // If there already is a key, merge the two
+                        if (key != null && keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            keybaseKey = key.merge(keybaseKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (keybaseKey != null) {
                                 key = keybaseKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                        } else if (keybaseKey != null) {
+                            key = keybaseKey;
                         }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
                     }
+                }
 
-                    // if the key is from Facebook, fetch from there
-                    if (entry.mFbUsername != null) {
-                        // Make sure we have this cached
-                        if (facebookServer == null) {
-                            facebookServer = new FacebookKeyserver(proxy);
-                        }
+                // if the key is from Facebook, fetch from there
+                if (entry.mFbUsername != null) {
+                    // Make sure we have this cached
+                    if (clients.mFacebookServer == null) {
+                        clients.mFacebookServer = new FacebookKeyserver(clients.mProxy);
+                    }
 
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername).getBytes();
-                            UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
+                        byte[] data = clients.mFacebookServer.get(entry.mFbUsername).getBytes();
+                        UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
 
-                            if (facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
+                        if (facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
 
-                            // If there already is a key, merge the two
-                            if (key != null && facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                facebookKey = key.merge(facebookKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (facebookKey != null) {
-                                    key = facebookKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (facebookKey != null) {
+                        // If there already is a key, merge the two
+                        if (key != null && facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            facebookKey = key.merge(facebookKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (facebookKey != null) {
                                 key = facebookKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
                             }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                        } else if (facebookKey != null) {
+                            key = facebookKey;
                         }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
                     }
                 }
+            }
 
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
+            if (key == null) {
+                log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+                return fetched;
+            }
+
+            // never import secret keys from keyserver!
+            if (entry.mBytes == null && key.isSecret()) {
+                log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+                return fetched;
+            }
+
+            fetched.mKey = key;
+        } catch (IOException | PgpGeneralException e) {
+            Log.e(Constants.TAG, "Encountered bad key on import!", e);
+            return fetched;
+        } finally {
+            fetched.mFetchTime = System.currentTimeMillis() - startTime;
+        }
+
+        // Canonicalization is the expensive part of saving a keyring, so do it here rather than
+        // in the writer. This is only used by ProviderHelper if there is no keyring to merge
+        // with, otherwise the merged keyring is canonicalized again when it is saved.
+        startTime = System.currentTimeMillis();
+        OperationLog canonicalizeLog = new OperationLog();
+        fetched.mCanonicalized = fetched.mKey.canonicalize(canonicalizeLog, 0);
+        if (fetched.mCanonicalized != null) {
+            fetched.mCanonicalizeLog = canonicalizeLog;
+        }
+        fetched.mCanonicalizeTime = System.currentTimeMillis() - startTime;
+
+        return fetched;
+    }
+
+    private KeyUpdateState getKeyUpdateState(ParcelableKeyRing entry) {
+        if (mKeyUpdateStates == null || entry.mExpectedFingerprint == null) {
+            return null;
+        }
+        long masterKeyId = KeyFormattingUtils.convertFingerprintToKeyId(Hex.decode(entry.mExpectedFingerprint));
+        return mKeyUpdateStates.get(masterKeyId);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(data, 0, data.length);
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+
+    /**
+     * Second stage of the import: saves fetched keyrings into the database, in the order they
+     * are returned by the source. This must only be called from a single thread at a time.
+     */
+    @NonNull
+    private ImportKeyResult saveKeyRings(KeyRingSource keyRings, int num,
+                                         Progressable progressable, int bulkChunkSize) {
+        if (progressable != null) {
+            progressable.setProgress(R.string.progress_importing, 0, 100);
+        }
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, num);
+
+        // If there aren't even any keys, do nothing here.
+        if (!keyRings.hasNext()) {
+            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
+        }
+
+        boolean cancelled = false;
+        int position = 0;
+        double progSteps = 100.0 / num;
+
+        boolean inBulkTransaction = false;
+        // keyrings handled within the open bulk transaction, counted only once it is committed
+        ArrayList<FetchedKeyRing> uncommitted = new ArrayList<>();
+        ImportCounts counts = new ImportCounts();
+
+        long fetchTime = 0, canonicalizeTime = 0, saveTime = 0;
+
+        try {
+            // iterate over all entries
+            while (keyRings.hasNext()) {
+
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
                 }
 
-                // never import secret keys from keyserver!
-                if (entry.mBytes == null && key.isSecret()) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                    badKeys += 1;
-                    continue;
+                // don't keep the database locked while waiting for the network
+                if (inBulkTransaction && !keyRings.isNextReady()) {
+                    mProviderHelper.endBulkTransaction(true);
+                    inBulkTransaction = false;
+                    counts.addAll(uncommitted, log);
                 }
 
-                SaveKeyringResult result;
-                // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
-                // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mProviderHelper) {
-                    mProviderHelper.clearLog();
-                    if (key.isSecret()) {
-                        result = mProviderHelper.saveSecretKeyRing(key,
-                                new ProgressScaler(progressable, (int) (position * progSteps),
-                                        (int) ((position + 1) * progSteps), 100));
-                    } else {
-                        result = mProviderHelper.savePublicKeyRing(key,
-                                new ProgressScaler(progressable, (int) (position * progSteps),
-                                        (int) ((position + 1) * progSteps), 100), entry.mExpectedFingerprint);
-                    }
+                FetchedKeyRing fetched = keyRings.next();
+                if (fetched == null) {
+                    // only happens if we were interrupted while waiting
+                    cancelled = true;
+                    break;
                 }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else {
-                    if (result.updated()) {
-                        updatedKeys += 1;
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    } else {
-                        newKeys += 1;
-                        if (key.isSecret()) {
-                            secret += 1;
-                        }
-                        importedMasterKeyIds.add(key.getMasterKeyId());
+
+                fetched.mPosition = position++;
+                fetchTime += fetched.mFetchTime;
+                canonicalizeTime += fetched.mCanonicalizeTime;
+
+                if (fetched.mKey != null || fetched.mUnchanged) {
+                    if (bulkChunkSize > 0 && !inBulkTransaction && mProviderHelper.supportsTransactions()) {
+                        mProviderHelper.startBulkTransaction();
+                        inBulkTransaction = true;
                     }
-                    if (entry.mBytes == null) {
-                        // synonymous to isDownloadFromKeyserver.
-                        // If no byte data was supplied, import from keyserver took place
-                        // this prevents file imports being noted as keyserver imports
-                        mProviderHelper.renewKeyLastUpdatedTime(key.getMasterKeyId(),
-                                GregorianCalendar.getInstance().getTimeInMillis(),
-                                TimeUnit.MILLISECONDS);
+
+                    long startTime = System.currentTimeMillis();
+                    saveKeyRing(fetched, progressable, progSteps);
+                    if (inBulkTransaction && !fetched.isSaved()) {
+                        // The failed keyring's own transaction was rolled back, but that dooms
+                        // the bulk transaction as well. Roll it back, and commit the keyrings
+                        // before the failed one again. The next chunk starts after it.
+                        mProviderHelper.endBulkTransaction(false);
+                        inBulkTransaction = false;
+                        saveKeyRingsAgain(uncommitted, progressable, progSteps);
                     }
+                    saveTime += System.currentTimeMillis() - startTime;
                 }
 
-                log.add(result, 2);
-            } catch (IOException | PgpGeneralException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+                uncommitted.add(fetched);
+
+                // commit after each full chunk
+                if (inBulkTransaction && uncommitted.size() >= bulkChunkSize) {
+                    mProviderHelper.endBulkTransaction(true);
+                    inBulkTransaction = false;
+                }
+                if (!inBulkTransaction) {
+                    counts.addAll(uncommitted, log);
+                }
+            }
+
+            if (inBulkTransaction) {
+                mProviderHelper.endBulkTransaction(true);
+                inBulkTransaction = false;
+            }
+            counts.addAll(uncommitted, log);
+        } finally {
+            // still open only if an exception was thrown, the whole chunk is rolled back then
+            if (inBulkTransaction) {
+                mProviderHelper.endBulkTransaction(false);
             }
-            // update progress
-            position++;
         }
 
+        int newKeys = counts.mNewKeys, updatedKeys = counts.mUpdatedKeys, badKeys = counts.mBadKeys,
+                secret = counts.mSecret;
+        ArrayList<Long> importedMasterKeyIds = counts.mImportedMasterKeyIds;
+        ArrayList<Long> importedSecretMasterKeyIds = counts.mImportedSecretMasterKeyIds;
+
+        log.add(LogType.MSG_IMPORT_TIMING, 1,
+                Long.toString(fetchTime), Long.toString(canonicalizeTime), Long.toString(saveTime));
+
         // Special: consolidate on secret key import (cannot be cancelled!)
+        // only keyrings certified by the imported secret keys can be affected by it.
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
         // and re-inserts keys, which could conflict with a parallel db key update
-        if (secret > 0) {
+        if (!importedSecretMasterKeyIds.isEmpty()) {
             setPreventCancel();
+            long[] secretMasterKeyIds = new long[importedSecretMasterKeyIds.size()];
+            for (int i = 0; i < secretMasterKeyIds.length; i++) {
+                secretMasterKeyIds[i] = importedSecretMasterKeyIds.get(i);
+            }
             ConsolidateResult result;
             synchronized (mProviderHelper) {
-                result = mProviderHelper.consolidateDatabaseStep1(progressable);
+                result = mProviderHelper.consolidateKeyRingsCertifiedBy(secretMasterKeyIds, progressable);
             }
             log.add(result, 1);
         }
@@ -421,6 +601,91 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 importedMasterKeyIdsArray);
     }
 
+    /**
+     * Saves keyrings whose bulk transaction was rolled back, together in a new bulk transaction.
+     * If one of them fails this time, the ones around it are saved again the same way.
+     */
+    private void saveKeyRingsAgain(List<FetchedKeyRing> keyRings, Progressable progressable,
+                                   double progSteps) {
+        if (keyRings.isEmpty()) {
+            return;
+        }
+
+        int failed = -1;
+        boolean completed = false;
+        mProviderHelper.startBulkTransaction();
+        try {
+            for (int i = 0; i < keyRings.size() && failed < 0; i++) {
+                FetchedKeyRing fetched = keyRings.get(i);
+                if (fetched.mKey != null || fetched.mUnchanged) {
+                    saveKeyRing(fetched, progressable, progSteps);
+                    if (!fetched.isSaved()) {
+                        failed = i;
+                    }
+                }
+            }
+            completed = true;
+        } finally {
+            mProviderHelper.endBulkTransaction(completed && failed < 0);
+        }
+
+        if (failed >= 0) {
+            saveKeyRingsAgain(keyRings.subList(0, failed), progressable, progSteps);
+            saveKeyRingsAgain(keyRings.subList(failed + 1, keyRings.size()), progressable, progSteps);
+        }
+    }
+
+    /**
+     * Saves a single fetched keyring within a transaction of its own, which is nested into the
+     * open bulk transaction if there is one. The result is stored in the FetchedKeyRing.
+     */
+    private void saveKeyRing(FetchedKeyRing fetched, Progressable progressable, double progSteps) {
+        ParcelableKeyRing entry = fetched.mEntry;
+        UncachedKeyRing key = fetched.mKey;
+        ProgressScaler progress = new ProgressScaler(progressable, (int) (fetched.mPosition * progSteps),
+                (int) ((fetched.mPosition + 1) * progSteps), 100);
+
+        // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+        // and https://github.com/open-keychain/open-keychain/issues/1480
+        synchronized (mProviderHelper) {
+            boolean successful = false;
+            mProviderHelper.startBulkTransaction();
+            try {
+                if (fetched.mUnchanged) {
+                    // nothing new to merge, only remember that the keyring is up to date
+                    mProviderHelper.renewKeyLastUpdatedTime(fetched.getMasterKeyId(),
+                            GregorianCalendar.getInstance().getTimeInMillis(), TimeUnit.MILLISECONDS,
+                            fetched.mUpdateState);
+                    successful = true;
+                    return;
+                }
+
+                mProviderHelper.clearLog();
+                if (key.isSecret()) {
+                    fetched.mResult = mProviderHelper.saveSecretKeyRing(key,
+                            (CanonicalizedSecretKeyRing) fetched.mCanonicalized,
+                            fetched.mCanonicalizeLog, progress);
+                } else {
+                    fetched.mResult = mProviderHelper.savePublicKeyRing(key,
+                            (CanonicalizedPublicKeyRing) fetched.mCanonicalized,
+                            fetched.mCanonicalizeLog, progress, entry.mExpectedFingerprint);
+                }
+                successful = fetched.mResult.success();
+
+                if (successful && entry.mBytes == null) {
+                    // synonymous to isDownloadFromKeyserver.
+                    // If no byte data was supplied, import from keyserver took place
+                    // this prevents file imports being noted as keyserver imports
+                    mProviderHelper.renewKeyLastUpdatedTime(key.getMasterKeyId(),
+                            GregorianCalendar.getInstance().getTimeInMillis(),
+                            TimeUnit.MILLISECONDS, fetched.mUpdateState);
+                }
+            } finally {
+                mProviderHelper.endBulkTransaction(successful);
+            }
+        }
+    }
+
     @NonNull
     @Override
     public ImportKeyResult execute(ImportKeyringParcel importInput, CryptoInputParcel cryptoInput) {
@@ -433,192 +698,290 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(mContext,
                     "key_import.pcl");
 
-            result = serialKeyRingImport(cache, null, null);
+            // load trusted keys for certificate verification once for the whole import
+            mProviderHelper.startImportSession();
+            try {
+                result = serialKeyRingImport(cache, null, null);
+            } finally {
+                mProviderHelper.endImportSession();
+            }
         } else {
-            Proxy proxy;
-            if (cryptoInput.getParcelableProxy() == null) {
-                // explicit proxy not set
-                if(!OrbotHelper.isOrbotInRequiredState(mContext)) {
-                    // show dialog to enable/install dialog
-                    return new ImportKeyResult(null,
-                            RequiredInputParcel.createOrbotRequiredOperation(), cryptoInput);
-                }
-                proxy = Preferences.getPreferences(mContext).getProxyPrefs().getProxy();
-            } else {
-                proxy = cryptoInput.getParcelableProxy().getProxy();
+            return execute(keyList.iterator(), keyList.size(), keyServer, cryptoInput);
+        }
+
+        ContactSyncAdapterService.requestContactsSync();
+        return result;
+    }
+
+    /**
+     * Imports the given entries like execute(ImportKeyringParcel, CryptoInputParcel) does for a
+     * key list. Entries are only taken from the iterator shortly before they are fetched, so they
+     * can be read from a Cursor while the import runs.
+     *
+     * @param num number of entries, used for progress
+     */
+    @NonNull
+    public ImportKeyResult execute(Iterator<ParcelableKeyRing> entries, int num, String keyServer,
+                                   CryptoInputParcel cryptoInput) {
+        ImportKeyResult result;
+        Proxy proxy;
+        if (cryptoInput.getParcelableProxy() == null) {
+            // explicit proxy not set
+            if(!OrbotHelper.isOrbotInRequiredState(mContext)) {
+                // show dialog to enable/install dialog
+                return new ImportKeyResult(null,
+                        RequiredInputParcel.createOrbotRequiredOperation(), cryptoInput);
             }
+            proxy = Preferences.getPreferences(mContext).getProxyPrefs().getProxy();
+        } else {
+            proxy = cryptoInput.getParcelableProxy().getProxy();
+        }
 
-            result = multiThreadedKeyImport(keyList.iterator(), keyList.size(), keyServer, proxy);
+        if (keyServer != null) {
+            mKeyUpdateStates = mProviderHelper.getKeyUpdateStates();
+        }
+
+        // the session state is only accessed while synchronized on mProviderHelper
+        synchronized (mProviderHelper) {
+            mProviderHelper.startImportSession();
+        }
+        try {
+            result = multiThreadedKeyImport(entries, num, keyServer, proxy);
+        } finally {
+            synchronized (mProviderHelper) {
+                mProviderHelper.endImportSession();
+            }
         }
 
         ContactSyncAdapterService.requestContactsSync();
         return result;
     }
 
+    /**
+     * Imports keyrings in a pipeline: keyrings are fetched and canonicalized on a pool of worker
+     * threads, while the calling thread is the single writer which saves them into the database
+     * in the order they become available. Workers block once IMPORT_QUEUE_SIZE_PER_THREAD
+     * keyrings per thread are waiting to be saved, so fetching never runs too far ahead of
+     * the database. Entries are taken from the iterator only as they can be fetched.
+     */
     @NonNull
-    private ImportKeyResult multiThreadedKeyImport(@NonNull Iterator<ParcelableKeyRing> keyListIterator,
+    private ImportKeyResult multiThreadedKeyImport(@NonNull final Iterator<ParcelableKeyRing> keyListIterator,
                                                    int totKeys, final String keyServer,
                                                    final Proxy proxy) {
         Log.d(Constants.TAG, "Multi-threaded key import starting");
-        KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-
-        final ProgressScaler ignoreProgressable = new ProgressScaler();
-
-        ExecutorService importExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
 
-        ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                new ExecutorCompletionService<>(importExecutor);
+        final ThreadPoolExecutor importExecutor = new ThreadPoolExecutor(mMaxThreads, mMaxThreads,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        importExecutor.allowCoreThreadTimeOut(true);
 
-        while (keyListIterator.hasNext()) { // submit all key rings to be imported
+        final BlockingQueue<FetchedKeyRing> fetchedQueue =
+                new ArrayBlockingQueue<>(IMPORT_QUEUE_SIZE_PER_THREAD * mMaxThreads);
 
-            final ParcelableKeyRing pkRing = keyListIterator.next();
-
-            Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                    () {
-
-                @Override
-                public ImportKeyResult call() {
+        // each fetching thread reuses its keyserver instances for all keyrings it fetches
+        final ThreadLocal<KeyserverClients> threadClients = new ThreadLocal<KeyserverClients>() {
+            @Override
+            protected KeyserverClients initialValue() {
+                return new KeyserverClients(proxy);
+            }
+        };
+        final AtomicInteger fetchCount = new AtomicInteger();
+        final Random random = new Random();
+
+        // enough entries to keep all threads busy while the queue is full
+        final int maxInFlight = fetchedQueue.remainingCapacity() + mMaxThreads;
+
+        KeyRingSource source = new KeyRingSource() {
+            int mSubmitted = 0;
+            int mTaken = 0;
+
+            /** Submits entries to be fetched, but only as many as can be in flight at once. */
+            private void submitEntries() {
+                while (mSubmitted - mTaken < maxInFlight && keyListIterator.hasNext()) {
+                    submitEntry(keyListIterator.next());
+                    mSubmitted += 1;
+                }
+            }
 
-                    if (checkCancelled()) {
-                        return null;
+            private void submitEntry(final ParcelableKeyRing pkRing) {
+                importExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFetchSpacingMillis > 0 && fetchCount.getAndIncrement() > 0) {
+                            long waitTime = mFetchSpacingMillis + (long) (random.nextDouble() * mFetchJitterMillis);
+                            Log.d(Constants.TAG, "Fetching key " + pkRing.mExpectedFingerprint
+                                    + " after a wait time of " + waitTime + "ms");
+                            try {
+                                Thread.sleep(waitTime);
+                            } catch (InterruptedException e) {
+                                // we were shut down, nobody is waiting for this anymore
+                                return;
+                            }
+                        }
+                        // the writer waits for one keyring per entry, so something is handed over
+                        // no matter how fetching ends. if we were cancelled, the writer notices
+                        // this itself, it just mustn't be kept waiting
+                        FetchedKeyRing fetched = new FetchedKeyRing(pkRing);
+                        try {
+                            if (!checkCancelled()) {
+                                fetched = fetchKeyRing(pkRing, keyServer, threadClients.get());
+                            }
+                        } catch (RuntimeException e) {
+                            Log.e(Constants.TAG, "A key could not be fetched during " +
+                                    "multi-threaded import", e);
+                        } finally {
+                            try {
+                                fetchedQueue.put(fetched);
+                            } catch (InterruptedException e) {
+                                // the writer is gone, nothing left to do
+                            }
+                        }
                     }
+                });
+            }
 
-                    ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                    list.add(pkRing);
+            @Override
+            public boolean hasNext() {
+                submitEntries();
+                return mTaken < mSubmitted;
+            }
 
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable, proxy);
+            @Override
+            public FetchedKeyRing next() {
+                mTaken += 1;
+                try {
+                    // fetching may take a while, so keep an eye on cancellation while waiting
+                    FetchedKeyRing fetched;
+                    while ((fetched = fetchedQueue.poll(1, TimeUnit.SECONDS)) == null) {
+                        if (checkCancelled()) {
+                            return null;
+                        }
+                    }
+                    return fetched;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
                 }
-            };
-
-            importCompletionService.submit(importOperationCallable);
-        }
+            }
 
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
-            try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                        "import", e);
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException();
-                }
+            @Override
+            boolean isNextReady() {
+                return !fetchedQueue.isEmpty();
             }
+        };
+
+        try {
+            return saveKeyRings(source, totKeys, mProgressable, mBulkChunkSize);
+        } finally {
+            // on cancellation, this also releases workers blocked on the full queue
+            importExecutor.shutdownNow();
         }
-        return accumulator.getConsolidatedResult();
 
     }
 
-    /**
-     * Used to accumulate the results of individual key imports
-     */
-    public static class KeyImportAccumulator {
-        private OperationResult.OperationLog mImportLog = new OperationResult.OperationLog();
-        Progressable mProgressable;
-        private int mTotalKeys;
-        private int mImportedKeys = 0;
-        ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
-        private int mBadKeys = 0;
-        private int mNewKeys = 0;
-        private int mUpdatedKeys = 0;
-        private int mSecret = 0;
-        private int mResultType = 0;
-        private boolean mHasCancelledResult;
-
-        /**
-         * Accumulates keyring imports and updates the progressable whenever a new key is imported.
-         * Also sets the progress to 0 on instantiation.
-         *
-         * @param totalKeys            total number of keys to be imported
-         * @param externalProgressable the external progressable to be updated every time a key
-         *                             is imported
-         */
-        public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
-            mTotalKeys = totalKeys;
-            mProgressable = externalProgressable;
-            if (mProgressable != null) {
-                mProgressable.setProgress(0, totalKeys);
-            }
-        }
+    /** A keyring on its way from the fetch stage to the writer, along with its log. */
+    private static class FetchedKeyRing {
+        final ParcelableKeyRing mEntry;
+        final OperationLog mLog = new OperationLog();
 
-        public void accumulateKeyImport(ImportKeyResult result) {
-            mImportedKeys++;
+        // null if the keyring could not be retrieved, the reason is in mLog
+        UncachedKeyRing mKey;
+        // null if canonicalization failed, ProviderHelper will try again after merging
+        CanonicalizedKeyRing mCanonicalized;
+        OperationLog mCanonicalizeLog;
 
-            if (result == null) {
-                return;
-            }
+        // true if the keyserver data was already merged before, mKey is null in that case
+        boolean mUnchanged;
+        // state of the keyserver data, to be recorded once it is merged
+        KeyUpdateState mUpdateState;
 
-            if (mProgressable != null) {
-                mProgressable.setProgress(mImportedKeys, mTotalKeys);
-            }
+        long mFetchTime;
+        long mCanonicalizeTime;
 
-            boolean notCancelledOrFirstCancelled = !result.cancelled() || !mHasCancelledResult;
-            if (notCancelledOrFirstCancelled) {
-                mImportLog.addAll(result.getLog().toList()); //accumulates log
-                if (result.cancelled()) {
-                    mHasCancelledResult = true;
-                }
-            }
+        // set by the writer, mResult stays null if the keyring wasn't saved
+        int mPosition;
+        SaveKeyringResult mResult;
 
-            mBadKeys += result.mBadKeys;
-            mNewKeys += result.mNewKeys;
-            mUpdatedKeys += result.mUpdatedKeys;
-            mSecret += result.mSecret;
+        FetchedKeyRing(ParcelableKeyRing entry) {
+            mEntry = entry;
+        }
 
-            long[] masterKeyIds = result.getImportedMasterKeyIds();
-            for (long masterKeyId : masterKeyIds) {
-                mImportedMasterKeyIds.add(masterKeyId);
+        long getMasterKeyId() {
+            if (mKey != null) {
+                return mKey.getMasterKeyId();
             }
+            return KeyFormattingUtils.convertFingerprintToKeyId(Hex.decode(mEntry.mExpectedFingerprint));
+        }
 
-            // if any key import has been cancelled, set result type to cancelled
-            // resultType is added to in getConsolidatedKayImport to account for remaining factors
-            mResultType |= result.getResult() & ImportKeyResult.RESULT_CANCELLED;
+        boolean isSaved() {
+            return mUnchanged || mResult != null && mResult.success();
         }
+    }
 
-        /**
-         * returns accumulated result of all imports so far
-         */
-        public ImportKeyResult getConsolidatedResult() {
-
-            // adding required information to mResultType
-            // special case,no keys requested for import
-            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0
-                    && (mResultType & ImportKeyResult.RESULT_CANCELLED)
-                    != ImportKeyResult.RESULT_CANCELLED) {
-                mResultType = ImportKeyResult.RESULT_FAIL_NOTHING;
-            } else {
-                if (mNewKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
+    /** Counts the keyrings of an import, once the transaction they were saved in is committed. */
+    private static class ImportCounts {
+        int mNewKeys, mUpdatedKeys, mBadKeys, mSecret;
+        final ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
+        final ArrayList<Long> mImportedSecretMasterKeyIds = new ArrayList<>();
+
+        /** Counts the given keyrings and adds their logs, then clears the list. */
+        void addAll(ArrayList<FetchedKeyRing> committed, OperationLog log) {
+            for (FetchedKeyRing fetched : committed) {
+                log.addAll(fetched.mLog.toList());
+
+                if (fetched.mUnchanged) {
+                    mUpdatedKeys += 1;
+                    mImportedMasterKeyIds.add(fetched.getMasterKeyId());
+                    continue;
                 }
-                if (mUpdatedKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_UPDATED;
+                if (fetched.mResult == null) {
+                    // the keyring could not be retrieved, the reason is in its log
+                    mBadKeys += 1;
+                    continue;
                 }
-                if (mBadKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                    if (mNewKeys == 0 && mUpdatedKeys == 0) {
-                        mResultType |= ImportKeyResult.RESULT_ERROR;
+
+                log.add(fetched.mResult, 2);
+                if (!fetched.mResult.success()) {
+                    mBadKeys += 1;
+                    continue;
+                }
+
+                boolean isSecret = fetched.mKey.isSecret();
+                if (fetched.mResult.updated()) {
+                    mUpdatedKeys += 1;
+                } else {
+                    mNewKeys += 1;
+                    if (isSecret) {
+                        mSecret += 1;
                     }
                 }
-                if (mImportLog.containsWarnings()) {
-                    mResultType |= ImportKeyResult.RESULT_WARNINGS;
+                mImportedMasterKeyIds.add(fetched.getMasterKeyId());
+                if (isSecret) {
+                    mImportedSecretMasterKeyIds.add(fetched.getMasterKeyId());
                 }
             }
+            committed.clear();
+        }
+    }
 
-            long masterKeyIds[] = new long[mImportedMasterKeyIds.size()];
-            for (int i = 0; i < masterKeyIds.length; i++) {
-                masterKeyIds[i] = mImportedMasterKeyIds.get(i);
-            }
+    /** Keyserver instances which are reused for all keyrings fetched by the same thread. */
+    private static class KeyserverClients {
+        final Proxy mProxy;
+        HkpKeyserver mKeyServer;
+        KeybaseKeyserver mKeybaseServer;
+        FacebookKeyserver mFacebookServer;
 
-            return new ImportKeyResult(mResultType, mImportLog, mNewKeys, mUpdatedKeys, mBadKeys,
-                    mSecret, masterKeyIds);
+        KeyserverClients(Proxy proxy) {
+            mProxy = proxy;
         }
+    }
+
+    private static abstract class KeyRingSource implements Iterator<FetchedKeyRing> {
+        /** Returns false if next() may have to wait for a keyring to be fetched. */
+        abstract boolean isNextReady();
 
-        public boolean isImportFinished() {
-            return mTotalKeys == mImportedKeys;
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -0,0 +1,231 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
+import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** This operation runs an InputDataOperation for each of a number of inputs, on a bounded pool
+ * of worker threads.
+ *
+ * All inputs are processed with the same CryptoInputParcel. If any of them requires further
+ * input, like a passphrase, the others still run to completion, and the first pending result
+ * is returned once all are done. Pending results are handed to the InputDataResultListener as
+ * well, so the caller can retry just the inputs which are pending on the same input as the one
+ * returned, and keep the others for another round.
+ *
+ * The results of individual inputs are handed to the InputDataResultListener as soon as they
+ * are done, on the thread which called execute(). So is the progress of each input, which is
+ * collected from the workers and forwarded at most every PROGRESS_INTERVAL_MILLISECONDS.
+ * Cancellation applies to the whole batch: inputs which haven't started processing are skipped,
+ * and running ones stop at their next chunk of data.
+ */
+public class InputDataBatchOperation extends BaseOperation<InputDataBatchParcel> {
+
+    public static final int MAX_THREADS = 4;
+    public static final int PROGRESS_INTERVAL_MILLISECONDS = 200;
+
+    public interface InputDataResultListener {
+        void onInputDataResult(Uri inputUri, InputDataResult result);
+        void onInputDataProgress(Uri inputUri, String message, int progress, int max);
+    }
+
+    private final InputDataResultListener mListener;
+
+    public InputDataBatchOperation(Context context, ProviderHelper providerHelper, Progressable progressable,
+            AtomicBoolean cancelled, InputDataResultListener listener) {
+        super(context, providerHelper, progressable, cancelled);
+        mListener = listener;
+    }
+
+    @NonNull
+    @Override
+    public InputDataBatchResult execute(InputDataBatchParcel input, CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+
+        ArrayList<InputDataParcel> inputs = input.getInputs();
+        log.add(LogType.MSG_DATA_BATCH, 0, inputs.size());
+
+        int numThreads = Math.max(1, Math.min(inputs.size(),
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        CompletionService<InputDataResult> completionService = new ExecutorCompletionService<>(executor);
+
+        HashMap<Future<InputDataResult>, Uri> inputUris = new HashMap<>(inputs.size());
+        ArrayList<InputProgress> inputProgresses = new ArrayList<>(inputs.size());
+        for (final InputDataParcel inputData : inputs) {
+
+            final CryptoInputParcel taskCryptoInput = copyCryptoInput(cryptoInput);
+            final InputProgress inputProgress = new InputProgress(mContext, inputData.getInputUri());
+            Future<InputDataResult> future = completionService.submit(new Callable<InputDataResult>() {
+                @Override
+                public InputDataResult call() {
+                    if (checkCancelled()) {
+                        return null;
+                    }
+                    InputDataOperation op = new InputDataOperation(
+                            mContext, new ProviderHelper(mContext), inputProgress, mCancelled);
+                    return op.execute(inputData, taskCryptoInput);
+                }
+            });
+            inputUris.put(future, inputData.getInputUri());
+            inputProgresses.add(inputProgress);
+
+        }
+
+        InputDataResult pendingResult = null;
+        boolean cancelled = false;
+
+        try {
+            int done = 0;
+            while (done < inputs.size()) {
+                Future<InputDataResult> future =
+                        completionService.poll(PROGRESS_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+                // forward progress first, so it never arrives after the result of the same input
+                for (InputProgress inputProgress : inputProgresses) {
+                    inputProgress.forwardTo(mListener);
+                }
+                if (future == null) {
+                    continue;
+                }
+
+                done += 1;
+                InputDataResult result = future.get();
+                updateProgress(done, inputs.size());
+
+                if (result == null || result.cancelled()) {
+                    // skipped or stopped due to cancellation
+                    cancelled = true;
+                    continue;
+                }
+                // the first pending result is delivered first, before the ones it is compared to
+                if (result.isPending() && pendingResult == null) {
+                    pendingResult = result;
+                }
+
+                mListener.onInputDataResult(inputUris.get(future), result);
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "interrupted while waiting for input data results", e);
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } catch (ExecutionException e) {
+            // operations don't throw, so this is a bug
+            throw new AssertionError(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (cancelled) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new InputDataBatchResult(InputDataBatchResult.RESULT_CANCELLED, log);
+        }
+
+        if (pendingResult != null) {
+            log.add(LogType.MSG_DATA_BATCH_PENDING, 1);
+            return new InputDataBatchResult(log, pendingResult);
+        }
+
+        log.add(LogType.MSG_DATA_BATCH_OK, 1);
+        return new InputDataBatchResult(InputDataBatchResult.RESULT_OK, log);
+
+    }
+
+    /** Holds the latest progress of a single input. It is set by the worker thread, and forwarded
+     * to the listener by the thread which called execute(), since only that one may talk to the
+     * service's messenger.
+     */
+    private static class InputProgress implements Progressable {
+
+        private final Context mContext;
+        private final Uri mInputUri;
+
+        private String mMessage;
+        private int mProgress, mMax;
+        private boolean mChanged;
+
+        InputProgress(Context context, Uri inputUri) {
+            mContext = context;
+            mInputUri = inputUri;
+        }
+
+        @Override
+        public synchronized void setProgress(String message, int progress, int max) {
+            if (message != null) {
+                mMessage = message;
+            }
+            mProgress = progress;
+            mMax = max;
+            mChanged = true;
+        }
+
+        @Override
+        public void setProgress(int resourceId, int progress, int max) {
+            setProgress(mContext.getString(resourceId), progress, max);
+        }
+
+        @Override
+        public void setProgress(int progress, int max) {
+            setProgress(null, progress, max);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            // the batch stays cancellable as a whole
+        }
+
+        synchronized void forwardTo(InputDataResultListener listener) {
+            if (!mChanged) {
+                return;
+            }
+            mChanged = false;
+            listener.onInputDataProgress(mInputUri, mMessage, mProgress, mMax);
+        }
+
+    }
+
+    /** Decryption adds cached session keys to its CryptoInputParcel, so each worker gets its own copy. */
+    private static CryptoInputParcel copyCryptoInput(CryptoInputParcel cryptoInput) {
+        if (cryptoInput == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            cryptoInput.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CryptoInputParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -23,7 +23,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ClipDescription;
 import android.content.Context;
@@ -43,6 +46,7 @@ import org.apache.james.mime4j.stream.BodyDescriptor;
 import org.apache.james.mime4j.stream.Field;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.openintents.openpgp.OpenPgpMetadata;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -55,6 +59,7 @@ import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
+import org.sufficientlysecure.keychain.util.Log;
 
 
 /** This operation deals with input data, trying to determine its type as it goes.
@@ -66,15 +71,29 @@ import org.sufficientlysecure.keychain.util.CharsetVerifier;
  * - encrypted multipart/signed mime data
  * - multipart/signed mime data (WIP)
  *
+ * If data is decrypted and mime decoded, both happen in a single pass: the plaintext is fed
+ * into the mime parser while it is being decrypted, and each part is written to its own
+ * temporary file. The full plaintext is only kept until the parser finds the first part. If it
+ * is needed after that, which is rare, the data is decrypted again into a file.
+ *
  */
 public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
-    private final byte[] buf = new byte[256];
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Plaintext up to this size is kept in memory while it is mime parsed, larger plaintext is spooled to a file. */
+    private static final int SPOOL_MEMORY_LIMIT = 256 * 1024;
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
 
     public InputDataOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public InputDataOperation(Context context, ProviderHelper providerHelper, Progressable progressable,
+            AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
     Uri mSignedDataUri;
     DecryptVerifyResult mSignedDataResult;
 
@@ -82,6 +101,26 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
     @Override
     public InputDataResult execute(InputDataParcel input, final CryptoInputParcel cryptoInput) {
 
+        // if we decrypt and mime decode, we only keep the plaintext around until we know it isn't needed
+        PlaintextSpool plaintext = null;
+        if (input.getDecryptInput() != null && input.getMimeDecode()) {
+            plaintext = new PlaintextSpool(mContext);
+        }
+
+        try {
+            return executeInternal(input, cryptoInput, plaintext);
+        } finally {
+            if (plaintext != null) {
+                plaintext.discard();
+            }
+        }
+
+    }
+
+    @NonNull
+    private InputDataResult executeInternal(InputDataParcel input, CryptoInputParcel cryptoInput,
+            PlaintextSpool plaintext) {
+
         final OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_DATA, 0);
@@ -96,33 +135,84 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
             throw new AssertionError("no decryption or mime decoding, this is probably a bug");
         }
 
+        // the mime parser logs into its own log, which is merged once parsing is done
+        OperationLog mimeLog = new OperationLog();
+        ArrayList<Uri> outputUris = new ArrayList<>();
+        ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
+        // set by the mime parser once it writes output, from then on the plaintext is not spooled
+        AtomicBoolean mimeOutputStarted = new AtomicBoolean();
+        MimeStreamParser parser = createMimeParser(mimeLog, outputUris, metadatas, cryptoInput, mimeOutputStarted);
+
+        // exceptions of the mime parser, if it already ran during decryption
+        MimeException streamedMimeException = null;
+        IOException streamedIOException = null;
+        // true if the literal data header already told us this isn't mime data
+        boolean mimeSkippedByHeader = false;
+
         if (decryptInput != null) {
 
             log.add(LogType.MSG_DATA_OPENPGP, 1);
 
             PgpDecryptVerifyOperation op =
-                    new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable);
+                    new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable, mCancelled);
 
             decryptInput.setInputUri(input.getInputUri());
 
-            currentInputUri = TemporaryFileProvider.createFile(mContext);
-            decryptInput.setOutputUri(currentInputUri);
+            if (plaintext != null) {
+
+                // the plaintext is only written to a file later, if we need it
+                currentInputUri = null;
+
+                PlaintextTee out = new PlaintextTee(plaintext, new StreamingMimeParser(parser), mimeOutputStarted);
+                op.setLiteralDataListener(out);
+                try {
+                    decryptResult = op.execute(decryptInput, cryptoInput, out);
+                } finally {
+                    try {
+                        // this signals the end of data to the parser
+                        out.close();
+                    } catch (IOException e) {
+                        streamedIOException = e;
+                    }
+                    try {
+                        out.joinParser();
+                    } catch (MimeException e) {
+                        streamedMimeException = e;
+                    } catch (IOException e) {
+                        streamedIOException = e;
+                    }
+                }
+                mimeSkippedByHeader = out.isMimeParsingSkipped();
+
+            } else {
+
+                currentInputUri = TemporaryFileProvider.createFile(mContext);
+                decryptInput.setOutputUri(currentInputUri);
+
+                decryptResult = op.execute(decryptInput, cryptoInput);
+
+            }
 
-            decryptResult = op.execute(decryptInput, cryptoInput);
             if (decryptResult.isPending()) {
+                deleteTemporaryFiles(outputUris);
                 return new InputDataResult(log, decryptResult);
             }
             log.addByMerge(decryptResult, 1);
 
+            if (decryptResult.cancelled()) {
+                deleteTemporaryFiles(outputUris);
+                return new InputDataResult(InputDataResult.RESULT_CANCELLED, log);
+            }
+
             if ( ! decryptResult.success()) {
+                // integrity is only checked at the very end, so parts we may have parsed are not to be trusted
+                deleteTemporaryFiles(outputUris);
                 return new InputDataResult(InputDataResult.RESULT_ERROR, log);
             }
 
             // inform the storage provider about the mime type for this uri
-            if (decryptResult.getDecryptionMetadata() != null) {
-                OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
-                TemporaryFileProvider.setName(mContext, currentInputUri, meta.getFilename());
-                TemporaryFileProvider.setMimeType(mContext, currentInputUri, meta.getMimeType());
+            if (currentInputUri != null) {
+                setTemporaryFileMetadata(currentInputUri, decryptResult);
             }
 
         } else {
@@ -130,39 +220,126 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
         }
 
         // don't even attempt if we know the data isn't suitable for mime content, or if we have a filename
-        boolean skipMimeParsing = false;
+        boolean skipMimeParsing = mimeSkippedByHeader;
         if (decryptResult != null && decryptResult.getDecryptionMetadata() != null) {
             OpenPgpMetadata metadata = decryptResult.getDecryptionMetadata();
-            String fileName = metadata.getFilename();
-            String contentType = metadata.getMimeType();
-            if (!TextUtils.isEmpty(fileName)
-                    || contentType != null
-                        && !contentType.startsWith("multipart/")
-                        && !contentType.startsWith("text/")
-                        && !"application/octet-stream".equals(contentType)) {
+            if (!isMimeCandidate(metadata.getFilename(), metadata.getMimeType())) {
                 skipMimeParsing = true;
             }
         }
 
-        // If we aren't supposed to attempt mime decode after decryption, we are done here
-        if (skipMimeParsing || !input.getMimeDecode()) {
+        try {
+
+            // If we aren't supposed to attempt mime decode after decryption, we are done here
+            if (skipMimeParsing || !input.getMimeDecode()) {
+
+                log.add(LogType.MSG_DATA_SKIP_MIME, 1);
+
+                if (currentInputUri == null) {
+                    // the data was parsed while it was decrypted, but we don't want the result after all
+                    deleteTemporaryFiles(outputUris);
+                    currentInputUri = getPlaintextUri(plaintext, decryptResult, decryptInput, cryptoInput);
+                }
+
+                ArrayList<Uri> uris = new ArrayList<>();
+                uris.add(currentInputUri);
+                metadatas.clear();
+                metadatas.add(decryptResult.getDecryptionMetadata());
+
+                log.add(LogType.MSG_DATA_OK, 1);
+                return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, metadatas);
+
+            }
+
+            log.add(LogType.MSG_DATA_MIME, 1);
+
+            boolean mimeBad = false;
+            try {
+
+                if (currentInputUri != null) {
+                    // open current uri for input
+                    InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
+                    parser.parse(in);
+                } else if (streamedIOException != null) {
+                    throw streamedIOException;
+                } else if (streamedMimeException != null) {
+                    throw streamedMimeException;
+                }
+
+                if (mSignedDataUri != null) {
 
-            log.add(LogType.MSG_DATA_SKIP_MIME, 1);
+                    if (decryptResult != null) {
+                        decryptResult.setSignatureResult(mSignedDataResult.getSignatureResult());
+                    } else {
+                        decryptResult = mSignedDataResult;
+                    }
 
-            ArrayList<Uri> uris = new ArrayList<>();
-            uris.add(currentInputUri);
-            ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
-            metadatas.add(decryptResult.getDecryptionMetadata());
+                    // the actual content is the signed data now (and will be passed verbatim, if parsing fails)
+                    currentInputUri = mSignedDataUri;
+                    InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
+                    // reset signed data result, to indicate to the parser that it is in the inner part
+                    mSignedDataResult = null;
+                    parser.parse(in);
+
+                }
+            } catch (MimeException e) {
+                // a mime error likely means that this wasn't mime data, after all
+                e.printStackTrace();
+                mimeBad = true;
+            } finally {
+                log.addAll(mimeLog.toList());
+            }
+
+            if (mimeBad) {
+                log.add(LogType.MSG_DATA_MIME_BAD, 2);
+            }
+
+            // if we found data, return success
+            if (!outputUris.isEmpty()) {
+                log.add(LogType.MSG_DATA_MIME_OK, 2);
+
+                log.add(LogType.MSG_DATA_OK, 1);
+                return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
+            }
+
+            // if no mime data parsed, just return the raw data as fallback
+            log.add(LogType.MSG_DATA_MIME_NONE, 2);
+
+            if (currentInputUri == null) {
+                currentInputUri = getPlaintextUri(plaintext, decryptResult, decryptInput, cryptoInput);
+            }
+
+            OpenPgpMetadata metadata;
+            if (decryptResult != null) {
+                metadata = decryptResult.getDecryptionMetadata();
+            } else {
+                // if we neither decrypted nor mime-decoded, should this be treated as an error?
+                // either way, we know nothing about the data
+                metadata = new OpenPgpMetadata();
+            }
+
+            outputUris.add(currentInputUri);
+            metadatas.add(metadata);
 
             log.add(LogType.MSG_DATA_OK, 1);
-            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, metadatas);
+            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
 
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_DATA_ERROR_IO, 2);
+            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.add(LogType.MSG_DATA_ERROR_IO, 2);
+            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
         }
 
-        final MimeStreamParser parser = new MimeStreamParser((MimeConfig) null);
+    }
 
-        final ArrayList<Uri> outputUris = new ArrayList<>();
-        final ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
+    private MimeStreamParser createMimeParser(final OperationLog log, final ArrayList<Uri> outputUris,
+            final ArrayList<OpenPgpMetadata> metadatas, final CryptoInputParcel cryptoInput,
+            final AtomicBoolean outputStarted) {
+
+        final MimeStreamParser parser = new MimeStreamParser((MimeConfig) null);
 
         parser.setContentDecoding(true);
         parser.setRecurse();
@@ -199,6 +376,7 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 }
 
                 log.add(LogType.MSG_DATA_DETACHED_RAW, 3);
+                outputStarted.set(true);
 
                 uncheckedSignedDataUri = TemporaryFileProvider.createFile(mContext, mFilename, "text/plain");
                 OutputStream out = mContext.getContentResolver().openOutputStream(uncheckedSignedDataUri, "w");
@@ -306,6 +484,7 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 }
 
                 log.add(LogType.MSG_DATA_MIME_PART, 2);
+                outputStarted.set(true);
 
                 String mimeType = bd.getMimeType();
 
@@ -371,71 +550,304 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
         });
 
-        try {
+        return parser;
 
-            log.add(LogType.MSG_DATA_MIME, 1);
+    }
 
-            try {
+    /** Returns false if the filename or content type show that data isn't suitable for mime parsing. */
+    private static boolean isMimeCandidate(String fileName, String contentType) {
+        return TextUtils.isEmpty(fileName)
+                && (contentType == null
+                        || contentType.startsWith("multipart/")
+                        || contentType.startsWith("text/")
+                        || "application/octet-stream".equals(contentType));
+    }
 
-                // open current uri for input
-                InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
-                parser.parse(in);
+    private Uri getPlaintextUri(PlaintextSpool plaintext, DecryptVerifyResult decryptResult,
+            PgpDecryptVerifyInputParcel decryptInput, CryptoInputParcel cryptoInput) throws IOException {
+        Uri uri;
+        if (plaintext.isDiscarded()) {
+            uri = decryptToTemporaryFile(decryptInput, cryptoInput);
+        } else {
+            uri = plaintext.keep();
+        }
+        setTemporaryFileMetadata(uri, decryptResult);
+        return uri;
+    }
 
-                if (mSignedDataUri != null) {
+    /** Decrypts the input again, if the plaintext wasn't kept. The session key was cached in the
+     * CryptoInputParcel by the first pass, so this doesn't require any further input.
+     */
+    private Uri decryptToTemporaryFile(PgpDecryptVerifyInputParcel decryptInput, CryptoInputParcel cryptoInput)
+            throws IOException {
+        Uri uri = TemporaryFileProvider.createFile(mContext);
+        decryptInput.setOutputUri(uri);
+
+        PgpDecryptVerifyOperation op =
+                new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable, mCancelled);
+        DecryptVerifyResult result = op.execute(decryptInput, cryptoInput);
+        if (!result.success()) {
+            mContext.getContentResolver().delete(uri, null, null);
+            throw new IOException("error decrypting plaintext again");
+        }
+        return uri;
+    }
 
-                    if (decryptResult != null) {
-                        decryptResult.setSignatureResult(mSignedDataResult.getSignatureResult());
-                    } else {
-                        decryptResult = mSignedDataResult;
-                    }
+    private void setTemporaryFileMetadata(Uri uri, DecryptVerifyResult decryptResult) {
+        if (decryptResult.getDecryptionMetadata() != null) {
+            OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
+            TemporaryFileProvider.setName(mContext, uri, meta.getFilename());
+            TemporaryFileProvider.setMimeType(mContext, uri, meta.getMimeType());
+        }
+    }
 
-                    // the actual content is the signed data now (and will be passed verbatim, if parsing fails)
-                    currentInputUri = mSignedDataUri;
-                    in = mContext.getContentResolver().openInputStream(currentInputUri);
-                    // reset signed data result, to indicate to the parser that it is in the inner part
-                    mSignedDataResult = null;
-                    parser.parse(in);
+    private void deleteTemporaryFiles(ArrayList<Uri> uris) {
+        for (Uri uri : uris) {
+            mContext.getContentResolver().delete(uri, null, null);
+        }
+        uris.clear();
+    }
+
+    /** Runs a MimeStreamParser in a background thread, on the data written to getOutputStream().
+     *
+     * Once the parser is done, all remaining data is skipped, so writers never block on the pipe.
+     */
+    private static class StreamingMimeParser implements Runnable {
+
+        private final MimeStreamParser mParser;
+        private PipedInputStream mIn;
+        private PipedOutputStream mOut;
+        private Thread mThread;
+
+        private MimeException mMimeException;
+        private IOException mIOException;
+
+        StreamingMimeParser(MimeStreamParser parser) {
+            mParser = parser;
+        }
 
+        /** Starts parsing in a background thread, which reads from getOutputStream(). */
+        void start() throws IOException {
+            mIn = new PipedInputStream(BUFFER_SIZE);
+            mOut = new PipedOutputStream(mIn) {
+                @Override
+                public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                    super.write(b, off, len);
+                    // wakes up the reader right away, rather than after its polling interval
+                    flush();
                 }
+            };
+            mThread = new Thread(this);
+            mThread.start();
+        }
+
+        boolean isStarted() {
+            return mThread != null;
+        }
+
+        OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mParser.parse(mIn);
             } catch (MimeException e) {
-                // a mime error likely means that this wasn't mime data, after all
-                e.printStackTrace();
-                log.add(LogType.MSG_DATA_MIME_BAD, 2);
+                mMimeException = e;
+            } catch (IOException e) {
+                mIOException = e;
             }
 
-            // if we found data, return success
-            if (!outputUris.isEmpty()) {
-                log.add(LogType.MSG_DATA_MIME_OK, 2);
+            try {
+                byte[] skipBuf = new byte[BUFFER_SIZE];
+                // noinspection StatementWithEmptyBody
+                while (mIn.read(skipBuf) >= 0) {
+                }
+                mIn.close();
+            } catch (IOException e) {
+                // the writer will notice the dead reader on its next write
+                Log.e(Constants.TAG, "error skipping remaining mime data", e);
+            }
+        }
 
-                log.add(LogType.MSG_DATA_OK, 1);
-                return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
+        /** Waits for the parser to finish, if it was started. The output stream must have been closed before. */
+        void join() throws MimeException, IOException {
+            if (mThread == null) {
+                return;
+            }
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                mThread.interrupt();
+                throw new IOException("interrupted while waiting for mime parser", e);
             }
+            if (mMimeException != null) {
+                throw mMimeException;
+            }
+            if (mIOException != null) {
+                throw mIOException;
+            }
+        }
 
-            // if no mime data parsed, just return the raw data as fallback
-            log.add(LogType.MSG_DATA_MIME_NONE, 2);
+    }
 
-            OpenPgpMetadata metadata;
-            if (decryptResult != null) {
-                metadata = decryptResult.getDecryptionMetadata();
+    /** An OutputStream which writes the plaintext to a PlaintextSpool and, unless the literal data
+     * header shows that it isn't mime data, into a StreamingMimeParser. The parser is only started
+     * with the first write, when the header is known. Once the parser has started writing output,
+     * the spool is discarded, so large plaintext isn't written to a file in addition to its parts.
+     */
+    private static class PlaintextTee extends OutputStream
+            implements PgpDecryptVerifyOperation.LiteralDataListener {
+
+        private final PlaintextSpool mPlaintext;
+        private final StreamingMimeParser mStreamingParser;
+        private final AtomicBoolean mMimeOutputStarted;
+
+        private boolean mSkipMimeParsing;
+        private boolean mWritten;
+
+        PlaintextTee(PlaintextSpool plaintext, StreamingMimeParser streamingParser,
+                AtomicBoolean mimeOutputStarted) {
+            mPlaintext = plaintext;
+            mStreamingParser = streamingParser;
+            mMimeOutputStarted = mimeOutputStarted;
+        }
+
+        @Override
+        public void onLiteralData(String filename, String mimeType) {
+            mSkipMimeParsing = !isMimeCandidate(filename, mimeType);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (!mWritten) {
+                mWritten = true;
+                if (!mSkipMimeParsing) {
+                    mStreamingParser.start();
+                }
+            }
+            // the spool is only touched from this thread, the parser just tells us when to stop
+            if (!mPlaintext.isDiscarded() && mMimeOutputStarted.get()) {
+                mPlaintext.discard();
+            }
+            if (!mPlaintext.isDiscarded()) {
+                mPlaintext.write(b, off, len);
+            }
+            if (mStreamingParser.isStarted()) {
+                mStreamingParser.getOutputStream().write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mPlaintext.close();
+            } finally {
+                if (mStreamingParser.isStarted()) {
+                    mStreamingParser.getOutputStream().close();
+                }
+            }
+        }
+
+        void joinParser() throws MimeException, IOException {
+            mStreamingParser.join();
+        }
+
+        boolean isMimeParsingSkipped() {
+            return mSkipMimeParsing;
+        }
+
+    }
+
+    /** An OutputStream which holds data in memory up to SPOOL_MEMORY_LIMIT bytes, and spools it to a
+     * temporary file beyond that. If the data isn't kept, the file is deleted again by discard().
+     */
+    private static class PlaintextSpool extends OutputStream {
+
+        private final Context mContext;
+
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+        private Uri mFileUri;
+        private OutputStream mFileOut;
+        private boolean mKeep;
+        private boolean mDiscarded;
+
+        PlaintextSpool(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mFileOut == null && mBuffer.size() + len > SPOOL_MEMORY_LIMIT) {
+                spill();
+            }
+            if (mFileOut != null) {
+                mFileOut.write(b, off, len);
             } else {
-                // if we neither decrypted nor mime-decoded, should this be treated as an error?
-                // either way, we know nothing about the data
-                metadata = new OpenPgpMetadata();
+                mBuffer.write(b, off, len);
             }
+        }
 
-            outputUris.add(currentInputUri);
-            metadatas.add(metadata);
+        private void spill() throws IOException {
+            mFileUri = TemporaryFileProvider.createFile(mContext);
+            mFileOut = mContext.getContentResolver().openOutputStream(mFileUri, "w");
+            if (mFileOut == null) {
+                throw new IOException("Error getting file for writing!");
+            }
+            mBuffer.writeTo(mFileOut);
+            mBuffer = null;
+        }
 
-            log.add(LogType.MSG_DATA_OK, 1);
-            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
+        @Override
+        public void close() throws IOException {
+            if (mFileOut != null && !mDiscarded) {
+                mFileOut.close();
+            }
+        }
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_DATA_ERROR_IO, 2);
-            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.add(LogType.MSG_DATA_ERROR_IO, 2);
-            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        /** Returns the uri of a temporary file which contains all data, and keeps it from being discarded.
+         * This must only be called after all data was written.
+         */
+        Uri keep() throws IOException {
+            if (mFileOut == null) {
+                spill();
+            }
+            mFileOut.close();
+            mKeep = true;
+            return mFileUri;
+        }
+
+        /** Drops all data, and deletes the temporary file unless it was kept. */
+        void discard() {
+            mBuffer = null;
+            if (mDiscarded || mKeep) {
+                return;
+            }
+            mDiscarded = true;
+            if (mFileUri == null) {
+                return;
+            }
+            try {
+                mFileOut.close();
+            } catch (IOException e) {
+                // ignore, we're deleting the file anyways
+            }
+            mContext.getContentResolver().delete(mFileUri, null, null);
+        }
+
+        boolean isDiscarded() {
+            return mDiscarded;
         }
 
     }
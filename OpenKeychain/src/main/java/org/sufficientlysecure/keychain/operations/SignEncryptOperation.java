@@ -18,8 +18,11 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
 import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -30,6 +33,7 @@ import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.PreparedKeys;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
@@ -43,6 +47,14 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -52,9 +64,19 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
+ * <p/>
+ * Keys are resolved and unlocked only once. Multiple input URIs are signed and/or
+ * encrypted concurrently, on up to MAX_THREADS worker threads. If one of them fails or
+ * the operation is cancelled, the others are stopped, and the outputs of all inputs
+ * from that one on are deleted.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    public static final int MAX_THREADS = 4;
+
+    private static final long CANCEL_POLL_INTERVAL_MILLIS = 200;
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
     public SignEncryptOperation(Context context, ProviderHelper providerHelper,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -90,24 +112,93 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
-        do {
+        // resolve and unlock keys only once, rather than for each input
+        PgpSignEncryptOperation keyOp = new PgpSignEncryptOperation(mContext, mProviderHelper, null, mCancelled);
+        PreparedKeys keys = keyOp.prepareKeys(data, cryptoInput, log, 1);
+        PgpSignEncryptResult keysResult = keys.getResult();
+        if (keysResult != null) {
+            if (keysResult.isPending()) {
+                return new SignEncryptResult(log, keysResult.getRequiredInputParcel(), results, cryptoInput);
+            }
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        if (inputBytes != null || total == 1) {
             if (checkCancelled()) {
                 log.add(LogType.MSG_OPERATION_CANCELLED, 0);
                 return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
             }
 
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
-                    new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
-            PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel(input.getData());
-            if (inputBytes != null) {
-                inputParcel.setInputBytes(inputBytes);
-            } else {
-                inputParcel.setInputUri(inputUris.removeFirst());
+                    new ProgressScaler(mProgressable, 0, 100, 100), mCancelled);
+            op.setPreparedKeys(keys);
+            PgpSignEncryptInputParcel inputParcel = createInputParcel(input, inputUris, outputUris);
+            results.add(op.execute(inputParcel, cryptoInput));
+        } else {
+            // sign/encrypt multiple inputs concurrently, sharing the prepared keys
+            int numThreads = Math.min(total, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+                    30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>(total);
+            ArrayList<Uri> taskOutputUris = new ArrayList<>(total);
+            // workers stop when we are cancelled, and when one of them fails
+            final AtomicBoolean workersCancelled = new AtomicBoolean();
+            // outputs of this and all later inputs are incomplete if we stop early
+            int firstIncomplete = 0;
+
+            try {
+                while (!inputUris.isEmpty()) {
+                    final PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext,
+                            new ProviderHelper(mContext), null, workersCancelled);
+                    op.setPreparedKeys(keys);
+                    final PgpSignEncryptInputParcel inputParcel = createInputParcel(input, inputUris, outputUris);
+                    final CryptoInputParcel taskCryptoInput = cryptoInput;
+                    taskOutputUris.add(inputParcel.getOutputUri());
+                    futures.add(executor.submit(new Callable<PgpSignEncryptResult>() {
+                        @Override
+                        public PgpSignEncryptResult call() {
+                            if (workersCancelled.get()) {
+                                return null;
+                            }
+                            return op.execute(inputParcel, taskCryptoInput);
+                        }
+                    }));
+                }
+
+                // results are collected in order of the inputs
+                for (Future<PgpSignEncryptResult> future : futures) {
+                    PgpSignEncryptResult result = waitForResult(future, workersCancelled);
+                    updateProgress(++count, total);
+                    if (result == null || result.cancelled()) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                        return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                    }
+                    results.add(result);
+                    // fail fast, without waiting for the remaining inputs
+                    if (!result.isPending() && !result.success()) {
+                        break;
+                    }
+                    firstIncomplete += 1;
+                }
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "interrupted while waiting for sign/encrypt results", e);
+                Thread.currentThread().interrupt();
+                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+            } catch (ExecutionException e) {
+                // operations don't throw, so this is a bug
+                throw new AssertionError(e.getCause());
+            } finally {
+                if (firstIncomplete < futures.size()) {
+                    workersCancelled.set(true);
+                    stopAndDeleteOutputs(executor, taskOutputUris.subList(firstIncomplete, futures.size()));
+                } else {
+                    executor.shutdownNow();
+                }
             }
-            inputParcel.setOutputUri(outputUris.pollFirst());
+        }
 
-            PgpSignEncryptResult result = op.execute(inputParcel, cryptoInput);
-            results.add(result);
+        for (PgpSignEncryptResult result : results) {
             log.add(result, 2);
 
             if (result.isPending()) {
@@ -124,7 +215,7 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             } else if (!result.success()) {
                 return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
             }
-        } while (!inputUris.isEmpty());
+        }
 
         if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
             return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
@@ -139,4 +230,65 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 results.get(results.size() - 1).getOutputBytes());
     }
 
+    /** Waits for a worker, and tells the workers to stop if we are cancelled in the meantime. */
+    private PgpSignEncryptResult waitForResult(Future<PgpSignEncryptResult> future,
+            AtomicBoolean workersCancelled) throws InterruptedException, ExecutionException {
+        while (true) {
+            try {
+                return future.get(CANCEL_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (checkCancelled()) {
+                    workersCancelled.set(true);
+                }
+            }
+        }
+    }
+
+    /** Waits for the workers to stop, then deletes the outputs they didn't complete. */
+    private void stopAndDeleteOutputs(ThreadPoolExecutor executor, List<Uri> incompleteOutputUris) {
+        executor.shutdown();
+        try {
+            // workers check for cancellation after each block of data they write
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.e(Constants.TAG, "sign/encrypt workers did not stop, keeping their outputs");
+                executor.shutdownNow();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            return;
+        }
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        for (Uri outputUri : incompleteOutputUris) {
+            if (outputUri == null) {
+                continue;
+            }
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        && DocumentsContract.isDocumentUri(mContext, outputUri)) {
+                    DocumentsContract.deleteDocument(contentResolver, outputUri);
+                } else {
+                    contentResolver.delete(outputUri, null, null);
+                }
+            } catch (Exception e) {
+                // can happen when delete is not supported
+                Log.e(Constants.TAG, "could not delete incomplete output " + outputUri, e);
+            }
+        }
+    }
+
+    private static PgpSignEncryptInputParcel createInputParcel(SignEncryptParcel input,
+            ArrayDeque<Uri> inputUris, ArrayDeque<Uri> outputUris) {
+        PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel(input.getData());
+        if (input.getBytes() != null) {
+            inputParcel.setInputBytes(input.getBytes());
+        } else {
+            inputParcel.setInputUri(inputUris.removeFirst());
+        }
+        inputParcel.setOutputUri(outputUris.pollFirst());
+        return inputParcel;
+    }
+
 }
@@ -0,0 +1,41 @@
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+
+
+/** The overall result of an InputDataBatchOperation. The results for individual inputs are not
+ * part of this, they are delivered separately as soon as each of them is done.
+ */
+public class InputDataBatchResult extends InputPendingResult {
+
+    public InputDataBatchResult(int result, @NonNull OperationLog log) {
+        super(result, log);
+    }
+
+    public InputDataBatchResult(@NonNull OperationLog log, @NonNull InputPendingResult result) {
+        super(log, result);
+    }
+
+    protected InputDataBatchResult(Parcel in) {
+        super(in);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<InputDataBatchResult> CREATOR = new Creator<InputDataBatchResult>() {
+        @Override
+        public InputDataBatchResult createFromParcel(Parcel in) {
+            return new InputDataBatchResult(in);
+        }
+
+        @Override
+        public InputDataBatchResult[] newArray(int size) {
+            return new InputDataBatchResult[size];
+        }
+    };
+}
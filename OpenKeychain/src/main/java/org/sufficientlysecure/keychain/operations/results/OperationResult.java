@@ -610,6 +610,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_ERROR_IO_SECRET (LogLevel.ERROR, R.string.msg_con_error_io_secret),
         MSG_CON_ERROR_PUBLIC (LogLevel.ERROR, R.string.msg_con_error_public),
         MSG_CON_ERROR_SECRET (LogLevel.ERROR, R.string.msg_con_error_secret),
+        MSG_CON_INCREMENTAL (LogLevel.START, R.string.msg_con_incremental),
+        MSG_CON_INCREMENTAL_REPROCESS (LogLevel.DEBUG, R.plurals.msg_con_incremental_reprocess),
+        MSG_CON_INCREMENTAL_SKIP (LogLevel.DEBUG, R.string.msg_con_incremental_skip),
+        MSG_CON_INCREMENTAL_RETRY (LogLevel.DEBUG, R.string.msg_con_incremental_retry),
         MSG_CON_RECOVER (LogLevel.DEBUG, R.string.msg_con_recover),
         MSG_CON_RECURSIVE (LogLevel.OK, R.string.msg_con_recursive),
         MSG_CON_REIMPORT_PUBLIC (LogLevel.DEBUG, R.plurals.msg_con_reimport_public),
@@ -622,6 +626,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_SUCCESS (LogLevel.OK, R.string.msg_con_success),
         MSG_CON_WARN_DELETE_PUBLIC (LogLevel.WARN, R.string.msg_con_warn_delete_public),
         MSG_CON_WARN_DELETE_SECRET (LogLevel.WARN, R.string.msg_con_warn_delete_secret),
+        MSG_CON_WARN_REPROCESS (LogLevel.WARN, R.string.msg_con_warn_reprocess),
 
         // edit key (higher level operation than modify)
         MSG_ED (LogLevel.START, R.string.msg_ed),
@@ -682,6 +687,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_OK_META_ONLY (LogLevel.OK, R.string.msg_dc_ok_meta_only),
         MSG_DC_OK (LogLevel.OK, R.string.msg_dc_ok),
         MSG_DC_PASS_CACHED (LogLevel.DEBUG, R.string.msg_dc_pass_cached),
+        MSG_DC_KEY_POOLED (LogLevel.DEBUG, R.string.msg_dc_key_pooled),
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
@@ -732,6 +738,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ERROR_UNLOCK (LogLevel.ERROR, R.string.msg_pse_error_unlock),
         MSG_PSE_ERROR_REVOKED_OR_EXPIRED (LogLevel.ERROR, R.string.msg_pse_error_revoked_or_expired),
         MSG_PSE_KEY_OK (LogLevel.OK, R.string.msg_pse_key_ok),
+        MSG_PSE_KEY_POOLED (LogLevel.DEBUG, R.string.msg_pse_key_pooled),
         MSG_PSE_KEY_UNKNOWN (LogLevel.DEBUG, R.string.msg_pse_key_unknown),
         MSG_PSE_KEY_WARN (LogLevel.WARN, R.string.msg_pse_key_warn),
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
@@ -773,6 +780,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_FETCH_FACEBOOK (LogLevel.INFO, R.string.msg_import_fetch_facebook),
         MSG_IMPORT_FETCH_KEYSERVER (LogLevel.INFO, R.string.msg_import_fetch_keyserver),
         MSG_IMPORT_FETCH_KEYSERVER_OK (LogLevel.DEBUG, R.string.msg_import_fetch_keyserver_ok),
+        MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED (LogLevel.DEBUG, R.string.msg_import_fetch_keyserver_unchanged),
         MSG_IMPORT_KEYSERVER (LogLevel.DEBUG, R.string.msg_import_keyserver),
         MSG_IMPORT_MERGE (LogLevel.DEBUG, R.string.msg_import_merge),
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
@@ -780,6 +788,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
+        MSG_IMPORT_TIMING (LogLevel.DEBUG, R.string.msg_import_timing),
 
         MSG_BACKUP(LogLevel.START, R.plurals.msg_backup),
         MSG_BACKUP_PUBLIC(LogLevel.DEBUG, R.string.msg_backup_public),
@@ -873,6 +882,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_DATA_OK (LogLevel.OK, R.string.msg_data_ok),
         MSG_DATA_SKIP_MIME (LogLevel.DEBUG, R.string.msg_data_skip_mime),
 
+        MSG_DATA_BATCH (LogLevel.START, R.plurals.msg_data_batch),
+        MSG_DATA_BATCH_PENDING (LogLevel.INFO, R.string.msg_data_batch_pending),
+        MSG_DATA_BATCH_OK (LogLevel.OK, R.string.msg_data_batch_ok),
+
         MSG_LV (LogLevel.START, R.string.msg_lv),
         MSG_LV_MATCH (LogLevel.DEBUG, R.string.msg_lv_match),
         MSG_LV_MATCH_ERROR (LogLevel.ERROR, R.string.msg_lv_match_error),
@@ -895,12 +908,16 @@ public abstract class OperationResult implements Parcelable {
         MSG_LV_FETCH_ERROR_NOTHING (LogLevel.ERROR, R.string.msg_lv_fetch_error_nothing),
 
         MSG_BENCH (LogLevel.START, R.string.msg_bench),
-        MSG_BENCH_ENC_TIME (LogLevel.DEBUG, R.string.msg_bench_enc_time),
-        MSG_BENCH_ENC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
-        MSG_BENCH_DEC_TIME (LogLevel.DEBUG, R.string.msg_bench_dec_time),
-        MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
+        MSG_BENCH_KEY_CREATE (LogLevel.DEBUG, R.string.msg_bench_key_create),
+        MSG_BENCH_KEY_CLEANUP (LogLevel.DEBUG, R.string.msg_bench_key_cleanup),
+        MSG_BENCH_RESULT (LogLevel.INFO, R.string.msg_bench_result),
+        MSG_BENCH_THROUGHPUT (LogLevel.INFO, R.string.msg_bench_throughput),
+        MSG_BENCH_KEYS_PER_SECOND (LogLevel.INFO, R.string.msg_bench_keys_per_second),
+        MSG_BENCH_COMPARE (LogLevel.INFO, R.string.msg_bench_compare),
+        MSG_BENCH_ERROR (LogLevel.ERROR, R.string.msg_bench_error),
+        MSG_BENCH_ERROR_HISTORY (LogLevel.WARN, R.string.msg_bench_error_history),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
 
         ;
@@ -36,6 +36,7 @@ import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
@@ -67,6 +68,8 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
 
     private final PGPSecretKey mSecretKey;
     private PGPPrivateKey mPrivateKey = null;
+    // built on first use, this is reused if the unlocked key is pooled
+    private PublicKeyDataDecryptorFactory mDecryptorFactory;
 
     private int mPrivateKeyState = PRIVATE_KEY_STATE_LOCKED;
     final private static int PRIVATE_KEY_STATE_LOCKED = 0;
@@ -82,6 +85,10 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         return (CanonicalizedSecretKeyRing) mRing;
     }
 
+    public boolean isUnlocked() {
+        return mPrivateKeyState != PRIVATE_KEY_STATE_LOCKED;
+    }
+
     public enum SecretKeyType {
         UNAVAILABLE(0), GNU_DUMMY(1), PASSPHRASE(2), PASSPHRASE_EMPTY(3), DIVERT_TO_CARD(4), PIN(5),
         PATTERN(6);
@@ -291,10 +298,13 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME,
                     cryptoInput.getCryptoData());
         } else {
-            return new CachingDataDecryptorFactory(
-                    new JcePublicKeyDataDecryptorFactoryBuilder()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey),
-                    cryptoInput.getCryptoData());
+            synchronized (this) {
+                if (mDecryptorFactory == null) {
+                    mDecryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey);
+                }
+            }
+            return new CachingDataDecryptorFactory(mDecryptorFactory, cryptoInput.getCryptoData());
         }
     }
 
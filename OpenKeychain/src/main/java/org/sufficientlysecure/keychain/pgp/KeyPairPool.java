@@ -0,0 +1,173 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/** This class holds key pairs which were generated ahead of time, so creating a key can use
+ * them right away instead of waiting for the expensive generation of RSA keys.
+ *
+ * The pool is opt-in via Preferences, and only holds key pairs for the default key created by
+ * CreateKeyFinalFragment. It is filled on a single background thread with low priority, and
+ * only while the device is charging. Key pairs are kept in memory only, they are never written
+ * to storage. A key pair is removed from the pool when it is handed out, and the whole pool is
+ * wiped when the preference is disabled, and by PanicResponderActivity.
+ */
+public class KeyPairPool implements PgpKeyOperation.KeyPairSource {
+
+    // the default key consists of three RSA 3072 keys, for certification, signing and encryption
+    private static final int POOL_RSA_KEY_SIZE = 3072;
+    private static final int POOL_RSA_KEY_COUNT = 3;
+
+    private static KeyPairPool sInstance;
+
+    public static synchronized KeyPairPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyPairPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final HashMap<String, ArrayList<KeyPair>> mKeyPairs = new HashMap<>();
+    private Thread mRefillThread;
+    // incremented on clear(), so key pairs generated before are not added afterwards
+    private int mGeneration;
+
+    @VisibleForTesting
+    KeyPairPool(Context context) {
+        mContext = context;
+
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                refill();
+            }
+        }, new IntentFilter(Intent.ACTION_POWER_CONNECTED));
+    }
+
+    private boolean isEnabled() {
+        return Preferences.getPreferences(mContext).getExperimentalPregenerateKeys();
+    }
+
+    private boolean isCharging() {
+        Intent batteryStatus = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static String getSpec(Algorithm algorithm, Integer keySize, Curve curve) {
+        return algorithm + ":" + (curve != null ? curve : keySize);
+    }
+
+    /** @return a pregenerated key pair for the given parameters, or null if none is pooled. */
+    @Override
+    public KeyPair take(Algorithm algorithm, Integer keySize, Curve curve) {
+        KeyPair keyPair;
+        synchronized (this) {
+            if (!isEnabled()) {
+                // the preference may have been disabled while the pool was filled
+                clear();
+                return null;
+            }
+            ArrayList<KeyPair> keyPairs = mKeyPairs.get(getSpec(algorithm, keySize, curve));
+            if (keyPairs == null || keyPairs.isEmpty()) {
+                return null;
+            }
+            keyPair = keyPairs.remove(keyPairs.size() - 1);
+        }
+        Log.d(Constants.TAG, "KeyPairPool: using pregenerated " + algorithm + " key pair");
+        refill();
+        return keyPair;
+    }
+
+    /** Starts filling up the pool in the background, if it is enabled and the device is charging. */
+    public synchronized void refill() {
+        if (mRefillThread != null || isFull() || !isEnabled() || !isCharging()) {
+            return;
+        }
+
+        final int generation = mGeneration;
+        mRefillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    while (!isFull() && isEnabled() && isCharging()) {
+                        KeyPair keyPair = generateRsaKeyPair(POOL_RSA_KEY_SIZE);
+                        if (!add(generation, getSpec(Algorithm.RSA, POOL_RSA_KEY_SIZE, null), keyPair)) {
+                            return;
+                        }
+                    }
+                    if (!isEnabled()) {
+                        clear();
+                    }
+                } finally {
+                    synchronized (KeyPairPool.this) {
+                        mRefillThread = null;
+                    }
+                }
+            }
+        });
+        mRefillThread.start();
+    }
+
+    private synchronized boolean isFull() {
+        ArrayList<KeyPair> keyPairs = mKeyPairs.get(getSpec(Algorithm.RSA, POOL_RSA_KEY_SIZE, null));
+        return keyPairs != null && keyPairs.size() >= POOL_RSA_KEY_COUNT;
+    }
+
+    /** @return false if the pool was cleared since the key pair was generated. */
+    private synchronized boolean add(int generation, String spec, KeyPair keyPair) {
+        if (generation != mGeneration) {
+            return false;
+        }
+        ArrayList<KeyPair> keyPairs = mKeyPairs.get(spec);
+        if (keyPairs == null) {
+            keyPairs = new ArrayList<>();
+            mKeyPairs.put(spec, keyPairs);
+        }
+        keyPairs.add(keyPair);
+        return true;
+    }
+
+    /** Adds a key pair generated elsewhere. */
+    @VisibleForTesting
+    synchronized void add(Algorithm algorithm, Integer keySize, Curve curve, KeyPair keyPair) {
+        add(mGeneration, getSpec(algorithm, keySize, curve), keyPair);
+    }
+
+    public synchronized void clear() {
+        mKeyPairs.clear();
+        mGeneration++;
+    }
+
+    private static KeyPair generateRsaKeyPair(int keySize) {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            keyGen.initialize(keySize, new SecureRandom());
+            return keyGen.generateKeyPair();
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
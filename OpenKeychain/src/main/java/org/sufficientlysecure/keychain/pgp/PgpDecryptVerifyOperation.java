@@ -32,6 +32,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
@@ -86,32 +87,44 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     public static final int PROGRESS_STRIDE_MILLISECONDS = 200;
 
+    private UnlockedSecretKeyPool mUnlockedKeyPool;
+    private LiteralDataListener mLiteralDataListener;
+
+    /** Is told about the header of the literal data, before any of its content is written out. */
+    public interface LiteralDataListener {
+        void onLiteralData(String filename, String mimeType);
+    }
+
     public PgpDecryptVerifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public PgpDecryptVerifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable,
+            AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
+    /** Allows this operation to use and populate a pool of unlocked secret keys. */
+    public void setUnlockedKeyPool(UnlockedSecretKeyPool unlockedKeyPool) {
+        mUnlockedKeyPool = unlockedKeyPool;
+    }
+
+    public void setLiteralDataListener(LiteralDataListener literalDataListener) {
+        mLiteralDataListener = literalDataListener;
+    }
+
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
-        InputData inputData;
         OutputStream outputStream;
 
         long startTime = System.currentTimeMillis();
 
-        if (input.getInputBytes() != null) {
-            byte[] inputBytes = input.getInputBytes();
-            inputData = new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
-        } else {
-            try {
-                InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
-                long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
-                inputData = new InputData(inputStream, inputSize);
-            } catch (FileNotFoundException e) {
-                Log.e(Constants.TAG, "Input URI could not be opened: " + input.getInputUri(), e);
-                OperationLog log = new OperationLog();
-                log.add(LogType.MSG_DC_ERROR_INPUT, 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-            }
+        InputData inputData = openInputData(input);
+        if (inputData == null) {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
         if (input.getOutputUri() == null) {
@@ -145,6 +158,37 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return executeInternal(input, cryptoInput, inputData, outputStream);
     }
 
+    /** Decrypts and/or verifies the input of the PgpDecryptVerifyInputParcel, writing the output
+     * into the given OutputStream instead of the parcel's output uri. This allows the caller to
+     * process the plaintext while it is being decrypted.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            OutputStream outputStream) {
+        InputData inputData = openInputData(input);
+        if (inputData == null) {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+        return executeInternal(input, cryptoInput, inputData, outputStream);
+    }
+
+    private InputData openInputData(PgpDecryptVerifyInputParcel input) {
+        if (input.getInputBytes() != null) {
+            byte[] inputBytes = input.getInputBytes();
+            return new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
+        }
+        try {
+            InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
+            long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
+            return new InputData(inputStream, inputSize);
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "Input URI could not be opened: " + input.getInputUri(), e);
+            return null;
+        }
+    }
+
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
@@ -432,6 +476,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             return result;
         }
 
+        if (mLiteralDataListener != null) {
+            mLiteralDataListener.onLiteralData(originalFilename, mimeType);
+        }
+
         InputStream dataIn = literalData.getInputStream();
 
         long opTime, startTime = System.currentTimeMillis();
@@ -449,6 +497,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long nextProgressTime = 0L;
         int lastReportedProgress = 1;
         while ((length = dataIn.read(buffer)) > 0) {
+            if (checkCancelled()) {
+                log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                return new DecryptVerifyResult(
+                        DecryptVerifyResult.RESULT_ERROR | DecryptVerifyResult.RESULT_CANCELLED, log);
+            }
+
             // Log.d(Constants.TAG, "read bytes: " + length);
             if (out != null) {
                 out.write(buffer, 0, length);
@@ -565,6 +619,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         ;
 
         Passphrase passphrase = null;
+        boolean passphraseFromCache = false;
 
         Iterator<?> it = enc.getEncryptedDataObjects();
 
@@ -627,17 +682,25 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         continue;
                     }
 
+                    CanonicalizedSecretKey pooledKey =
+                            mUnlockedKeyPool != null ? mUnlockedKeyPool.get(subKeyId) : null;
+
                     if (secretKeyType == SecretKeyType.DIVERT_TO_CARD) {
                         passphrase = null;
                     } else if (secretKeyType == SecretKeyType.PASSPHRASE_EMPTY) {
                         passphrase = new Passphrase("");
                     } else if (cryptoInput.hasPassphrase()) {
                         passphrase = cryptoInput.getPassphrase();
+                    } else if (pooledKey != null) {
+                        // this key was unlocked before with a cached passphrase, no need to unlock again
+                        log.add(LogType.MSG_DC_KEY_POOLED, indent + 1);
+                        candidateDecryptionKey = pooledKey;
                     } else {
                         // if no passphrase was explicitly set try to get it from the cache service
                         try {
                             // returns "" if key has no passphrase
                             passphrase = getCachedPassphrase(subKeyId);
+                            passphraseFromCache = true;
                             log.add(LogType.MSG_DC_PASS_CACHED, indent + 1);
                         } catch (PassphraseCacheInterface.NoSecretKeyException e) {
                             log.add(LogType.MSG_DC_ERROR_NO_KEY, indent + 1);
@@ -762,15 +825,23 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             if (decryptedSessionKeyAvailable) {
                 decryptorFactory = cachedKeyDecryptorFactory;
             } else {
-                try {
-                    log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                    if (!decryptionKey.unlock(passphrase)) {
-                        log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                // keys from the unlocked key pool are already unlocked
+                if (!decryptionKey.isUnlocked()) {
+                    try {
+                        log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                        if (!decryptionKey.unlock(passphrase)) {
+                            log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                            return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                        }
+                        updateCachedSessionKeys(decryptionKey.getRing().getMasterKeyId(),
+                                decryptionKey.getKeyId(), passphrase);
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                    return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                    if (passphraseFromCache && mUnlockedKeyPool != null) {
+                        mUnlockedKeyPool.put(decryptionKey);
+                    }
                 }
 
                 decryptorFactory = decryptionKey.getCachingDecryptorFactory(cryptoInput);
@@ -830,6 +901,11 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
      * <p/>
+     * The signature follows the cleartext, but must be initialized before the cleartext can be
+     * hashed. If the input can be opened a second time, the cleartext is first skipped to get at
+     * the signature, and then streamed from the reopened input, hashing and writing out one line
+     * at a time. Otherwise, the cleartext is buffered in memory once.
+     * <p/>
      * The method is heavily based on
      * pg/src/main/java/org/bouncycastle/openpgp/examples/ClearSignedFileProcessor.java
      */
@@ -839,37 +915,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
-        { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            updateProgress(R.string.progress_reading_data, 0, 100);
-
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
-            byte[] lineSep = getLineSeparator();
-
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-
-            while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
-            }
+        boolean canReopenInput = input.getInputBytes() != null || input.getInputUri() != null;
 
-            out.close();
-            clearText = out.toByteArray();
-        }
+        updateProgress(R.string.progress_reading_data, 0, 100);
 
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
+        // skip over the cleartext if we can read it again later, buffer it otherwise
+        ByteArrayOutputStream clearTextBuffer = canReopenInput ? null : new ByteArrayOutputStream();
+        long clearTextLength;
+        try {
+            clearTextLength = processCleartext(aIn, clearTextBuffer, null);
+        } catch (SignatureException e) {
+            // can't happen without a signature checker
+            throw new AssertionError(e);
         }
 
-        updateProgress(R.string.progress_processing_signature, 60, 100);
+        updateProgress(R.string.progress_processing_signature, 30, 100);
         JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
 
         PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mProviderHelper, input.getSenderAddress());
@@ -880,24 +940,58 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
-        if (signatureChecker.isInitialized()) {
-            try {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
+        try {
+            updateProgress(R.string.progress_verifying_signature, 40, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
-                signatureChecker.verifySignature(log, indent);
+            PgpSignatureChecker hashingChecker = signatureChecker.isInitialized() ? signatureChecker : null;
+            if (canReopenInput) {
+                InputData reopenedData = openInputData(input);
+                if (reopenedData == null) {
+                    log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+                    return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                }
+                InputStream reopenedIn = PGPUtil.getDecoderStream(reopenedData.getInputStream());
+                try {
+                    if (!(reopenedIn instanceof ArmoredInputStream)
+                            || !((ArmoredInputStream) reopenedIn).isClearText()) {
+                        // the input changed in between
+                        log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
+                        return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                    }
+                    clearTextLength = processCleartext(
+                            (ArmoredInputStream) reopenedIn, outputStream, hashingChecker);
+                } finally {
+                    reopenedIn.close();
+                }
+            } else {
+                byte[] clearText = clearTextBuffer.toByteArray();
+                if (outputStream != null) {
+                    outputStream.write(clearText);
+                }
+                if (hashingChecker != null) {
+                    hashingChecker.updateSignatureWithCleartext(clearText);
+                }
+            }
 
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            if (outputStream != null) {
+                outputStream.close();
+            }
+
+            if (signatureChecker.isInitialized()) {
+                updateProgress(R.string.progress_verifying_signature, 90, 100);
+                signatureChecker.verifySignature(log, indent);
             }
+
+        } catch (SignatureException e) {
+            Log.d(Constants.TAG, "SignatureException", e);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
 
         log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearTextLength, "utf-8");
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
@@ -907,6 +1001,47 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return result;
     }
 
+    /**
+     * Reads the dash-unescaped cleartext of a cleartext signed message line by line, up to the
+     * signature. Each line is written to out with the local line separator, and fed into the
+     * signature of the checker as canonical text. Both may be null.
+     *
+     * @return the number of bytes of cleartext, as written to out
+     */
+    private static long processCleartext(ArmoredInputStream aIn, OutputStream out,
+            PgpSignatureChecker signatureChecker) throws IOException, SignatureException {
+        LineBuffer lineOut = new LineBuffer();
+        byte[] lineSep = getLineSeparator();
+        long length = 0;
+
+        int lookAhead = readInputLine(lineOut, aIn);
+        boolean firstLine = true;
+        while (true) {
+            int lineLength = getLengthWithoutSeparator(lineOut.getBuffer(), lineOut.size());
+            if (out != null) {
+                out.write(lineOut.getBuffer(), 0, lineLength);
+                out.write(lineSep);
+            }
+            if (signatureChecker != null) {
+                signatureChecker.updateSignatureWithCleartextLine(lineOut.getBuffer(), lineLength, firstLine);
+            }
+            length += lineLength + lineSep.length;
+
+            if (lookAhead == -1 || !aIn.isClearText()) {
+                return length;
+            }
+            lookAhead = readInputLine(lineOut, lookAhead, aIn);
+            firstLine = false;
+        }
+    }
+
+    /** Gives access to the written bytes without copying them. */
+    private static class LineBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
     @NonNull
     private DecryptVerifyResult verifyDetachedSignature(
             PgpDecryptVerifyInputParcel input, InputData inputData, OutputStream out, int indent)
@@ -1034,8 +1169,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isLineEnding(line[end])) {
             end--;
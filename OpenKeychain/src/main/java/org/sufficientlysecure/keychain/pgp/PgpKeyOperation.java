@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -31,8 +32,16 @@ import java.security.SignatureException;
 import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
@@ -99,8 +108,22 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  */
 public class PgpKeyOperation {
 
+    public static final int MAX_KEYGEN_THREADS = 4;
+
+    /** A source of key pairs which were generated ahead of time. */
+    public interface KeyPairSource {
+        /** @return a key pair for the given parameters, or null if none is available. */
+        KeyPair take(Algorithm algorithm, Integer keySize, Curve curve);
+    }
+
     private Stack<Progressable> mProgress;
     private AtomicBoolean mCancelled;
+    private KeyPairSource mKeyPairSource;
+    private int mS2kCount = PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+
+    // key pairs of new subkeys, which are generated concurrently while a key ring is created
+    private ThreadPoolExecutor mKeyGenExecutor;
+    private IdentityHashMap<SubkeyAdd, Future<PGPKeyPair>> mPendingKeyPairs;
 
     public PgpKeyOperation(Progressable progress) {
         super();
@@ -115,6 +138,16 @@ public class PgpKeyOperation {
         mCancelled = cancelled;
     }
 
+    /** Allows this operation to use key pairs generated ahead of time, when creating keys. */
+    public void setKeyPairSource(KeyPairSource keyPairSource) {
+        mKeyPairSource = keyPairSource;
+    }
+
+    /** Sets the S2K count used to encrypt secret keys with a passphrase, see S2kCalibration. */
+    public void setS2kCount(int s2kCount) {
+        mS2kCount = s2kCount;
+    }
+
     private boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
@@ -255,8 +288,16 @@ public class PgpKeyOperation {
                 }
             }
 
+            KeyPair keyPair = null;
+            if (mKeyPairSource != null) {
+                keyPair = mKeyPairSource.take(add.mAlgorithm, add.mKeySize, add.mCurve);
+            }
+            if (keyPair == null) {
+                keyPair = keyGen.generateKeyPair();
+            }
+
             // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            return new JcaPGPKeyPair(algorithm, keyPair, creationTime);
 
         } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException(e);
@@ -304,6 +345,10 @@ public class PgpKeyOperation {
 
             Date creationTime = new Date();
 
+            // the subkeys are generated in the background while the master key is, and picked
+            // up again when they are added to the key ring
+            startSubkeyGeneration(saveParcel.mAddSubKeys, creationTime);
+
             subProgressPush(10, 30);
             PGPKeyPair keyPair = createKey(add, creationTime, log, indent);
             subProgressPop();
@@ -320,7 +365,7 @@ public class PgpKeyOperation {
                     .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
             PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                     PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
-                    encryptorHashCalc, PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                    encryptorHashCalc, mS2kCount)
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
 
             PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
@@ -342,8 +387,81 @@ public class PgpKeyOperation {
         } catch (IOException e) {
             Log.e(Constants.TAG, "io error encoding key", e);
             return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+        } finally {
+            stopSubkeyGeneration();
+        }
+
+    }
+
+    /** Starts generating the key pairs for the given subkeys, on a bounded pool of worker threads.
+     *
+     * Workers share our cancellation flag, so subkeys which aren't being generated yet when the
+     * operation is cancelled are skipped. A key pair which is already being generated can't be
+     * interrupted, it is finished in the background and then discarded.
+     */
+    private void startSubkeyGeneration(List<SubkeyAdd> adds, final Date creationTime) {
+        if (adds.isEmpty()) {
+            return;
+        }
+
+        int numThreads = Math.max(1, Math.min(adds.size(),
+                Math.min(MAX_KEYGEN_THREADS, Runtime.getRuntime().availableProcessors())));
+        mKeyGenExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mPendingKeyPairs = new IdentityHashMap<>();
+
+        for (final SubkeyAdd add : adds) {
+            // progress can't be reported from multiple threads, so workers don't
+            final PgpKeyOperation worker = new PgpKeyOperation(null, mCancelled);
+            worker.setKeyPairSource(mKeyPairSource);
+            mPendingKeyPairs.put(add, mKeyGenExecutor.submit(new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() {
+                    if (worker.checkCancelled()) {
+                        return null;
+                    }
+                    // errors are logged when the key pair is picked up
+                    return worker.createKey(add, creationTime, new OperationLog(), 0);
+                }
+            }));
         }
+    }
 
+    private void stopSubkeyGeneration() {
+        if (mKeyGenExecutor != null) {
+            mKeyGenExecutor.shutdownNow();
+            mKeyGenExecutor = null;
+        }
+        mPendingKeyPairs = null;
+    }
+
+    /** Returns the key pair for a subkey, either generated in the background or right now. */
+    private PGPKeyPair obtainKey(SubkeyAdd add, Date creationTime, OperationLog log, int indent) {
+        Future<PGPKeyPair> pending = mPendingKeyPairs != null ? mPendingKeyPairs.remove(add) : null;
+        if (pending == null) {
+            return createKey(add, creationTime, log, indent);
+        }
+
+        PGPKeyPair keyPair;
+        try {
+            keyPair = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // createKey only throws RuntimeExceptions
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (keyPair == null) {
+            if (checkCancelled()) {
+                // the worker skipped this key
+                return null;
+            }
+            // createKey fails early for invalid parameters, so this repeats its error in our log
+            return createKey(add, creationTime, log, indent);
+        }
+        return keyPair;
     }
 
     /** This method introduces a list of modifications specified by a SaveKeyringParcel to a
@@ -1003,8 +1121,12 @@ public class PgpKeyOperation {
                     (i-1) * (100 / saveParcel.mAddSubKeys.size()),
                     i * (100 / saveParcel.mAddSubKeys.size())
                 );
-                PGPKeyPair keyPair = createKey(add, cryptoInput.getSignatureTime(), log, indent);
+                PGPKeyPair keyPair = obtainKey(add, cryptoInput.getSignatureTime(), log, indent);
                 subProgressPop();
+                if (keyPair == null && checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
+                }
                 if (keyPair == null) {
                     log.add(LogType.MSG_MF_ERROR_PGP, indent +1);
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
@@ -1030,7 +1152,7 @@ public class PgpKeyOperation {
                             .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
                     PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                             PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                            PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                            mS2kCount)
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                                     cryptoInput.getPassphrase().getCharArray());
 
@@ -1060,7 +1182,7 @@ public class PgpKeyOperation {
                 indent += 1;
 
                 sKR = applyNewPassphrase(sKR, masterPublicKey, cryptoInput.getPassphrase(),
-                        saveParcel.getChangeUnlockParcel().mNewPassphrase, log, indent);
+                        saveParcel.getChangeUnlockParcel().mNewPassphrase, mS2kCount, log, indent);
                 if (sKR == null) {
                     // The error has been logged above, just return a bad state
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
@@ -1241,7 +1363,7 @@ public class PgpKeyOperation {
 
             try {
                 sKR = applyNewPassphrase(sKR, masterPublicKey, cryptoInput.getPassphrase(),
-                        changeUnlockParcel.mNewPassphrase, log, indent);
+                        changeUnlockParcel.mNewPassphrase, mS2kCount, log, indent);
                 if (sKR == null) {
                     // The error has been logged above, just return a bad state
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
@@ -1289,7 +1411,7 @@ public class PgpKeyOperation {
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
             Passphrase passphrase,
-            Passphrase newPassphrase,
+            Passphrase newPassphrase, int s2kCount,
             OperationLog log, int indent) throws PGPException {
 
         PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder().build()
@@ -1298,8 +1420,7 @@ public class PgpKeyOperation {
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
         // Build key encryptor based on new passphrase
         PBESecretKeyEncryptor keyEncryptorNew = new JcePBESecretKeyEncryptorBuilder(
-                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc, s2kCount)
                 .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(newPassphrase.getCharArray());
         boolean keysModified = false;
 
@@ -248,6 +248,9 @@ public class PgpSecurityConstants {
      * Bouncy Castle default: 0x60
      * kbsriram proposes: 0xc0
      * Yahoo's End-to-End: 96=0x60 (65536 iterations) (https://github.com/yahoo/end-to-end/blob/master/src/javascript/crypto/e2e/openpgp/keyring.js)
+     *
+     * New passphrases use a count calibrated for the device by S2kCalibration, this one is only
+     * used if that fails.
      */
     public static final int SECRET_KEY_ENCRYPTOR_S2K_COUNT = 0x90;
     public static final int SECRET_KEY_ENCRYPTOR_HASH_ALGO = HashAlgorithmTags.SHA512;
@@ -33,6 +33,7 @@ import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder;
@@ -70,6 +71,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
@@ -101,6 +103,9 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         }
     }
 
+    private UnlockedSecretKeyPool mUnlockedKeyPool;
+    private PreparedKeys mPreparedKeys;
+
     public PgpSignEncryptOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
     }
@@ -109,6 +114,16 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         super(context, providerHelper, progressable);
     }
 
+    /** Allows this operation to use and populate a pool of unlocked secret keys. */
+    public void setUnlockedKeyPool(UnlockedSecretKeyPool unlockedKeyPool) {
+        mUnlockedKeyPool = unlockedKeyPool;
+    }
+
+    /** Makes this operation use keys which were prepared by prepareKeys(), rather than resolving them again. */
+    public void setPreparedKeys(PreparedKeys preparedKeys) {
+        mPreparedKeys = preparedKeys;
+    }
+
     @NonNull
     @Override
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput) {
@@ -151,6 +166,14 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         }
 
         PgpSignEncryptResult result = executeInternal(input, cryptoInput, inputData, outStream);
+        if (result.cancelled() && input.getOutputUri() != null) {
+            // the output is incomplete, close it so it can be deleted
+            try {
+                outStream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
         if (outStream instanceof ByteArrayOutputStream) {
             byte[] outputData = ((ByteArrayOutputStream) outStream).toByteArray();
             result.setOutputBytes(outputData);
@@ -166,56 +189,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
     }
 
     /**
-     * Signs and/or encrypts data based on parameters of class
+     * Resolves and unlocks the keys for signing and asymmetric encryption with the given
+     * PgpSignEncryptData. The returned keys can be passed to setPreparedKeys() of any number of
+     * operations with the same data, which may also run concurrently. If the keys could not be
+     * prepared, PreparedKeys.getResult() returns the error or pending result to return instead.
      */
-    private PgpSignEncryptResult executeInternal(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
-                                                 InputData inputData, OutputStream outputStream) {
-
-        int indent = 0;
-        OperationLog log = new OperationLog();
-
-        log.add(LogType.MSG_PSE, indent);
-        indent += 1;
+    @NonNull
+    public PreparedKeys prepareKeys(PgpSignEncryptData data, CryptoInputParcel cryptoInput,
+                                    OperationLog log, int indent) {
 
-        PgpSignEncryptData data = input.getData();
         boolean enableSignature = data.getSignatureMasterKeyId() != Constants.key.none;
-        boolean enableEncryption = ((data.getEncryptionMasterKeyIds() != null && data.getEncryptionMasterKeyIds().length > 0)
-                || data.getSymmetricPassphrase() != null);
-        boolean enableCompression = (data.getCompressionAlgorithm() != CompressionAlgorithmTags.UNCOMPRESSED);
-
-        Log.d(Constants.TAG, "enableSignature:" + enableSignature
-                + "\nenableEncryption:" + enableEncryption
-                + "\nenableCompression:" + enableCompression
-                + "\nenableAsciiArmorOutput:" + data.isEnableAsciiArmorOutput()
-                + "\nisHiddenRecipients:" + data.isHiddenRecipients());
-
-        // add additional key id to encryption ids (mostly to do self-encryption)
-        if (enableEncryption && data.getAdditionalEncryptId() != Constants.key.none) {
-            data.setEncryptionMasterKeyIds(Arrays.copyOf(data.getEncryptionMasterKeyIds(), data.getEncryptionMasterKeyIds().length + 1));
-            data.getEncryptionMasterKeyIds()[data.getEncryptionMasterKeyIds().length - 1] = data.getAdditionalEncryptId();
-        }
-
-        ArmoredOutputStream armorOut = null;
-        OutputStream out;
-        if (data.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
-            if (data.getVersionHeader() != null) {
-                armorOut.setHeader("Version", data.getVersionHeader());
-            }
-            // if we have a charset, put it in the header
-            if (data.getCharset() != null) {
-                armorOut.setHeader("Charset", data.getCharset());
-            }
-            // add proprietary header to indicate that this is a key backup
-            if (data.isAddBackupHeader()) {
-                armorOut.setHeader("BackupVersion", "2");
-            }
-            out = armorOut;
-        } else {
-            out = outputStream;
-        }
 
-        /* Get keys for signature generation for later usage */
         CanonicalizedSecretKey signingKey = null;
         if (enableSignature) {
 
@@ -234,13 +218,13 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 if (signingKeyRing.isExpired() || signingKeyRing.isRevoked()
                         || signingKey.isExpired() || signingKey.isRevoked()) {
                     log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                 }
 
                 // Make sure we are allowed to sign here!
                 if (!signingKey.canSign()) {
                     log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                    return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                 }
 
                 switch (mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
@@ -258,28 +242,43 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     case PATTERN:
                     case PASSPHRASE: {
                         Passphrase localPassphrase = cryptoInput.getPassphrase();
+                        boolean passphraseFromCache = false;
                         if (localPassphrase == null) {
+                            // this key may have been unlocked before with a cached passphrase
+                            CanonicalizedSecretKey pooledKey = mUnlockedKeyPool != null
+                                    ? mUnlockedKeyPool.get(signingKey.getKeyId()) : null;
+                            if (pooledKey != null) {
+                                log.add(LogType.MSG_PSE_KEY_POOLED, indent + 1);
+                                signingKey = pooledKey;
+                                break;
+                            }
+
                             try {
                                 localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
+                                passphraseFromCache = true;
                             } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
                             }
                         }
                         if (localPassphrase == null) {
                             log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
+                            return new PreparedKeys(new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
                                     signingMasterKeyId, signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
+                                    cryptoInput.getSignatureTime()), cryptoInput));
                         }
                         if (!signingKey.unlock(localPassphrase)) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                        }
+                        updateCachedSessionKeys(signingMasterKeyId, signingKey.getKeyId(), localPassphrase);
+                        if (passphraseFromCache && mUnlockedKeyPool != null) {
+                            mUnlockedKeyPool.put(signingKey);
                         }
                         break;
                     }
 
                     case GNU_DUMMY: {
                         log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                        return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
                     }
                     default: {
                         throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
@@ -289,10 +288,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
             } catch (ProviderHelper.NotFoundException e) {
                 log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
             }
 
             // Use requested hash algo
@@ -301,6 +300,134 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 data.setSignatureHashAlgorithm(PgpSecurityConstants.DEFAULT_HASH_ALGORITHM);
             }
         }
+
+        ArrayList<PGPKeyEncryptionMethodGenerator> encryptionMethods = new ArrayList<>();
+        long[] encryptionMasterKeyIds = data.getEncryptionMasterKeyIds();
+        if (data.getSymmetricPassphrase() == null
+                && encryptionMasterKeyIds != null && encryptionMasterKeyIds.length > 0) {
+
+            // add additional key id to encryption ids (mostly to do self-encryption)
+            if (data.getAdditionalEncryptId() != Constants.key.none) {
+                encryptionMasterKeyIds = Arrays.copyOf(encryptionMasterKeyIds, encryptionMasterKeyIds.length + 1);
+                encryptionMasterKeyIds[encryptionMasterKeyIds.length - 1] = data.getAdditionalEncryptId();
+            }
+
+            log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
+
+            // Asymmetric encryption
+            for (long id : encryptionMasterKeyIds) {
+                try {
+                    CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                            KeyRings.buildUnifiedKeyRingUri(id));
+                    Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
+                    for (Long subKeyId : encryptSubKeyIds) {
+                        CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
+                        encryptionMethods.add(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+                        log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
+                                KeyFormattingUtils.convertKeyIdToHex(subKeyId));
+                    }
+                    if (encryptSubKeyIds.isEmpty()) {
+                        log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
+                                KeyFormattingUtils.convertKeyIdToHex(id));
+                        return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                    }
+                    // Make sure key is not expired or revoked
+                    if (keyRing.isExpired() || keyRing.isRevoked()) {
+                        log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
+                        return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                    }
+                } catch (ProviderHelper.NotFoundException e) {
+                    log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
+                            KeyFormattingUtils.convertKeyIdToHex(id));
+                    return new PreparedKeys(new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log));
+                }
+            }
+        }
+
+        return new PreparedKeys(signingKey, encryptionMethods);
+    }
+
+    /**
+     * Keys for signing and asymmetric encryption, which are resolved and unlocked only once
+     * when signing and/or encrypting several inputs.
+     */
+    public static class PreparedKeys {
+        final CanonicalizedSecretKey mSigningKey;
+        final ArrayList<PGPKeyEncryptionMethodGenerator> mEncryptionMethods;
+        // if the keys could not be prepared, this holds the result to return instead
+        final PgpSignEncryptResult mResult;
+
+        PreparedKeys(CanonicalizedSecretKey signingKey, ArrayList<PGPKeyEncryptionMethodGenerator> encryptionMethods) {
+            mSigningKey = signingKey;
+            mEncryptionMethods = encryptionMethods;
+            mResult = null;
+        }
+
+        PreparedKeys(PgpSignEncryptResult result) {
+            mSigningKey = null;
+            mEncryptionMethods = null;
+            mResult = result;
+        }
+
+        public PgpSignEncryptResult getResult() {
+            return mResult;
+        }
+    }
+
+    /**
+     * Signs and/or encrypts data based on parameters of class
+     */
+    private PgpSignEncryptResult executeInternal(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+                                                 InputData inputData, OutputStream outputStream) {
+
+        int indent = 0;
+        OperationLog log = new OperationLog();
+
+        log.add(LogType.MSG_PSE, indent);
+        indent += 1;
+
+        PgpSignEncryptData data = input.getData();
+        boolean enableSignature = data.getSignatureMasterKeyId() != Constants.key.none;
+        boolean enableEncryption = ((data.getEncryptionMasterKeyIds() != null && data.getEncryptionMasterKeyIds().length > 0)
+                || data.getSymmetricPassphrase() != null);
+        boolean enableCompression = (data.getCompressionAlgorithm() != CompressionAlgorithmTags.UNCOMPRESSED);
+
+        Log.d(Constants.TAG, "enableSignature:" + enableSignature
+                + "\nenableEncryption:" + enableEncryption
+                + "\nenableCompression:" + enableCompression
+                + "\nenableAsciiArmorOutput:" + data.isEnableAsciiArmorOutput()
+                + "\nisHiddenRecipients:" + data.isHiddenRecipients());
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (data.isEnableAsciiArmorOutput()) {
+            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            if (data.getVersionHeader() != null) {
+                armorOut.setHeader("Version", data.getVersionHeader());
+            }
+            // if we have a charset, put it in the header
+            if (data.getCharset() != null) {
+                armorOut.setHeader("Charset", data.getCharset());
+            }
+            // add proprietary header to indicate that this is a key backup
+            if (data.isAddBackupHeader()) {
+                armorOut.setHeader("BackupVersion", "2");
+            }
+            out = armorOut;
+        } else {
+            out = outputStream;
+        }
+
+        /* Get keys for signature generation and encryption, unless they were prepared before */
+        PreparedKeys keys = mPreparedKeys;
+        if (keys == null) {
+            keys = prepareKeys(data, cryptoInput, log, indent);
+            if (keys.mResult != null) {
+                return keys.mResult;
+            }
+        }
+        CanonicalizedSecretKey signingKey = keys.mSigningKey;
+
         updateProgress(R.string.progress_preparing_streams, 2, 100);
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
@@ -327,35 +454,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                         new JcePBEKeyEncryptionMethodGenerator(data.getSymmetricPassphrase().getCharArray());
                 cPk.addMethod(symmetricEncryptionGenerator);
             } else {
-                log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
-
-                // Asymmetric encryption
-                for (long id : data.getEncryptionMasterKeyIds()) {
-                    try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
-                        Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
-                        for (Long subKeyId : encryptSubKeyIds) {
-                            CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                            cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
-                            log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
-                                    KeyFormattingUtils.convertKeyIdToHex(subKeyId));
-                        }
-                        if (encryptSubKeyIds.isEmpty()) {
-                            log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
-                                    KeyFormattingUtils.convertKeyIdToHex(id));
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                        }
-                        // Make sure key is not expired or revoked
-                        if (keyRing.isExpired() || keyRing.isRevoked()) {
-                            log.add(LogType.MSG_PSE_ERROR_REVOKED_OR_EXPIRED, indent);
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                        }
-                    } catch (ProviderHelper.NotFoundException e) {
-                        log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
-                                KeyFormattingUtils.convertKeyIdToHex(id));
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
+                for (PGPKeyEncryptionMethodGenerator method : keys.mEncryptionMethods) {
+                    cPk.addMethod(method);
                 }
             }
         }
@@ -436,6 +536,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 byte[] buffer = new byte[1 << 16];
                 InputStream in = new BufferedInputStream(inputData.getInputStream());
                 while ((length = in.read(buffer)) > 0) {
+                    if (checkCancelled()) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_CANCELLED, log);
+                    }
                     pOut.write(buffer, 0, length);
 
                     // update signature buffer if signature is requested
@@ -513,6 +617,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 int length;
                 byte[] buffer = new byte[1 << 16];
                 while ((length = in.read(buffer)) > 0) {
+                    if (checkCancelled()) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_CANCELLED, log);
+                    }
                     // no output stream is written, no changed to original data!
 
                     signatureGenerator.update(buffer, 0, length);
@@ -557,6 +665,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 int length;
                 byte[] buffer = new byte[1 << 16];
                 while ((length = in.read(buffer)) > 0) {
+                    if (checkCancelled()) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_CANCELLED, log);
+                    }
                     pOut.write(buffer, 0, length);
 
                     signatureGenerator.update(buffer, 0, length);
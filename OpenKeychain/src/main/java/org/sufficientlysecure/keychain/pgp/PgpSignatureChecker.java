@@ -211,6 +211,20 @@ class PgpSignatureChecker {
 
     }
 
+    /**
+     * Updates the signature with a single line of cleartext, without its line separator. Lines
+     * are joined with CRLF and stripped of trailing whitespace, as the cleartext signature
+     * framework requires.
+     */
+    public void updateSignatureWithCleartextLine(byte[] line, int length, boolean firstLine)
+            throws SignatureException {
+        if (!firstLine) {
+            signature.update((byte) '\r');
+            signature.update((byte) '\n');
+        }
+        processLine(signature, line, length);
+    }
+
     public void updateSignatureData(byte[] buf, int off, int len) {
         if (signature != null) {
             signature.update(buf, off, len);
@@ -291,7 +305,12 @@ class PgpSignatureChecker {
 
     private static void processLine(PGPSignature sig, byte[] line)
             throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
+        processLine(sig, line, line.length);
+    }
+
+    private static void processLine(PGPSignature sig, byte[] line, int lineLength)
+            throws SignatureException {
+        int length = getLengthWithoutWhiteSpace(line, lineLength);
         if (length > 0) {
             sig.update(line, 0, length);
         }
@@ -348,8 +367,8 @@ class PgpSignatureChecker {
         return lookAhead;
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutWhiteSpace(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isWhiteSpace(line[end])) {
             end--;
@@ -0,0 +1,100 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.SecureRandom;
+
+import android.content.Context;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.sufficientlysecure.keychain.BuildConfig;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/** This class chooses the S2K count for secret keys encrypted on this device, so that unlocking
+ * them takes about as long as the unlock budget in Preferences.
+ *
+ * The S2K hash rate is measured once per device and app version, and persisted in Preferences.
+ * The count never drops below the Bouncy Castle default of 0x60, so slow devices still get the
+ * minimum protection, even if unlocking takes longer than the budget there.
+ */
+public class S2kCalibration {
+
+    public static final int MIN_S2K_COUNT = 0x60;
+    public static final int MAX_S2K_COUNT = 0xff;
+
+    // hashes 1 MiB, which is long enough to measure but short enough to not stall key creation
+    private static final int BENCHMARK_S2K_COUNT = 0xa0;
+    private static final int BENCHMARK_RUNS = 3;
+
+    /** @return the S2K count to use for new passphrases on this device, calibrating first if necessary. */
+    public static int getS2kCount(Context context) {
+        Preferences preferences = Preferences.getPreferences(context);
+
+        long bytesPerMilli = preferences.getS2kHashRate(BuildConfig.VERSION_CODE);
+        if (bytesPerMilli <= 0) {
+            bytesPerMilli = measureHashRate();
+            if (bytesPerMilli <= 0) {
+                return PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+            }
+            preferences.setS2kHashRate(BuildConfig.VERSION_CODE, bytesPerMilli);
+        }
+
+        int s2kCount = getS2kCountForBudget(bytesPerMilli, preferences.getS2kUnlockBudgetMillis());
+        Log.d(Constants.TAG, "S2kCalibration: using s2k count 0x" + Integer.toHexString(s2kCount)
+                + " at " + bytesPerMilli + " bytes/ms");
+        return s2kCount;
+    }
+
+    /** @return the largest S2K count which can be hashed within the budget at the given rate. */
+    static int getS2kCountForBudget(long bytesPerMilli, long budgetMillis) {
+        long budgetBytes = bytesPerMilli * budgetMillis;
+        int s2kCount = MIN_S2K_COUNT;
+        while (s2kCount < MAX_S2K_COUNT && getHashedBytes(s2kCount + 1) <= budgetBytes) {
+            s2kCount += 1;
+        }
+        return s2kCount;
+    }
+
+    /** @return the number of bytes hashed for an encoded S2K count, see RFC 4880, section 3.7.1.3 */
+    static long getHashedBytes(int s2kCount) {
+        return (16L + (s2kCount & 15)) << ((s2kCount >> 4) + 6);
+    }
+
+    /** @return the number of bytes per millisecond hashed by the S2K function for secret keys,
+     * or 0 if it could not be measured. The fastest of a few runs is used, to leave out warmup
+     * and scheduling noise.
+     */
+    public static long measureHashRate() {
+        try {
+            PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+            PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                    digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                    "".toCharArray());
+
+            byte[] iv = new byte[8];
+            new SecureRandom().nextBytes(iv);
+            S2K s2k = new S2K(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, iv, BENCHMARK_S2K_COUNT);
+
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < BENCHMARK_RUNS; i++) {
+                long startNanos = System.nanoTime();
+                decryptorFactory.makeKeyFromPassPhrase(
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, s2k);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - startNanos);
+            }
+
+            return Math.max(1, getHashedBytes(BENCHMARK_S2K_COUNT) * 1000000L / Math.max(1, bestNanos));
+        } catch (PGPException e) {
+            Log.e(Constants.TAG, "error measuring s2k hash rate", e);
+            return 0;
+        }
+    }
+
+}
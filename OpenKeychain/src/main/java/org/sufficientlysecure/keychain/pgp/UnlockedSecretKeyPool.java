@@ -0,0 +1,157 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/** This class holds unlocked secret keys for reuse by subsequent operations, keyed by subkey id.
+ *
+ * Remote API clients like mail apps tend to decrypt or sign many messages in a row. Without
+ * this pool, each of those operations fetches the passphrase from the PassphraseCacheService,
+ * unlocks the secret key, and builds a new decryptor factory for it. A pooled key has all of
+ * this done already.
+ *
+ * The pool is opt-in via Preferences, and is scoped to the lifetime of the passphrase cache:
+ * only keys unlocked with a passphrase obtained from the cache are added, and they expire
+ * together with that passphrase. The whole pool is cleared whenever the PassphraseCacheService
+ * removes a passphrase, or a keyring changes in the database. Since that broadcast may still
+ * be on its way, a pooled key is only handed out after checking with the PassphraseCacheService
+ * that its passphrase is still cached. This is a lot cheaper than unlocking the key again.
+ */
+public class UnlockedSecretKeyPool {
+
+    private static UnlockedSecretKeyPool sInstance;
+
+    public static synchronized UnlockedSecretKeyPool getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UnlockedSecretKeyPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final LongSparseArray<Entry> mKeys = new LongSparseArray<>();
+
+    private UnlockedSecretKeyPool(Context context) {
+        mContext = context;
+
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(Constants.TAG, "UnlockedSecretKeyPool: passphrase cache changed, clearing");
+                clear();
+            }
+        }, new IntentFilter(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_REMOVED));
+
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    private boolean isEnabled() {
+        return Preferences.getPreferences(mContext).getPassphraseCacheUnlockedKeys();
+    }
+
+    /** @return an unlocked secret key for the given subkey id, or null if none is pooled. */
+    public CanonicalizedSecretKey get(long subKeyId) {
+        Entry entry;
+        synchronized (this) {
+            entry = mKeys.get(subKeyId);
+            if (entry == null) {
+                return null;
+            }
+            if (!isEnabled() || entry.mExpiry < SystemClock.elapsedRealtime()) {
+                mKeys.remove(subKeyId);
+                return null;
+            }
+        }
+
+        // this waits for the PassphraseCacheService, so it's done without holding the lock
+        long expiry = getPassphraseExpiry(entry.mMasterKeyId, subKeyId);
+
+        synchronized (this) {
+            if (mKeys.get(subKeyId) != entry) {
+                // cleared in the meantime
+                return null;
+            }
+            if (expiry < SystemClock.elapsedRealtime()) {
+                mKeys.remove(subKeyId);
+                return null;
+            }
+            // the passphrase may have been cached again, with another timeout
+            entry.mExpiry = expiry;
+            return entry.mKey;
+        }
+    }
+
+    /** Adds a secret key to the pool. This must only be called for keys which were unlocked
+     * with a passphrase from the PassphraseCacheService.
+     */
+    public void put(CanonicalizedSecretKey key) {
+        if (!key.isUnlocked() || !isEnabled()) {
+            return;
+        }
+
+        long masterKeyId = key.getRing().getMasterKeyId();
+        long expiry = getPassphraseExpiry(masterKeyId, key.getKeyId());
+        if (expiry < SystemClock.elapsedRealtime()) {
+            return;
+        }
+
+        synchronized (this) {
+            mKeys.put(key.getKeyId(), new Entry(key, masterKeyId, expiry));
+        }
+    }
+
+    /** @return the time the cached passphrase for the given key times out, in terms of
+     * SystemClock.elapsedRealtime(), or -1 if it isn't cached (anymore).
+     */
+    private long getPassphraseExpiry(long masterKeyId, long subKeyId) {
+        long timeoutTime;
+        try {
+            timeoutTime = PassphraseCacheService.getCachedPassphraseTimeoutTime(mContext, masterKeyId, subKeyId);
+        } catch (PassphraseCacheService.KeyNotFoundException e) {
+            return -1;
+        }
+        if (timeoutTime < 0) {
+            return -1;
+        }
+        if (timeoutTime == 0) {
+            // cached until the screen is locked, or forever. we hear about it when it's removed
+            return Long.MAX_VALUE;
+        }
+        return SystemClock.elapsedRealtime() + (timeoutTime - System.currentTimeMillis());
+    }
+
+    public synchronized void clear() {
+        mKeys.clear();
+    }
+
+    private static class Entry {
+        final CanonicalizedSecretKey mKey;
+        final long mMasterKeyId;
+        long mExpiry;
+
+        Entry(CanonicalizedSecretKey key, long masterKeyId, long expiry) {
+            mKey = key;
+            mMasterKeyId = masterKeyId;
+            mExpiry = expiry;
+        }
+    }
+
+}
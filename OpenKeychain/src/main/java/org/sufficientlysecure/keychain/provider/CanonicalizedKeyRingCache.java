@@ -0,0 +1,167 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.List;
+
+/** This class holds parsed CanonicalizedKeyRing objects, keyed by master key id.
+ *
+ * Parsing a keyring blob is by far the most expensive part of obtaining a
+ * CanonicalizedKeyRing from the database, and in the common case of a remote
+ * app decrypting many small messages it is done over and over for the same
+ * few keys. The underlying PGPKeyRing objects are immutable, so it is safe to
+ * hand out the same instance to multiple callers.
+ *
+ * The cache is bounded by the encoded size of the cached keyrings. Since the
+ * database may be written from another process than the one reading from this
+ * cache, entries are invalidated both explicitly by ProviderHelper after each
+ * write, and by a ContentObserver on KeyRings.CONTENT_URI.
+ *
+ * A generation counter guards against a stale ring being put into the cache by
+ * a reader that raced with an invalidation.
+ */
+public class CanonicalizedKeyRingCache {
+
+    // limit in bytes of encoded keyring data, per cache
+    private static final int MAX_CACHE_SIZE = 1024 * 1024;
+
+    private static CanonicalizedKeyRingCache sInstance;
+
+    public static synchronized CanonicalizedKeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CanonicalizedKeyRingCache(MAX_CACHE_SIZE);
+            sInstance.registerObserver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final KeyRingLruCache mPublicRings;
+    private final KeyRingLruCache mSecretRings;
+    private long mGeneration = 0;
+
+    CanonicalizedKeyRingCache(int maxSize) {
+        mPublicRings = new KeyRingLruCache(maxSize);
+        mSecretRings = new KeyRingLruCache(maxSize);
+    }
+
+    private void registerObserver(Context context) {
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // no uri available before api level 16
+                        invalidateAll();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate(uri);
+                    }
+                });
+    }
+
+    public CanonicalizedPublicKeyRing getPublicKeyRing(long masterKeyId) {
+        Entry entry = mPublicRings.get(masterKeyId);
+        return entry != null ? (CanonicalizedPublicKeyRing) entry.mRing : null;
+    }
+
+    public CanonicalizedSecretKeyRing getSecretKeyRing(long masterKeyId) {
+        Entry entry = mSecretRings.get(masterKeyId);
+        return entry != null ? (CanonicalizedSecretKeyRing) entry.mRing : null;
+    }
+
+    /** Returns the current generation, to be passed to put() after reading from the database. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Puts a parsed keyring into the cache, unless an invalidation happened since the
+     * given generation was obtained.
+     */
+    public synchronized void put(long generation, CanonicalizedKeyRing ring, int encodedSize) {
+        if (generation != mGeneration) {
+            return;
+        }
+        Entry entry = new Entry(ring, encodedSize);
+        if (ring instanceof CanonicalizedSecretKeyRing) {
+            mSecretRings.put(ring.getMasterKeyId(), entry);
+        } else {
+            mPublicRings.put(ring.getMasterKeyId(), entry);
+        }
+    }
+
+    public synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        mPublicRings.remove(masterKeyId);
+        mSecretRings.remove(masterKeyId);
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mPublicRings.evictAll();
+        mSecretRings.evictAll();
+    }
+
+    /** Invalidates the keyring referred to by a key_rings/_/... uri, or everything if the
+     * uri does not refer to a specific keyring.
+     */
+    void invalidate(Uri uri) {
+        List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments != null && segments.size() >= 2
+                && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            try {
+                invalidate(Long.parseLong(segments.get(1)));
+                return;
+            } catch (NumberFormatException e) {
+                // not a specific keyring (e.g. key_rings/unified), fall through
+            }
+        }
+        Log.d(Constants.TAG, "invalidating all cached keyrings for uri " + uri);
+        invalidateAll();
+    }
+
+    public int getHitCount() {
+        return mPublicRings.hitCount() + mSecretRings.hitCount();
+    }
+
+    public int getMissCount() {
+        return mPublicRings.missCount() + mSecretRings.missCount();
+    }
+
+    public int getSize() {
+        return mPublicRings.size() + mSecretRings.size();
+    }
+
+    private static class Entry {
+        final CanonicalizedKeyRing mRing;
+        final int mEncodedSize;
+
+        Entry(CanonicalizedKeyRing ring, int encodedSize) {
+            mRing = ring;
+            mEncodedSize = encodedSize;
+        }
+    }
+
+    private static class KeyRingLruCache extends LruCache<Long, Entry> {
+        KeyRingLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, Entry entry) {
+            return entry.mEncodedSize;
+        }
+    }
+
+}
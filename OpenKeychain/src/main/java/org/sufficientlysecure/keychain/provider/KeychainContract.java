@@ -20,9 +20,12 @@ package org.sufficientlysecure.keychain.provider;
 
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
 
+import java.util.Collection;
+
 public class KeychainContract {
 
     interface KeyRingsColumns {
@@ -54,6 +57,9 @@ public class KeychainContract {
     interface UpdatedKeysColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
+        String CONTENT_HASH = "content_hash"; // sha256 of the keyring data last merged from the keyserver
+        String ETAG = "etag"; // http validators sent by the keyserver along with that data
+        String LAST_MODIFIED = "last_modified";
     }
 
     interface UserPacketsColumns {
@@ -69,6 +75,27 @@ public class KeychainContract {
         String IS_REVOKED = "is_revoked";
     }
 
+    interface KeySummaryColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
+        // copied from the rank 0 user id
+        String USER_ID = "user_id";
+        String NAME = "name";
+        String EMAIL = "email";
+        String COMMENT = "comment";
+        String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
+        String VERIFIED = "verified";
+        String HAS_ANY_SECRET = "has_any_secret";
+        // for each capability, the usable subkey which expires last, and its expiry
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+    }
+
     interface CertsColumns {
         String MASTER_KEY_ID = "master_key_id";
         String RANK = "rank";
@@ -79,6 +106,11 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface KeySignaturesColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
+        String SIGNER_KEY_ID = "signer_key_id";
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -111,8 +143,10 @@ public class KeychainContract {
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
+    public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_SUBKEY = "subkey";
     public static final String PATH_BY_USER_ID = "user_id";
+    public static final String PATH_UPDATE_DUE = "update_due";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -120,6 +154,7 @@ public class KeychainContract {
     public static final String PATH_LINKED_IDS = "linked_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_KEY_SIGNATURES = "key_signatures";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -178,6 +213,12 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /** Finds the keyrings for many emails at once, with one row per matching email and keyring. */
+        public static Uri buildKeyRingsFindByEmailsUri(Collection<String> emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_EMAILS).appendPath(TextUtils.join(",", emails)).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_USER_ID).appendPath(query).build();
@@ -188,6 +229,15 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /**
+         * Finds the keyrings which have not been updated from a keyserver since the given time,
+         * in seconds since the epoch.
+         */
+        public static Uri buildUnifiedKeyRingsFindUpdateDueUri(long notUpdatedSince) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_UPDATE_DUE).appendPath(Long.toString(notUpdatedSince)).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -397,6 +447,20 @@ public class KeychainContract {
 
     }
 
+    public static class KeySignatures implements KeySignaturesColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildKeySignaturesUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEY_SIGNATURES).build();
+        }
+
+        public static Uri buildKeySignaturesUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_KEY_SIGNATURES).build();
+        }
+    }
+
     private KeychainContract() {
     }
 }
@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.provider;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -31,7 +32,10 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignaturesColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
@@ -54,7 +58,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 17;
+    private static final int DATABASE_VERSION = 21;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -64,7 +68,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
+        String USER_PACKETS_FTS = "user_packets_fts";
+        String KEY_SUMMARY = "key_summary";
         String CERTS = "certs";
+        String KEY_SIGNATURES = "key_signatures";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -129,6 +136,79 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    // full text index over user ids, the docid of each row is the oid of its user_packets row.
+    // fts4 external content tables would avoid the copy, but require sqlite 3.7.9 (api 16)
+    private static final String CREATE_USER_PACKETS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_PACKETS_FTS + " USING fts4("
+                + UserPacketsColumns.NAME + ", "
+                + UserPacketsColumns.EMAIL + ", "
+                + UserPacketsColumns.COMMENT
+            + ")";
+
+    // the index is kept in sync by triggers, which also fire for ON DELETE CASCADE
+    private static final String[] CREATE_USER_PACKETS_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_insert AFTER INSERT ON " + Tables.USER_PACKETS
+                + " BEGIN INSERT INTO " + Tables.USER_PACKETS_FTS + " (docid, "
+                    + UserPacketsColumns.NAME + ", " + UserPacketsColumns.EMAIL + ", " + UserPacketsColumns.COMMENT
+                + ") VALUES (new.oid, new." + UserPacketsColumns.NAME + ", new." + UserPacketsColumns.EMAIL
+                    + ", new." + UserPacketsColumns.COMMENT + "); END",
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_update AFTER UPDATE ON " + Tables.USER_PACKETS
+                + " BEGIN UPDATE " + Tables.USER_PACKETS_FTS + " SET "
+                    + UserPacketsColumns.NAME + " = new." + UserPacketsColumns.NAME + ", "
+                    + UserPacketsColumns.EMAIL + " = new." + UserPacketsColumns.EMAIL + ", "
+                    + UserPacketsColumns.COMMENT + " = new." + UserPacketsColumns.COMMENT
+                + " WHERE docid = old.oid; END",
+            "CREATE TRIGGER IF NOT EXISTS user_packets_fts_delete AFTER DELETE ON " + Tables.USER_PACKETS
+                + " BEGIN DELETE FROM " + Tables.USER_PACKETS_FTS + " WHERE docid = old.oid; END"
+    };
+
+    // one row per keyring, with everything the key list needs that would otherwise have to be
+    // joined together from keys, user_packets and certs on every query. see updateKeySummary()
+    private static final String CREATE_KEY_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeySummaryColumns.USER_ID + " TEXT, "
+                + KeySummaryColumns.NAME + " TEXT, "
+                + KeySummaryColumns.EMAIL + " TEXT, "
+                + KeySummaryColumns.COMMENT + " TEXT, "
+                + KeySummaryColumns.HAS_DUPLICATE_USER_ID + " INTEGER, "
+                + KeySummaryColumns.VERIFIED + " INTEGER, "
+                + KeySummaryColumns.HAS_ANY_SECRET + " INTEGER, "
+
+                + KeySummaryColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeySummaryColumns.CERTIFY_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeySummaryColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEY_SUMMARY_INDEX =
+            "CREATE INDEX IF NOT EXISTS key_summary_by_uid ON " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.NAME + " COLLATE NOCASE, " + KeySummaryColumns.EMAIL + " COLLATE NOCASE)";
+
+    // every third party key that issued a certification on a keyring, whether or not that
+    // certification is stored in the certs table. used to find the keyrings affected by
+    // importing or deleting a secret key, see ProviderHelper.consolidateKeyRingsCertifiedBy()
+    private static final String CREATE_KEY_SIGNATURES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_SIGNATURES + " ("
+                + KeySignaturesColumns.MASTER_KEY_ID + " INTEGER NOT NULL, "
+                + KeySignaturesColumns.SIGNER_KEY_ID + " INTEGER NOT NULL, "
+                + "PRIMARY KEY(" + KeySignaturesColumns.MASTER_KEY_ID + ", "
+                    + KeySignaturesColumns.SIGNER_KEY_ID + "), "
+                + "FOREIGN KEY(" + KeySignaturesColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEY_SIGNATURES_INDEX =
+            "CREATE INDEX IF NOT EXISTS key_signatures_by_signer ON " + Tables.KEY_SIGNATURES + " ("
+                + KeySignaturesColumns.SIGNER_KEY_ID + ")";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -153,6 +233,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
                     + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
+                    + UpdatedKeysColumns.CONTENT_HASH + " BLOB, "
+                    + UpdatedKeysColumns.ETAG + " TEXT, "
+                    + UpdatedKeysColumns.LAST_MODIFIED + " TEXT, "
                     + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
@@ -218,7 +301,15 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_FTS);
+        for (String trigger : CREATE_USER_PACKETS_FTS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_KEY_SUMMARY);
+        db.execSQL(CREATE_KEY_SUMMARY_INDEX);
+        db.execSQL(CREATE_KEY_SIGNATURES);
+        db.execSQL(CREATE_KEY_SIGNATURES_INDEX);
         db.execSQL(CREATE_UPDATE_KEYS);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
@@ -230,6 +321,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
 
+        // nothing cached from a previous database can be valid for this one
+        CanonicalizedKeyRingCache.getInstance(mContext).invalidateAll();
+
     }
 
     @Override
@@ -314,19 +408,177 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 15:
                 db.execSQL("CREATE INDEX uids_by_name ON user_packets (name COLLATE NOCASE)");
                 db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
-                if (oldVersion == 14) {
-                    // no consolidate necessary
-                    return;
+            case 16:
+                // do nothing here, just consolidate
+            case 17:
+                // full text index for user id search
+                db.execSQL(CREATE_USER_PACKETS_FTS);
+                for (String trigger : CREATE_USER_PACKETS_FTS_TRIGGERS) {
+                    db.execSQL(trigger);
                 }
+                db.execSQL("INSERT INTO " + Tables.USER_PACKETS_FTS + " (docid, name, email, comment)"
+                        + " SELECT oid, name, email, comment FROM " + Tables.USER_PACKETS);
+            case 18:
+                db.execSQL(CREATE_KEY_SUMMARY);
+                db.execSQL(CREATE_KEY_SUMMARY_INDEX);
+                updateKeySummary(db, null);
+            case 19:
+                // filled in by the consolidate below, which reimports all keyrings
+                db.execSQL(CREATE_KEY_SIGNATURES);
+                db.execSQL(CREATE_KEY_SIGNATURES_INDEX);
+            case 20:
+                // for conditional keyserver refresh. upgrades from before version 11 created
+                // the table with these columns already
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.CONTENT_HASH, "BLOB");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.ETAG, "TEXT");
+                addColumnIfMissing(db, Tables.UPDATED_KEYS, UpdatedKeysColumns.LAST_MODIFIED, "TEXT");
+        }
+
+        if (oldVersion >= 20) {
+            // all keyrings are stored with their key_signatures, no consolidate necessary
+            return;
         }
 
-        // always do consolidate after upgrade
+        // consolidate after upgrades across version 20, to fill key_signatures
         Intent consolidateIntent = new Intent(mContext.getApplicationContext(), ConsolidateDialogActivity.class);
         consolidateIntent.putExtra(ConsolidateDialogActivity.EXTRA_CONSOLIDATE_RECOVERY, false);
         consolidateIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    /** Recomputes the key_summary row of a keyring from the keys, user_packets and certs tables,
+     * or those of all keyrings if masterKeyId is null. This must be called whenever any of
+     * these change for a keyring, the row is removed automatically if the keyring is deleted.
+     */
+    static void updateKeySummary(SQLiteDatabase db, Long masterKeyId) {
+        String[] oldUserId = masterKeyId != null ? getSummaryUserId(db, masterKeyId) : null;
+
+        db.execSQL("INSERT OR REPLACE INTO " + Tables.KEY_SUMMARY + " ("
+                + KeySummaryColumns.MASTER_KEY_ID + ", "
+                + KeySummaryColumns.USER_ID + ", "
+                + KeySummaryColumns.NAME + ", "
+                + KeySummaryColumns.EMAIL + ", "
+                + KeySummaryColumns.COMMENT + ", "
+                + KeySummaryColumns.HAS_DUPLICATE_USER_ID + ", "
+                + KeySummaryColumns.VERIFIED + ", "
+                + KeySummaryColumns.HAS_ANY_SECRET + ", "
+                + KeySummaryColumns.ENCRYPT_KEY_ID + ", "
+                + KeySummaryColumns.ENCRYPT_EXPIRY + ", "
+                + KeySummaryColumns.SIGN_KEY_ID + ", "
+                + KeySummaryColumns.SIGN_EXPIRY + ", "
+                + KeySummaryColumns.AUTHENTICATE_KEY_ID + ", "
+                + KeySummaryColumns.AUTHENTICATE_EXPIRY + ", "
+                + KeySummaryColumns.CERTIFY_KEY_ID + ", "
+                + KeySummaryColumns.CERTIFY_EXPIRY
+            + ") SELECT "
+                + "k." + KeysColumns.MASTER_KEY_ID + ", "
+                + "u." + UserPacketsColumns.USER_ID + ", "
+                + "u." + UserPacketsColumns.NAME + ", "
+                + "u." + UserPacketsColumns.EMAIL + ", "
+                + "u." + UserPacketsColumns.COMMENT + ", "
+                + "0, "
+                + "(SELECT c." + CertsColumns.VERIFIED + " FROM " + Tables.CERTS + " AS c"
+                    + " WHERE c." + CertsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND c." + CertsColumns.VERIFIED + " = " + Certs.VERIFIED_SECRET + " LIMIT 1), "
+                + "EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_SECRET + " AS s"
+                    + " WHERE s." + KeyRingsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID + "), "
+                + selectCapableSubkey(KeysColumns.CAN_ENCRYPT, false) + ", "
+                + selectCapableSubkey(KeysColumns.CAN_SIGN, true) + ", "
+                + selectCapableSubkey(KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                + selectCapableSubkey(KeysColumns.CAN_CERTIFY, true)
+            + " FROM " + Tables.KEYS + " AS k"
+            + " INNER JOIN " + Tables.USER_PACKETS + " AS u ON ("
+                + "u." + UserPacketsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                // we KNOW that the rank zero user packet is a user id!
+                + " AND u." + UserPacketsColumns.RANK + " = 0"
+            + ") WHERE k." + KeysColumns.RANK + " = 0"
+            + (masterKeyId != null ? " AND k." + KeysColumns.MASTER_KEY_ID + " = " + masterKeyId : ""));
+
+        if (masterKeyId == null) {
+            updateDuplicateUserIds(db, null);
+            return;
+        }
+
+        // the old and the new user id may both have gained or lost a duplicate
+        if (oldUserId != null) {
+            updateDuplicateUserIds(db, oldUserId);
+        }
+        String[] newUserId = getSummaryUserId(db, masterKeyId);
+        if (newUserId != null) {
+            updateDuplicateUserIds(db, newUserId);
+        }
+    }
+
+    /** Selects key id and expiry of the usable subkey with the given capability which expires
+     * last, so its expiry tells if the keyring has any usable subkey at a given time.
+     */
+    private static String selectCapableSubkey(String capability, boolean needsSecret) {
+        String subquery = " FROM " + Tables.KEYS + " AS sub"
+                + " WHERE sub." + KeysColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                + " AND sub." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND sub." + capability + " = 1"
+                + (needsSecret ? " AND sub." + KeysColumns.HAS_SECRET + " > 1" : "")
+                + " ORDER BY sub." + KeysColumns.EXPIRY + " IS NULL DESC, sub." + KeysColumns.EXPIRY + " DESC"
+                + " LIMIT 1";
+        return "(SELECT sub." + KeysColumns.KEY_ID + subquery + "), "
+                + "(SELECT sub." + KeysColumns.EXPIRY + subquery + ")";
+    }
+
+    /** @return name and email of the key_summary row for this keyring, or null if there is none */
+    static String[] getSummaryUserId(SQLiteDatabase db, long masterKeyId) {
+        Cursor cursor = db.query(Tables.KEY_SUMMARY,
+                new String[] { KeySummaryColumns.NAME, KeySummaryColumns.EMAIL },
+                KeySummaryColumns.MASTER_KEY_ID + " = " + masterKeyId, null, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new String[] { cursor.getString(0), cursor.getString(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Updates the duplicate flag of all keyrings with the given name and email as primary
+     * user id, or of all keyrings if userId is null.
+     */
+    static void updateDuplicateUserIds(SQLiteDatabase db, String[] userId) {
+        String where = "";
+        if (userId != null) {
+            if (userId[0] == null || userId[1] == null) {
+                // never equal to anything, so never a duplicate
+                return;
+            }
+            where = " WHERE " + KeySummaryColumns.NAME + " = " + DatabaseUtils.sqlEscapeString(userId[0])
+                    + " COLLATE NOCASE AND " + KeySummaryColumns.EMAIL + " = "
+                    + DatabaseUtils.sqlEscapeString(userId[1]) + " COLLATE NOCASE";
+        }
+        db.execSQL("UPDATE " + Tables.KEY_SUMMARY + " SET " + KeySummaryColumns.HAS_DUPLICATE_USER_ID
+                + " = EXISTS (SELECT 1 FROM " + Tables.KEY_SUMMARY + " AS dups"
+                    + " WHERE dups." + KeySummaryColumns.MASTER_KEY_ID
+                        + " != " + Tables.KEY_SUMMARY + "." + KeySummaryColumns.MASTER_KEY_ID
+                    + " AND dups." + KeySummaryColumns.NAME
+                        + " = " + Tables.KEY_SUMMARY + "." + KeySummaryColumns.NAME + " COLLATE NOCASE"
+                    + " AND dups." + KeySummaryColumns.EMAIL
+                        + " = " + Tables.KEY_SUMMARY + "." + KeySummaryColumns.EMAIL + " COLLATE NOCASE"
+                + ")" + where);
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
@@ -489,6 +741,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        CanonicalizedKeyRingCache.getInstance(mContext).invalidateAll();
     }
 
 }
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -28,6 +31,7 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
@@ -39,6 +43,8 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignatures;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
@@ -46,9 +52,10 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -57,6 +64,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_KEY_SIGNATURES = 105;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -67,6 +75,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_KEY_SIGNATURES = 209;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -77,10 +86,34 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
     private static final int KEY_RINGS_FIND_BY_USER_ID = 402;
+    private static final int KEY_RINGS_FIND_BY_EMAILS = 403;
+    private static final int KEY_RINGS_FIND_UPDATE_DUE = 404;
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
 
+    /**
+     * Methods for call(), which allow grouping many writes into a single transaction.
+     *
+     * SQLite transactions are bound to the calling thread, so these must only be used from
+     * within the process hosting this provider, where ContentResolver calls are executed
+     * synchronously on the calling thread. While such a transaction is open, change
+     * notifications are suppressed. A single notification for all key rings is sent when
+     * it ends.
+     */
+    static final String METHOD_BEGIN_TRANSACTION = "begin_transaction";
+    static final String METHOD_END_TRANSACTION = "end_transaction";
+    static final String EXTRA_TRANSACTION_SUCCESSFUL = "transaction_successful";
+
+    // only set in the process hosting this provider, see isHostedInThisProcess()
+    private static volatile boolean sHostedInThisProcess;
+
+    /** Updates the key summary of the keyring with the master key id given as arg. */
+    static final String METHOD_UPDATE_KEY_SUMMARY = "update_key_summary";
+
+    // evaluated by sqlite, so the query string stays the same and its statement can be cached
+    private static final String SQL_NOW = "CAST(strftime('%s', 'now') AS INTEGER)";
+
     protected UriMatcher mUriMatcher;
 
     /**
@@ -100,6 +133,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/key_signatures
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -114,12 +148,17 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEY_SIGNATURES,
+                KEY_RINGS_KEY_SIGNATURES);
 
         /**
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
+         * key_rings/find/emails/_
          * key_rings/find/subkey/_
+         * key_rings/find/update_due/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -131,6 +170,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                         + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
                 KEY_RINGS_FIND_BY_USER_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                        + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAILS + "/*",
+                KEY_RINGS_FIND_BY_EMAILS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                        + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_UPDATE_DUE + "/*",
+                KEY_RINGS_FIND_UPDATE_DUE);
 
         /**
          * list key_ring specifics
@@ -146,6 +191,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/key_signatures
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -176,6 +222,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_KEY_SIGNATURES,
+                KEY_RING_KEY_SIGNATURES);
 
         /**
          * API apps
@@ -218,9 +267,18 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
+        sHostedInThisProcess = true;
         return true;
     }
 
+    /**
+     * Returns true if this provider runs in the calling process, which is required for the
+     * transaction methods of call(). Other processes, e.g. the sync adapters, must not use them.
+     */
+    static boolean isHostedInThisProcess() {
+        return sHostedInThisProcess;
+    }
+
     public KeychainDatabase getDb() {
         if(mKeychainDatabase == null)
             mKeychainDatabase = new KeychainDatabase(getContext());
@@ -291,7 +349,8 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
             case KEY_RINGS_FIND_BY_SUBKEY:
-            case KEY_RINGS_FIND_BY_USER_ID: {
+            case KEY_RINGS_FIND_BY_USER_ID:
+            case KEY_RINGS_FIND_UPDATE_DUE: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -307,21 +366,13 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
-                projectionMap.put(KeyRings.NAME, Tables.USER_PACKETS + "." + UserPackets.NAME);
-                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
-                projectionMap.put(KeyRings.COMMENT, Tables.USER_PACKETS + "." + UserPackets.COMMENT);
+                projectionMap.put(KeyRings.USER_ID, Tables.KEY_SUMMARY + "." + KeySummaryColumns.USER_ID);
+                projectionMap.put(KeyRings.NAME, Tables.KEY_SUMMARY + "." + KeySummaryColumns.NAME);
+                projectionMap.put(KeyRings.EMAIL, Tables.KEY_SUMMARY + "." + KeySummaryColumns.EMAIL);
+                projectionMap.put(KeyRings.COMMENT, Tables.KEY_SUMMARY + "." + KeySummaryColumns.COMMENT);
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                            "(EXISTS (SELECT * FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.NAME
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.NAME + " COLLATE NOCASE"
-                                + " AND dups." + UserPackets.EMAIL
-                                    + " = " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE"
-                                + ")) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, Tables.CERTS + "." + Certs.VERIFIED);
+                        Tables.KEY_SUMMARY + "." + KeySummaryColumns.HAS_DUPLICATE_USER_ID);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEY_SUMMARY + "." + KeySummaryColumns.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
@@ -329,18 +380,22 @@ public class KeychainProvider extends ContentProvider {
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                        "(" + Tables.KEY_RINGS_SECRET + "." + KeyRings.MASTER_KEY_ID + " IS NOT NULL)" +
-                                " AS " + KeyRings.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, Tables.KEY_SUMMARY + "." + KeySummaryColumns.HAS_ANY_SECRET);
                 projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
+                        selectUnexpiredSubkey(KeySummaryColumns.ENCRYPT_KEY_ID, KeySummaryColumns.ENCRYPT_EXPIRY)
+                                + " AS " + KeyRings.HAS_ENCRYPT);
                 projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
+                        selectUnexpiredSubkey(KeySummaryColumns.SIGN_KEY_ID, KeySummaryColumns.SIGN_EXPIRY)
+                                + " AS " + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE,
+                        selectUnexpiredSubkey(KeySummaryColumns.AUTHENTICATE_KEY_ID, KeySummaryColumns.AUTHENTICATE_EXPIRY)
+                                + " AS " + KeyRings.HAS_AUTHENTICATE);
                 projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                        selectUnexpiredSubkey(KeySummaryColumns.CERTIFY_KEY_ID, KeySummaryColumns.CERTIFY_EXPIRY)
+                                + " AS " + KeyRings.HAS_CERTIFY);
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                                + " < " + SQL_NOW + ") AS " + KeyRings.IS_EXPIRED);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -352,18 +407,11 @@ public class KeychainProvider extends ContentProvider {
 
                 qb.setTables(
                     Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
+                        // everything that depends on more than the master key row is precomputed
+                        + " INNER JOIN " + Tables.KEY_SUMMARY + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
-                                    + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
-                            // we KNOW that the rank zero user packet is a user id!
-                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                                    + Tables.KEY_SUMMARY + "." + KeySummaryColumns.MASTER_KEY_ID
                         + ")"
                         // fairly expensive joins following, only do when requested
                         + (plist.contains(KeyRings.PUBKEY_DATA) ?
@@ -372,55 +420,14 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.PRIVKEY_DATA) || plist.contains(KeyRings.HAS_ANY_SECRET) ?
+                        + (plist.contains(KeyRings.PRIVKEY_DATA) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -443,6 +450,22 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_UPDATE_DUE: {
+                        try {
+                            String notUpdatedSince = Long.valueOf(uri.getLastPathSegment()).toString();
+                            // updated_keys is keyed by master key id, so this is a lookup per keyring
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " NOT IN ("
+                                    + " SELECT " + Tables.UPDATED_KEYS + "." + UpdatedKeys.MASTER_KEY_ID
+                                    + " FROM " + Tables.UPDATED_KEYS
+                                    + " WHERE " + Tables.UPDATED_KEYS + "." + UpdatedKeys.LAST_UPDATED
+                                    + " > " + notUpdatedSince
+                                    + ")");
+                        } catch (NumberFormatException e) {
+                            Log.e(Constants.TAG, "Malformed find update due query!", e);
+                            qb.appendWhere(" AND 0");
+                        }
+                        break;
+                    }
                     case KEY_RINGS_FIND_BY_EMAIL:
                     case KEY_RINGS_FIND_BY_USER_ID: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
@@ -453,24 +476,23 @@ public class KeychainProvider extends ContentProvider {
                             if (chunks[i].length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
+                            if (gotCondition) {
                                 emailWhere += " OR ";
                             }
                             if (match == KEY_RINGS_FIND_BY_EMAIL) {
-                                emailWhere += "tmp." + UserPackets.EMAIL + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString(chunks[i]);
+                                emailWhere += buildFindByEmailCondition(chunks[i]);
                             } else {
-                                emailWhere += "tmp." + UserPackets.USER_ID + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString("%" + chunks[i] + "%");
+                                emailWhere += buildFindByUserIdCondition(chunks[i]);
                             }
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                            // select matching user ids first, this lets sqlite start from the
+                            // (usually few) fts matches instead of checking every keyring
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                    + " WHERE " + emailWhere
                                 + ")");
                         } else {
                             // TODO better way to do this?
@@ -482,7 +504,7 @@ public class KeychainProvider extends ContentProvider {
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    sortOrder = Tables.KEY_SUMMARY + "." + KeySummaryColumns.USER_ID + " ASC";
                 }
 
                 // uri to watch is all /key_rings/
@@ -518,6 +540,48 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_FIND_BY_EMAILS: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRings._ID, "MIN(" + Tables.USER_PACKETS + ".oid) AS _id");
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
+                                + " < " + SQL_NOW + ") AS " + KeyRings.IS_EXPIRED);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_PACKETS
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
+                            + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = "
+                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                            + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
+                        + ")");
+
+                ArrayList<String> emails = new ArrayList<>();
+                for (String email : uri.getLastPathSegment().split(" *, *")) {
+                    if (!email.isEmpty()) {
+                        emails.add(DatabaseUtils.sqlEscapeString(email));
+                    }
+                }
+                if (emails.isEmpty()) {
+                    Log.e(Constants.TAG, "Malformed find by emails query!");
+                    qb.appendWhere("0");
+                } else {
+                    // this collation matches the uids_by_email index
+                    qb.appendWhere(Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE IN ("
+                            + TextUtils.join(", ", emails) + ")");
+                }
+                // one row per keyring and email, even if several of its user ids have that email
+                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID + ", "
+                        + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE";
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
             case KEY_RINGS_USER_IDS:
             case KEY_RING_USER_IDS:
             case KEY_RING_LINKED_IDS: {
@@ -603,6 +667,18 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_KEY_SIGNATURES: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeySignatures.MASTER_KEY_ID, KeySignatures.MASTER_KEY_ID);
+                projectionMap.put(KeySignatures.SIGNER_KEY_ID, KeySignatures.SIGNER_KEY_ID);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEY_SIGNATURES);
+                qb.setDistinct(true);
+
+                break;
+            }
+
             case KEY_RING_CERTS:
             case KEY_RING_CERTS_SPECIFIC:
             case KEY_RING_LINKED_ID_CERTS: {
@@ -667,6 +743,12 @@ public class KeychainProvider extends ContentProvider {
                         + UpdatedKeys.MASTER_KEY_ID);
                 projectionMap.put(UpdatedKeys.LAST_UPDATED, Tables.UPDATED_KEYS + "."
                         + UpdatedKeys.LAST_UPDATED);
+                projectionMap.put(UpdatedKeys.CONTENT_HASH, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.CONTENT_HASH);
+                projectionMap.put(UpdatedKeys.ETAG, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.ETAG);
+                projectionMap.put(UpdatedKeys.LAST_MODIFIED, Tables.UPDATED_KEYS + "."
+                        + UpdatedKeys.LAST_MODIFIED);
                 qb.setProjectionMap(projectionMap);
                 if (match == UPDATED_KEYS_SPECIFIC) {
                     qb.appendWhere(UpdatedKeys.MASTER_KEY_ID + " = ");
@@ -768,6 +850,62 @@ public class KeychainProvider extends ContentProvider {
         return cursor;
     }
 
+    /** Selects the subkey id from the key summary, unless that subkey has expired. Since it is
+     * the one which expires last, there is no other unexpired subkey in that case either.
+     */
+    private static String selectUnexpiredSubkey(String keyIdColumn, String expiryColumn) {
+        return "(CASE WHEN " + Tables.KEY_SUMMARY + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEY_SUMMARY + "." + expiryColumn + " >= " + SQL_NOW
+                + " THEN " + Tables.KEY_SUMMARY + "." + keyIdColumn + " END)";
+    }
+
+    /** Splits a search string the same way sqlite's "simple" fts tokenizer splits user ids,
+     * which treats every ascii character that isn't a letter or digit as a separator.
+     */
+    private static List<String> tokenizeForFts(String query) {
+        ArrayList<String> tokens = new ArrayList<>();
+        for (String token : query.split("[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static String buildFtsCondition(String ftsQuery) {
+        return "tmp.oid IN (SELECT docid FROM " + Tables.USER_PACKETS_FTS
+                + " WHERE " + Tables.USER_PACKETS_FTS + " MATCH " + DatabaseUtils.sqlEscapeString(ftsQuery) + ")";
+    }
+
+    /** Matches user ids which contain a word starting with each word of the query. */
+    private static String buildFindByUserIdCondition(String query) {
+        List<String> tokens = tokenizeForFts(query);
+        if (tokens.isEmpty()) {
+            // nothing the index can help with, e.g. a search for "@"
+            return "tmp." + UserPackets.USER_ID + " LIKE " + DatabaseUtils.sqlEscapeString("%" + query + "%");
+        }
+
+        // quoted so tokens like "or" aren't parsed as operators
+        ArrayList<String> prefixTerms = new ArrayList<>();
+        for (String token : tokens) {
+            prefixTerms.add("\"" + token + "*\"");
+        }
+        return buildFtsCondition(TextUtils.join(" ", prefixTerms));
+    }
+
+    /** Matches user ids with exactly this email address. The index narrows down the candidates,
+     * the final comparison is still done on the email column itself.
+     */
+    private static String buildFindByEmailCondition(String email) {
+        String emailCondition = "tmp." + UserPackets.EMAIL + " LIKE " + DatabaseUtils.sqlEscapeString(email);
+        List<String> tokens = tokenizeForFts(email);
+        if (tokens.isEmpty()) {
+            return emailCondition;
+        }
+        return "(" + buildFtsCondition(UserPackets.EMAIL + ":\"" + TextUtils.join(" ", tokens) + "\"")
+                + " AND " + emailCondition + ")";
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -820,6 +958,11 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_KEY_SIGNATURES: {
+                    db.insertOrThrow(Tables.KEY_SIGNATURES, null, values);
+                    keyId = values.getAsLong(KeySignatures.MASTER_KEY_ID);
+                    break;
+                }
                 case UPDATED_KEYS: {
                     long updatedKeyId = db.replace(Tables.UPDATED_KEYS, null, values);
                     rowUri = UpdatedKeys.CONTENT_URI.buildUpon().appendPath("" + updatedKeyId)
@@ -859,7 +1002,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChangeUnlessInTransaction(db, uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -892,8 +1035,14 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
+                String[] oldUserId = KeychainDatabase.getSummaryUserId(db,
+                        Long.parseLong(uri.getPathSegments().get(1)));
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                // other keyrings with the same user id may not be duplicates anymore
+                if (count > 0 && oldUserId != null) {
+                    KeychainDatabase.updateDuplicateUserIds(db, oldUserId);
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -929,7 +1078,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChangeUnlessInTransaction(db, uri);
 
         return count;
     }
@@ -977,7 +1126,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChangeUnlessInTransaction(db, uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -986,6 +1135,93 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies a batch of operations in a single transaction, sending only one notification per
+     * affected key ring afterwards. The key summary of each affected key ring is recomputed
+     * within the same transaction, so it is never missing or out of date in between. If the
+     * calling thread already holds a transaction opened via {@link #METHOD_BEGIN_TRANSACTION},
+     * the batch is nested into it, and notifications are sent once that ends.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Long> masterKeyIds = new HashSet<>();
+        HashSet<Uri> notifyUris = new HashSet<>();
+        for (ContentProviderOperation operation : operations) {
+            Uri uri = operation.getUri();
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() >= 2 && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+                masterKeyIds.add(Long.parseLong(segments.get(1)));
+                notifyUris.add(KeyRings.buildGenericKeyRingUri(uri));
+            } else {
+                notifyUris.add(uri);
+            }
+        }
+
+        boolean nested = db.inTransaction();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            for (long masterKeyId : masterKeyIds) {
+                KeychainDatabase.updateKeySummary(db, masterKeyId);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+
+            if (!nested) {
+                for (Uri uri : notifyUris) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        switch (method) {
+            case METHOD_BEGIN_TRANSACTION: {
+                db.beginTransaction();
+                break;
+            }
+            case METHOD_END_TRANSACTION: {
+                if (extras != null && extras.getBoolean(EXTRA_TRANSACTION_SUCCESSFUL)) {
+                    db.setTransactionSuccessful();
+                }
+                db.endTransaction();
+                // notifications were suppressed during the transaction, so notify for everything
+                if (!db.inTransaction()) {
+                    getContext().getContentResolver().notifyChange(KeyRings.CONTENT_URI, null);
+                }
+                break;
+            }
+            case METHOD_UPDATE_KEY_SUMMARY: {
+                KeychainDatabase.updateKeySummary(db, Long.parseLong(arg));
+                // the unified uris read from the summary, so they are only up to date now
+                notifyChangeUnlessInTransaction(db, KeyRings.buildGenericKeyRingUri(arg));
+                break;
+            }
+            default: {
+                throw new UnsupportedOperationException("Unknown method: " + method);
+            }
+        }
+
+        return null;
+    }
+
+    private void notifyChangeUnlessInTransaction(SQLiteDatabase db, Uri uri) {
+        // within a transaction, notification happens once it ends
+        if (!db.inTransaction()) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
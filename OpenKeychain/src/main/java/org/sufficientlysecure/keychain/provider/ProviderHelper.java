@@ -20,15 +20,18 @@ package org.sufficientlysecure.keychain.provider;
 
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
 import org.sufficientlysecure.keychain.Constants;
@@ -37,9 +40,11 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -56,9 +61,11 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySignatures;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
@@ -76,8 +83,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -93,9 +102,13 @@ import java.util.concurrent.TimeUnit;
 public class ProviderHelper {
     private final Context mContext;
     private final ContentResolver mContentResolver;
+    private final CanonicalizedKeyRingCache mKeyRingCache;
     private OperationLog mLog;
     private int mIndent;
 
+    private int mImportSessionDepth = 0;
+    private LongSparseArray<CanonicalizedPublicKey> mSessionTrustedKeys;
+
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
     }
@@ -107,6 +120,7 @@ public class ProviderHelper {
     public ProviderHelper(Context context, OperationLog log, int indent) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+        mKeyRingCache = CanonicalizedKeyRingCache.getInstance(context);
         mLog = log;
         mIndent = indent;
     }
@@ -140,6 +154,17 @@ public class ProviderHelper {
         mLog = new OperationLog();
     }
 
+    /** Appends entries of a log which was written with an indent of 0 at the current indent. */
+    private void appendLog(OperationLog log) {
+        if (mLog != null && log != null) {
+            ArrayList<LogEntryParcel> entries = new ArrayList<>();
+            for (LogEntryParcel entry : log) {
+                entries.add(new LogEntryParcel(entry, mIndent));
+            }
+            mLog.addAll(entries);
+        }
+    }
+
     // If we ever switch to api level 11, we can ditch this whole mess!
     public static final int FIELD_TYPE_NULL = 1;
     // this is called integer to stay coherent with the constants in Cursor (api level 11)
@@ -212,6 +237,84 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /**
+     * Starts an import session. While a session is active, the set of trusted master keys used
+     * to verify third-party certifications is loaded only once, and reused for each saved
+     * keyring until a secret keyring is saved. Sessions may be nested, each call to this method
+     * must be matched by a call to {@link #endImportSession()}.
+     */
+    public void startImportSession() {
+        mImportSessionDepth += 1;
+    }
+
+    public void endImportSession() {
+        mImportSessionDepth -= 1;
+        if (mImportSessionDepth <= 0) {
+            mImportSessionDepth = 0;
+            mSessionTrustedKeys = null;
+        }
+    }
+
+    /**
+     * Starts a bulk transaction, which groups all following writes into a single database
+     * transaction until {@link #endBulkTransaction(boolean)} is called.
+     * <p/>
+     * Bulk transactions may be nested, but they are not savepoints: if a nested transaction ends
+     * unsuccessfully, the outermost one is rolled back as a whole once it ends, even if it is
+     * ended successfully. Callers must keep track of what to write again in that case.
+     * <p/>
+     * Database transactions are bound to the calling thread, so all writes between start and
+     * end must happen on the same thread. Outside of the process that hosts KeychainProvider,
+     * this does nothing and each write is committed on its own, see {@link #supportsTransactions()}.
+     */
+    public void startBulkTransaction() {
+        if (!supportsTransactions()) {
+            return;
+        }
+        mContentResolver.call(KeyRings.CONTENT_URI, KeychainProvider.METHOD_BEGIN_TRANSACTION, null, null);
+    }
+
+    public void endBulkTransaction(boolean successful) {
+        if (!supportsTransactions()) {
+            return;
+        }
+        Bundle extras = new Bundle();
+        extras.putBoolean(KeychainProvider.EXTRA_TRANSACTION_SUCCESSFUL, successful);
+        try {
+            mContentResolver.call(KeyRings.CONTENT_URI, KeychainProvider.METHOD_END_TRANSACTION, null, extras);
+        } finally {
+            if (!successful) {
+                // we may have cached rings which were just rolled back
+                mKeyRingCache.invalidateAll();
+                mSessionTrustedKeys = null;
+            }
+        }
+    }
+
+    /** Returns false if bulk transactions are no-ops, because KeychainProvider runs in another process. */
+    public boolean supportsTransactions() {
+        return KeychainProvider.isHostedInThisProcess();
+    }
+
+    /** Recomputes the precomputed key_summary row of a keyring after it was saved without
+     * applyBatch(), which does this itself. This must be called within the transaction that
+     * saved it.
+     */
+    private void updateKeySummary(long masterKeyId) {
+        mContentResolver.call(KeyRings.CONTENT_URI, KeychainProvider.METHOD_UPDATE_KEY_SUMMARY,
+                Long.toString(masterKeyId), null);
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeysForSave() {
+        if (mImportSessionDepth == 0) {
+            return getTrustedMasterKeys();
+        }
+        if (mSessionTrustedKeys == null) {
+            mSessionTrustedKeys = getTrustedMasterKeys();
+        }
+        return mSessionTrustedKeys;
+    }
+
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
@@ -244,6 +347,60 @@ public class ProviderHelper {
 
     }
 
+    public static class KeyRingsByEmailResult {
+        /** For each email, the first matching keyring, plus the second one if it's ambiguous. */
+        public final HashSet<Long> mKeyIds = new HashSet<>();
+        public final ArrayList<String> mMissingEmails = new ArrayList<>();
+        public final ArrayList<String> mDuplicateEmails = new ArrayList<>();
+    }
+
+    /** Looks up the keyrings for a list of emails, using a single query. Revoked or expired
+     * keyrings are not considered, emails are compared case insensitively.
+     */
+    public KeyRingsByEmailResult findKeyRingsByEmails(List<String> emails) {
+        KeyRingsByEmailResult result = new KeyRingsByEmailResult();
+        if (emails.isEmpty()) {
+            return result;
+        }
+
+        HashMap<String, ArrayList<Long>> keyIdsByEmail = new HashMap<>();
+        Cursor cursor = mContentResolver.query(KeyRings.buildKeyRingsFindByEmailsUri(emails), new String[] {
+                KeyRings.MASTER_KEY_ID, KeyRings.EMAIL, KeyRings.IS_REVOKED, KeyRings.IS_EXPIRED
+        }, Tables.KEYS + "." + KeyRings.IS_REVOKED + " = 0 AND " + KeyRings.IS_EXPIRED + " = 0", null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String email = cursor.getString(1).toLowerCase(Locale.ENGLISH);
+                ArrayList<Long> keyIds = keyIdsByEmail.get(email);
+                if (keyIds == null) {
+                    keyIds = new ArrayList<>();
+                    keyIdsByEmail.put(email, keyIds);
+                }
+                keyIds.add(cursor.getLong(0));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (String email : emails) {
+            ArrayList<Long> keyIds = keyIdsByEmail.get(email.toLowerCase(Locale.ENGLISH));
+            if (keyIds == null) {
+                result.mMissingEmails.add(email);
+                continue;
+            }
+            result.mKeyIds.add(keyIds.get(0));
+            // another entry for this email -> two keys with the same email inside user id
+            if (keyIds.size() > 1) {
+                result.mDuplicateEmails.add(email);
+                // also pre-select
+                result.mKeyIds.add(keyIds.get(1));
+            }
+        }
+
+        return result;
+    }
+
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
         return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
                 KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
@@ -259,7 +416,7 @@ public class ProviderHelper {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
+        return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(id, false);
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
@@ -267,7 +424,7 @@ public class ProviderHelper {
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
-        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), true);
+        return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(id, true);
     }
 
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(Uri queryUri) throws NotFoundException {
@@ -295,7 +452,38 @@ public class ProviderHelper {
         }
     }
 
-    private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+    public static CanonicalizedKeyRingCache getKeyRingCache(Context context) {
+        return CanonicalizedKeyRingCache.getInstance(context);
+    }
+
+    /** Drops a keyring from the in-memory cache. Must be called after any write to the
+     * keyring data of this master key id which doesn't go through this class.
+     */
+    public void invalidateCachedKeyRing(long masterKeyId) {
+        mKeyRingCache.invalidate(masterKeyId);
+    }
+
+    private CanonicalizedKeyRing getCanonicalizedKeyRing(long masterKeyId, boolean secret)
+            throws NotFoundException {
+        CanonicalizedKeyRing ring = secret
+                ? mKeyRingCache.getSecretKeyRing(masterKeyId)
+                : mKeyRingCache.getPublicKeyRing(masterKeyId);
+        if (ring != null) {
+            return ring;
+        }
+
+        // obtain generation before the query, so we don't cache anything invalidated meanwhile
+        long generation = mKeyRingCache.getGeneration();
+        ring = getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(masterKeyId), secret);
+        try {
+            mKeyRingCache.put(generation, ring, ring.getEncoded().length);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error encoding keyring for cache, not caching", e);
+        }
+        return ring;
+    }
+
+    private CanonicalizedKeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
                         // we pick from cache only information that is not easily available from keyrings
@@ -460,11 +648,13 @@ public class ProviderHelper {
             mIndent -= 1;
 
             // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeysForSave();
 
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
             List<UserPacketItem> uids = new ArrayList<>();
+            // all third party keys which certified anything on this keyring, trusted or not
+            HashSet<Long> signerKeyIds = new HashSet<>();
 
             if (trustedKeys.size() == 0) {
                 log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
@@ -505,6 +695,8 @@ public class ProviderHelper {
 
                     }
 
+                    signerKeyIds.add(certId);
+
                     // do we have a trusted key for this?
                     if (trustedKeys.indexOfKey(certId) < 0) {
                         unknownCerts += 1;
@@ -605,6 +797,8 @@ public class ProviderHelper {
 
                     }
 
+                    signerKeyIds.add(certId);
+
                     // do we have a trusted key for this?
                     if (trustedKeys.indexOfKey(certId) < 0) {
                         unknownCerts += 1;
@@ -660,6 +854,16 @@ public class ProviderHelper {
             }
             mIndent -= 1;
 
+            {
+                Uri uri = KeySignatures.buildKeySignaturesUri(masterKeyId);
+                for (long signerKeyId : signerKeyIds) {
+                    ContentValues values = new ContentValues();
+                    values.put(KeySignatures.MASTER_KEY_ID, masterKeyId);
+                    values.put(KeySignatures.SIGNER_KEY_ID, signerKeyId);
+                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                }
+            }
+
             progress.setProgress(LogType.MSG_IP_UID_REORDER.getMsgId(), 65, 100);
             log(LogType.MSG_IP_UID_REORDER);
             // primary before regular before revoked (see UserIdItem.compareTo)
@@ -707,14 +911,9 @@ public class ProviderHelper {
         }
 
         // before deleting key, retrieve it's last updated time
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
         Cursor lastUpdatedCursor = mContentResolver.query(
                 UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        UpdatedKeys.MASTER_KEY_ID,
-                        UpdatedKeys.LAST_UPDATED
-                },
+                UPDATED_KEYS_PROJECTION,
                 UpdatedKeys.MASTER_KEY_ID + " = ?",
                 new String[]{"" + masterKeyId},
                 null
@@ -722,11 +921,7 @@ public class ProviderHelper {
         if (lastUpdatedCursor.moveToNext()) {
             // there was an entry to re-insert
             // this operation must happen after the new key is inserted
-            ContentValues lastUpdatedEntry = new ContentValues(2);
-            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID,
-                    lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED,
-                    lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
+            ContentValues lastUpdatedEntry = readUpdatedKeysValues(lastUpdatedCursor);
             operations.add(
                     ContentProviderOperation
                             .newInsert(UpdatedKeys.CONTENT_URI)
@@ -737,20 +932,24 @@ public class ProviderHelper {
         lastUpdatedCursor.close();
 
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            // delete old version of this keyRing, which also deletes all keys and userIds on
+            // cascade. this is part of the batch, so the old version is replaced atomically and
+            // the keyring never goes missing from the key list
+            operations.add(0, ContentProviderOperation
+                    .newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if (results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -763,6 +962,8 @@ public class ProviderHelper {
             log(LogType.MSG_IP_ERROR_OP_EXC);
             Log.e(Constants.TAG, "OperationApplicationException during import", e);
             return SaveKeyringResult.RESULT_ERROR;
+        } finally {
+            mKeyRingCache.invalidate(masterKeyId);
         }
 
     }
@@ -894,10 +1095,15 @@ public class ProviderHelper {
                 // with has_secret = 1
             }
 
+            updateKeySummary(masterKeyId);
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
         } finally {
+            mKeyRingCache.invalidate(masterKeyId);
+            // the set of trusted keys may have changed, reload it on next use
+            mSessionTrustedKeys = null;
             mIndent -= 1;
         }
 
@@ -914,6 +1120,20 @@ public class ProviderHelper {
      * keep public and secret keyrings in sync.
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress, String expectedFingerprint) {
+        return savePublicKeyRing(publicRing, null, null, progress, expectedFingerprint);
+    }
+
+    /**
+     * Save a public keyring into the database, using a canonicalized form of the same keyring
+     * which was obtained beforehand, e.g. on another thread. This is used instead of
+     * canonicalizing again if there is no old keyring to merge with.
+     *
+     * @param canonicalized   the result of publicRing.canonicalize(), or null
+     * @param canonicalizeLog the log of that canonicalization, with an indent of 0
+     */
+    public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing,
+            CanonicalizedPublicKeyRing canonicalized, OperationLog canonicalizeLog,
+            Progressable progress, String expectedFingerprint) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -955,8 +1175,13 @@ public class ProviderHelper {
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                if (canonicalized != null) {
+                    appendLog(canonicalizeLog);
+                    canPublicRing = canonicalized;
+                } else {
+                    // Canonicalize this keyring, to assert a number of assumptions made about it.
+                    canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                }
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -997,18 +1222,27 @@ public class ProviderHelper {
                 }
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
+            // saving the public keyring deletes the secret one, so put that back within the same
+            // transaction, or the key would briefly show up without its secret keys
+            boolean successful = false;
+            startBulkTransaction();
+            try {
+                int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+
+                // Save the saved keyring (if any)
+                if (canSecretRing != null) {
+                    progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                    int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                    if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                        result |= SaveKeyringResult.SAVED_SECRET;
+                    }
                 }
-            }
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
+                successful = (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+                return new SaveKeyringResult(result, mLog, canSecretRing);
+            } finally {
+                endBulkTransaction(successful);
+            }
 
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
@@ -1020,6 +1254,16 @@ public class ProviderHelper {
     }
 
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
+        return saveSecretKeyRing(secretRing, null, null, progress);
+    }
+
+    /**
+     * Save a secret keyring into the database, using a canonicalized form of the same keyring
+     * which was obtained beforehand. See savePublicKeyRing.
+     */
+    public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing,
+            CanonicalizedSecretKeyRing canonicalized, OperationLog canonicalizeLog,
+            Progressable progress) {
 
         try {
             long masterKeyId = secretRing.getMasterKeyId();
@@ -1063,9 +1307,14 @@ public class ProviderHelper {
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring
 
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                if (canonicalized != null) {
+                    appendLog(canonicalizeLog);
+                    canSecretRing = canonicalized;
+                } else {
+                    // Canonicalize this keyring, to assert a number of assumptions made about it.
+                    // This is a safe cast, because we made sure this is a secret ring above
+                    canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                }
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -1109,17 +1358,25 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
-            int result;
+            // the public and the secret keyring, along with its summary, become visible at once
+            boolean successful = false;
+            startBulkTransaction();
+            try {
+                int result;
 
-            result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
-            if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-            }
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
+                if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                }
 
-            progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-            result = saveCanonicalizedSecretKeyRing(canSecretRing);
+                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                result = saveCanonicalizedSecretKeyRing(canSecretRing);
 
-            return new SaveKeyringResult(result, mLog, canSecretRing);
+                successful = (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+                return new SaveKeyringResult(result, mLog, canSecretRing);
+            } finally {
+                endBulkTransaction(successful);
+            }
 
         } catch (IOException e) {
             log(LogType.MSG_IS_ERROR_IO_EXC);
@@ -1130,6 +1387,159 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Updates the database after the secret keys with the given master key ids were imported
+     * or deleted. This re-saves only the keyrings which carry a certification by one of those
+     * keys, so their certifications are verified against the current set of secret keys.
+     * <p/>
+     * Unlike consolidateDatabaseStep1, this doesn't touch any other keyring, and each keyring
+     * is saved within a transaction of its own, so a failure can't lose it. The full consolidation
+     * stays available to recover from an inconsistent database.
+     */
+    @NonNull
+    public ConsolidateResult consolidateKeyRingsCertifiedBy(long[] masterKeyIds, Progressable progress) {
+
+        OperationLog log = new OperationLog();
+        int indent = 0;
+
+        log.add(LogType.MSG_CON_INCREMENTAL, indent);
+        indent += 1;
+
+        if (mConsolidateCritical) {
+            log.add(LogType.MSG_CON_RECURSIVE, indent);
+            return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+        }
+
+        ArrayList<Long> affectedKeyIds = getKeyRingsCertifiedBy(masterKeyIds);
+        if (affectedKeyIds.isEmpty()) {
+            log.add(LogType.MSG_CON_INCREMENTAL_SKIP, indent);
+            return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+        }
+        log.add(LogType.MSG_CON_INCREMENTAL_REPROCESS, indent, affectedKeyIds.size());
+        indent += 1;
+
+        // we hold no cache files, and each keyring is rolled back on its own on failure
+        progress.setPreventCancel();
+
+        // the trusted keys are the same for all keyrings, load them only once
+        startImportSession();
+        try {
+            // a failing keyring dooms the bulk transaction, in that case it is rolled back and
+            // all keyrings are reprocessed again, each in a transaction of its own
+            if (!reprocessKeyRings(affectedKeyIds, true, log, indent, progress)) {
+                log.add(LogType.MSG_CON_INCREMENTAL_RETRY, indent);
+                reprocessKeyRings(affectedKeyIds, false, log, indent, progress);
+            }
+        } finally {
+            endImportSession();
+            indent -= 1;
+        }
+
+        progress.setProgress(100, 100);
+        log.add(LogType.MSG_CON_SUCCESS, indent);
+
+        return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+    }
+
+    /**
+     * Reprocesses the given keyrings, each within a transaction of its own. If bulk is true,
+     * those are nested into a single transaction, which is rolled back as a whole as soon as
+     * one keyring fails.
+     *
+     * @return false if a keyring failed in bulk mode, and nothing was written
+     */
+    private boolean reprocessKeyRings(ArrayList<Long> masterKeyIds, boolean bulk, OperationLog log,
+                                      int indent, Progressable progress) {
+        boolean successful = false;
+        if (bulk) {
+            startBulkTransaction();
+        }
+        try {
+            for (int i = 0; i < masterKeyIds.size(); i++) {
+                long masterKeyId = masterKeyIds.get(i);
+                progress.setProgress(R.string.progress_con_reimport, i, masterKeyIds.size());
+
+                clearLog();
+                boolean reprocessed = false;
+                startBulkTransaction();
+                try {
+                    int result = reprocessKeyRing(masterKeyId);
+                    reprocessed = (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+                } finally {
+                    endBulkTransaction(reprocessed);
+                }
+
+                if (!reprocessed) {
+                    if (bulk) {
+                        return false;
+                    }
+                    log.add(LogType.MSG_CON_WARN_REPROCESS, indent,
+                            KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                }
+            }
+            successful = true;
+            return true;
+        } finally {
+            if (bulk) {
+                endBulkTransaction(successful);
+            }
+        }
+    }
+
+    /** Returns the master key ids of all keyrings with a certification by one of the given keys. */
+    private ArrayList<Long> getKeyRingsCertifiedBy(long[] signerKeyIds) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (long signerKeyId : signerKeyIds) {
+            ids.add(Long.toString(signerKeyId));
+        }
+
+        Cursor cursor = mContentResolver.query(KeySignatures.buildKeySignaturesUri(),
+                new String[]{ KeySignatures.MASTER_KEY_ID },
+                KeySignatures.SIGNER_KEY_ID + " IN (" + TextUtils.join(", ", ids) + ")", null, null);
+
+        ArrayList<Long> result = new ArrayList<>();
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Saves a keyring from the database again, without merging in any new data. This
+     * recomputes all data derived from it, e.g. which of its certifications are verified.
+     */
+    private int reprocessKeyRing(long masterKeyId) {
+        CanonicalizedPublicKeyRing publicRing;
+        try {
+            publicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        // deleting the public keyring for the save also deletes the secret one, keep it around
+        CanonicalizedSecretKeyRing secretRing;
+        try {
+            secretRing = getCanonicalizedSecretKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            secretRing = null;
+        }
+
+        int result = saveCanonicalizedPublicKeyRing(publicRing, new ProgressScaler(), secretRing != null);
+        if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+            return result;
+        }
+        if (secretRing != null) {
+            result = saveCanonicalizedSecretKeyRing(secretRing);
+        }
+        return result;
+    }
+
     @NonNull
     public ConsolidateResult consolidateDatabaseStep1(Progressable progress) {
 
@@ -1295,6 +1705,9 @@ public class ProviderHelper {
             mConsolidateCritical = true;
         }
 
+        // all keyrings are re-imported below, load the trusted keys only as often as necessary
+        startImportSession();
+
         try {
             Preferences prefs = Preferences.getPreferences(mContext);
 
@@ -1312,27 +1725,17 @@ public class ProviderHelper {
 
             // first, backup our list of updated key times
             ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
-            final int INDEX_MASTER_KEY_ID = 0;
-            final int INDEX_LAST_UPDATED = 1;
             Cursor lastUpdatedCursor = mContentResolver.query(
-                    UpdatedKeys.CONTENT_URI,
-                    new String[]{
-                            UpdatedKeys.MASTER_KEY_ID,
-                            UpdatedKeys.LAST_UPDATED
-                    },
-                    null, null, null);
+                    UpdatedKeys.CONTENT_URI, UPDATED_KEYS_PROJECTION, null, null, null);
             while (lastUpdatedCursor.moveToNext()) {
-                ContentValues values = new ContentValues();
-                values.put(UpdatedKeys.MASTER_KEY_ID,
-                        lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-                values.put(UpdatedKeys.LAST_UPDATED,
-                        lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-                updatedKeysValues.add(values);
+                updatedKeysValues.add(readUpdatedKeysValues(lastUpdatedCursor));
             }
             lastUpdatedCursor.close();
 
             log.add(LogType.MSG_CON_DB_CLEAR, indent);
             mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            mKeyRingCache.invalidateAll();
+            mSessionTrustedKeys = null;
 
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
 
@@ -1430,6 +1833,8 @@ public class ProviderHelper {
             return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
 
         } finally {
+            endImportSession();
+            mKeyRingCache.invalidateAll();
             mConsolidateCritical = false;
         }
 
@@ -1497,13 +1902,91 @@ public class ProviderHelper {
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
+        return renewKeyLastUpdatedTime(masterKeyId, time, timeUnit, null);
+    }
+
+    /**
+     * Renews the last updated time of a keyring, along with the state of the keyserver data
+     * which was merged into it. This replaces any previous state.
+     */
+    public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit,
+                                       KeyUpdateState state) {
         ContentValues values = new ContentValues();
         values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
         values.put(UpdatedKeys.LAST_UPDATED, timeUnit.toSeconds(time));
+        if (state != null) {
+            values.put(UpdatedKeys.CONTENT_HASH, state.mContentHash);
+            values.put(UpdatedKeys.ETAG, state.mETag);
+            values.put(UpdatedKeys.LAST_MODIFIED, state.mLastModified);
+        }
 
         return mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
     }
 
+    /**
+     * Returns the state of the keyserver data last merged into each keyring which was updated
+     * from a keyserver, by master key id.
+     */
+    public HashMap<Long, KeyUpdateState> getKeyUpdateStates() {
+        HashMap<Long, KeyUpdateState> states = new HashMap<>();
+        Cursor cursor = mContentResolver.query(
+                UpdatedKeys.CONTENT_URI, UPDATED_KEYS_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return states;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(INDEX_UPDATED_KEYS_CONTENT_HASH)) {
+                    // updated before content hashes were recorded
+                    continue;
+                }
+                states.put(cursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID), new KeyUpdateState(
+                        cursor.getBlob(INDEX_UPDATED_KEYS_CONTENT_HASH),
+                        cursor.getString(INDEX_UPDATED_KEYS_ETAG),
+                        cursor.getString(INDEX_UPDATED_KEYS_LAST_MODIFIED)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return states;
+    }
+
+    /** The keyserver data which was last merged into a keyring, and its http validators. */
+    public static class KeyUpdateState {
+        public final byte[] mContentHash;
+        public final String mETag;
+        public final String mLastModified;
+
+        public KeyUpdateState(byte[] contentHash, String eTag, String lastModified) {
+            mContentHash = contentHash;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+    }
+
+    private static final String[] UPDATED_KEYS_PROJECTION = new String[]{
+            UpdatedKeys.MASTER_KEY_ID,
+            UpdatedKeys.LAST_UPDATED,
+            UpdatedKeys.CONTENT_HASH,
+            UpdatedKeys.ETAG,
+            UpdatedKeys.LAST_MODIFIED
+    };
+    private static final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
+    private static final int INDEX_UPDATED_KEYS_LAST_UPDATED = 1;
+    private static final int INDEX_UPDATED_KEYS_CONTENT_HASH = 2;
+    private static final int INDEX_UPDATED_KEYS_ETAG = 3;
+    private static final int INDEX_UPDATED_KEYS_LAST_MODIFIED = 4;
+
+    private static ContentValues readUpdatedKeysValues(Cursor cursor) {
+        ContentValues values = new ContentValues(UPDATED_KEYS_PROJECTION.length);
+        values.put(UpdatedKeys.MASTER_KEY_ID, cursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID));
+        values.put(UpdatedKeys.LAST_UPDATED, cursor.getLong(INDEX_UPDATED_KEYS_LAST_UPDATED));
+        values.put(UpdatedKeys.CONTENT_HASH, cursor.getBlob(INDEX_UPDATED_KEYS_CONTENT_HASH));
+        values.put(UpdatedKeys.ETAG, cursor.getString(INDEX_UPDATED_KEYS_ETAG));
+        values.put(UpdatedKeys.LAST_MODIFIED, cursor.getString(INDEX_UPDATED_KEYS_LAST_MODIFIED));
+        return values;
+    }
+
     public ContentResolver getContentResolver() {
         return mContentResolver;
     }
@@ -33,8 +33,6 @@ import java.util.List;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
@@ -69,13 +67,14 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.UnlockedSecretKeyPool;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.KeyRingsByEmailResult;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -88,17 +87,6 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11));
 
-    static final String[] KEY_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
-            KeyRings.IS_EXPIRED,
-            KeyRings.IS_REVOKED,
-    };
-
-    // do not pre-select revoked or expired keys
-    static final String KEY_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
-            + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
-
     private ApiPermissionHelper mApiPermissionHelper;
     private ProviderHelper mProviderHelper;
     private ApiDataAccessObject mApiDao;
@@ -134,37 +122,24 @@ public class OpenPgpService extends Service {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
+            ArrayList<String> emails = new ArrayList<>();
             for (String rawUserId : encryptionUserIds) {
                 OpenPgpUtils.UserId userId = KeyRing.splitUserId(rawUserId);
-                String email = userId.email != null ? userId.email : rawUserId;
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, KEY_SEARCH_PROJECTION, KEY_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
+                emails.add(userId.email != null ? userId.email : rawUserId);
+            }
+
+            // look up all emails at once, instead of one query per recipient
+            KeyRingsByEmailResult lookup = mProviderHelper.findKeyRingsByEmails(emails);
+            keyIds.addAll(lookup.mKeyIds);
+            missingEmails.addAll(lookup.mMissingEmails);
+            duplicateEmails.addAll(lookup.mDuplicateEmails);
+            missingUserIdsCheck = !missingEmails.isEmpty();
+            duplicateUserIdsCheck = !duplicateEmails.isEmpty();
+            if (missingUserIdsCheck) {
+                Log.d(Constants.TAG, "user id missing");
+            }
+            if (duplicateUserIdsCheck) {
+                Log.d(Constants.TAG, "more than one user id with the same email");
             }
         }
 
@@ -259,6 +234,7 @@ public class OpenPgpService extends Service {
 
             // execute PGP operation!
             PgpSignEncryptOperation pse = new PgpSignEncryptOperation(this, new ProviderHelper(this), null);
+            pse.setUnlockedKeyPool(UnlockedSecretKeyPool.getInstance(this));
             PgpSignEncryptResult pgpResult = pse.execute(pseInput, inputParcel, inputData, outputStream);
 
             if (pgpResult.isPending()) {
@@ -407,6 +383,7 @@ public class OpenPgpService extends Service {
             }
 
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(this, mProviderHelper, null);
+            op.setUnlockedKeyPool(UnlockedSecretKeyPool.getInstance(this));
 
             // execute PGP operation!
             PgpSignEncryptResult pgpResult = op.execute(pseInput, inputParcel, inputData, outputStream);
@@ -478,6 +455,7 @@ public class OpenPgpService extends Service {
             String senderAddress = data.getStringExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS);
 
             PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mProviderHelper, progressable);
+            op.setUnlockedKeyPool(UnlockedSecretKeyPool.getInstance(this));
 
             long inputLength = data.getLongExtra(OpenPgpApi.EXTRA_DATA_LENGTH, InputData.UNKNOWN_FILESIZE);
             InputData inputData = new InputData(inputStream, inputLength);
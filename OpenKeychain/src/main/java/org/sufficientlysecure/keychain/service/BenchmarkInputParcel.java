@@ -19,16 +19,115 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.util.EnumSet;
+
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+
 
+/** Configures which parts of the on-device benchmark suite BenchmarkOperation runs, and how.
+ * By default, all suites are run with all key types.
+ */
 public class BenchmarkInputParcel implements Parcelable {
 
+    public enum Suite {
+        SYMMETRIC, ASYMMETRIC, SIGN_VERIFY, COMPRESSION, ARMOR, KEY_IMPORT, KEY_LIST, S2K
+    }
+
+    public enum KeyType {
+        RSA_2048 (Algorithm.RSA, 2048, null),
+        RSA_4096 (Algorithm.RSA, 4096, null),
+        ECC_P256 (Algorithm.ECDSA, null, Curve.NIST_P256),
+        ECC_P521 (Algorithm.ECDSA, null, Curve.NIST_P521);
+
+        public final Algorithm mAlgorithm;
+        public final Integer mKeySize;
+        public final Curve mCurve;
+
+        KeyType(Algorithm algorithm, Integer keySize, Curve curve) {
+            mAlgorithm = algorithm;
+            mKeySize = keySize;
+            mCurve = curve;
+        }
+    }
+
+    public static final int DEFAULT_REPEATS = 5;
+    public static final int DEFAULT_DATA_SIZE = 1024 * 1024;
+    public static final int DEFAULT_IMPORT_KEY_COUNT = 20;
+
+    private EnumSet<Suite> mSuites = EnumSet.allOf(Suite.class);
+    private EnumSet<KeyType> mKeyTypes = EnumSet.allOf(KeyType.class);
+    private int mRepeats = DEFAULT_REPEATS;
+    private int mDataSize = DEFAULT_DATA_SIZE;
+    private int mImportKeyCount = DEFAULT_IMPORT_KEY_COUNT;
+
     public BenchmarkInputParcel() {
     }
 
+    @SuppressWarnings("unchecked")
     protected BenchmarkInputParcel(Parcel in) {
+        mSuites = (EnumSet<Suite>) in.readSerializable();
+        mKeyTypes = (EnumSet<KeyType>) in.readSerializable();
+        mRepeats = in.readInt();
+        mDataSize = in.readInt();
+        mImportKeyCount = in.readInt();
+    }
+
+    public BenchmarkInputParcel setSuites(EnumSet<Suite> suites) {
+        mSuites = suites;
+        return this;
+    }
+
+    public boolean hasSuite(Suite suite) {
+        return mSuites.contains(suite);
+    }
+
+    public BenchmarkInputParcel setKeyTypes(EnumSet<KeyType> keyTypes) {
+        mKeyTypes = keyTypes;
+        return this;
+    }
+
+    public EnumSet<KeyType> getKeyTypes() {
+        return mKeyTypes;
+    }
+
+    /** Sets how often each benchmarked operation is timed, after one warmup run. */
+    public BenchmarkInputParcel setRepeats(int repeats) {
+        if (repeats < 1) {
+            throw new IllegalArgumentException("at least one timed run is required");
+        }
+        mRepeats = repeats;
+        return this;
+    }
+
+    public int getRepeats() {
+        return mRepeats;
+    }
+
+    /** Sets the size in bytes of the random data which is encrypted, decrypted, signed and verified. */
+    public BenchmarkInputParcel setDataSize(int dataSize) {
+        mDataSize = dataSize;
+        return this;
+    }
+
+    public int getDataSize() {
+        return mDataSize;
+    }
+
+    /** Sets the number of synthetic keys imported to measure key import throughput. */
+    public BenchmarkInputParcel setImportKeyCount(int importKeyCount) {
+        if (importKeyCount < 1) {
+            throw new IllegalArgumentException("at least one key must be imported");
+        }
+        mImportKeyCount = importKeyCount;
+        return this;
+    }
+
+    public int getImportKeyCount() {
+        return mImportKeyCount;
     }
 
     @Override
@@ -38,6 +137,11 @@ public class BenchmarkInputParcel implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeSerializable(mSuites);
+        dest.writeSerializable(mKeyTypes);
+        dest.writeInt(mRepeats);
+        dest.writeInt(mDataSize);
+        dest.writeInt(mImportKeyCount);
     }
 
     public static final Creator<BenchmarkInputParcel> CREATOR = new Creator<BenchmarkInputParcel>() {
@@ -51,4 +155,4 @@ public class BenchmarkInputParcel implements Parcelable {
             return new BenchmarkInputParcel[size];
         }
     };
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package org.sufficientlysecure.keychain.service;
+
+import java.util.ArrayList;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/** A number of InputDataParcels which are processed concurrently, sharing the same CryptoInputParcel. */
+public class InputDataBatchParcel implements Parcelable {
+
+    private ArrayList<InputDataParcel> mInputs;
+
+    public InputDataBatchParcel(ArrayList<InputDataParcel> inputs) {
+        mInputs = inputs;
+    }
+
+    InputDataBatchParcel(Parcel source) {
+        mInputs = source.createTypedArrayList(InputDataParcel.CREATOR);
+    }
+
+    public ArrayList<InputDataParcel> getInputs() {
+        return mInputs;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedList(mInputs);
+    }
+
+    public static final Creator<InputDataBatchParcel> CREATOR = new Creator<InputDataBatchParcel>() {
+        public InputDataBatchParcel createFromParcel(final Parcel source) {
+            return new InputDataBatchParcel(source);
+        }
+
+        public InputDataBatchParcel[] newArray(final int size) {
+            return new InputDataBatchParcel[size];
+        }
+    };
+
+}
@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.service;
 
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
@@ -36,6 +37,8 @@ import org.sufficientlysecure.keychain.operations.DeleteOperation;
 import org.sufficientlysecure.keychain.operations.EditKeyOperation;
 import org.sufficientlysecure.keychain.operations.BackupOperation;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation.InputDataResultListener;
 import org.sufficientlysecure.keychain.operations.KeybaseVerificationOperation;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
 import org.sufficientlysecure.keychain.operations.ChangeUnlockOperation;
@@ -43,6 +46,7 @@ import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -139,8 +143,22 @@ public class KeychainService extends Service implements Progressable {
                     op = new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof InputDataParcel) {
                     op = new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+                } else if (inputParcel instanceof InputDataBatchParcel) {
+                    op = new InputDataBatchOperation(outerThis, new ProviderHelper(outerThis), outerThis,
+                            mActionCanceled, new InputDataResultListener() {
+                                @Override
+                                public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                                    sendPartialResultToHandler(inputUri, result);
+                                }
+
+                                @Override
+                                public void onInputDataProgress(Uri inputUri, String message,
+                                        int progress, int max) {
+                                    sendPartialProgressToHandler(inputUri, message, progress, max);
+                                }
+                            });
                 } else if (inputParcel instanceof BenchmarkInputParcel) {
-                    op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+                    op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
                 } else {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
@@ -185,6 +203,26 @@ public class KeychainService extends Service implements Progressable {
         sendMessageToHandler(status, null, bundle);
     }
 
+    /** Sends the result for a single input of an operation which processes several of them. */
+    private void sendPartialResultToHandler(Uri inputUri, OperationResult data) {
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(ServiceProgressHandler.DATA_INPUT_URI, inputUri);
+        bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
+        sendMessageToHandler(MessageStatus.PARTIAL_RESULT, null, bundle);
+    }
+
+    /** Sends the progress of a single input of an operation which processes several of them. */
+    private void sendPartialProgressToHandler(Uri inputUri, String message, int progress, int max) {
+        Bundle data = new Bundle();
+        data.putParcelable(ServiceProgressHandler.DATA_INPUT_URI, inputUri);
+        if (message != null) {
+            data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+        }
+        data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
+        data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
+        sendMessageToHandler(MessageStatus.PARTIAL_PROGRESS, null, data);
+    }
+
     private void sendMessageToHandler(MessageStatus status) {
         sendMessageToHandler(status, null, null);
     }
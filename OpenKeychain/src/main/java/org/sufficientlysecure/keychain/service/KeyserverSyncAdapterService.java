@@ -43,16 +43,19 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.OrbotRequiredDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
-import java.util.ArrayList;
 import java.util.GregorianCalendar;
-import java.util.Random;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import okhttp3.ConnectionPool;
+
 public class KeyserverSyncAdapterService extends Service {
 
     // how often a sync should be initiated, in s
@@ -68,6 +71,8 @@ public class KeyserverSyncAdapterService extends Service {
     // Time taken by Orbot before a new circuit is created
     public static final int ORBOT_CIRCUIT_TIMEOUT_SECONDS =
             Constants.DEBUG_KEYSERVER_SYNC ? 2 : (int) TimeUnit.MINUTES.toSeconds(10);
+    // number of keys which are fetched concurrently when not routing through Tor
+    public static final int SYNC_MAX_THREADS = 4;
 
 
     private static final String ACTION_IGNORE_TOR = "ignore_tor";
@@ -266,6 +271,10 @@ public class KeyserverSyncAdapterService extends Service {
         } else {
             Log.d(Constants.TAG, "Keyserver sync completed: Updated: " + result.mUpdatedKeys
                     + " Failed: " + result.mBadKeys);
+            ConnectionPool pool = OkHttpClientFactory.getConnectionPool();
+            Log.d(Constants.TAG, "Keyserver sync connections: " + pool.connectionCount()
+                    + " Idle: " + pool.idleConnectionCount()
+                    + " Clients: " + OkHttpClientFactory.getClientCount());
             // key sync completed successfully, we can stop
             stopSelf(startId);
         }
@@ -299,34 +308,35 @@ public class KeyserverSyncAdapterService extends Service {
                                                                  final CryptoInputParcel cryptoInputParcel) {
         mCancelled.set(false);
 
-        ArrayList<ParcelableKeyRing> keyList = getKeysToUpdate(context);
-
-        if (isUpdateCancelled()) { // if we've already been cancelled
-            return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
-                    new OperationResult.OperationLog());
-        }
+        KeysToUpdate keys = getKeysToUpdate(context);
+        try {
+            if (isUpdateCancelled()) { // if we've already been cancelled
+                return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
+                        new OperationResult.OperationLog());
+            }
 
-        if (cryptoInputParcel.getParcelableProxy() == null) {
-            // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
-            if (Preferences.getPreferences(context).getProxyPrefs().torEnabled) {
-                return staggeredUpdate(context, keyList, cryptoInputParcel);
+            if (cryptoInputParcel.getParcelableProxy() == null) {
+                // no explicit proxy, retrieve from preferences. Check if we should do a staggered sync
+                if (Preferences.getPreferences(context).getProxyPrefs().torEnabled) {
+                    return staggeredUpdate(context, keys, cryptoInputParcel);
+                } else {
+                    return directUpdate(context, keys, cryptoInputParcel);
+                }
             } else {
-                return directUpdate(context, keyList, cryptoInputParcel);
+                return directUpdate(context, keys, cryptoInputParcel);
             }
-        } else {
-            return directUpdate(context, keyList, cryptoInputParcel);
+        } finally {
+            keys.close();
         }
     }
 
-    private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
+    private ImportKeyResult directUpdate(Context context, KeysToUpdate keys,
                                          CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting normal update");
-        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null);
-        return importOp.execute(
-                new ImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
+        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null, mCancelled);
+        importOp.setMaxThreads(SYNC_MAX_THREADS);
+        return importOp.execute(keys, keys.getCount(),
+                Preferences.getPreferences(context).getPreferredKeyserver(), cryptoInputParcel);
     }
 
     /**
@@ -334,113 +344,39 @@ public class KeyserverSyncAdapterService extends Service {
      * performed by parcimonie. Relevant issue and method at:
      * https://github.com/open-keychain/open-keychain/issues/1337
      *
+     * Keys are fetched one at a time, but still by a single import operation, so the keyserver
+     * connection is reused and keys are written to the database as soon as they arrive.
+     *
      * @return result of the sync
      */
-    private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
+    private ImportKeyResult staggeredUpdate(Context context, KeysToUpdate keys,
                                             CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting staggered update");
-        // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
-        // we are limiting our randomness to ORBOT_CIRCUIT_TIMEOUT_SECONDS for now
-        final int WEEK_IN_SECONDS = 0;
-
-        ImportOperation.KeyImportAccumulator accumulator
-                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
-
-        // so that the first key can be updated without waiting. This is so that there isn't a
-        // large gap between a "Start Orbot" notification and the next key update
-        boolean first = true;
-
-        for (ParcelableKeyRing keyRing : keyList) {
-            int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
-            if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT_SECONDS) {
-                waitTime = staggeredTime;
-            } else {
-                waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS
-                        + new Random().nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
-            }
 
-            if (first) {
-                waitTime = 0;
-                first = false;
-            }
-
-            Log.d(Constants.TAG, "Updating key with fingerprint " + keyRing.mExpectedFingerprint +
-                    " with a wait time of " + waitTime + "s");
-            try {
-                Thread.sleep(waitTime * 1000);
-            } catch (InterruptedException e) {
-                Log.e(Constants.TAG, "Exception during sleep between key updates", e);
-                // skip this one
-                continue;
-            }
-            ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
-            keyWrapper.add(keyRing);
-            if (isUpdateCancelled()) {
-                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
-                        new OperationResult.OperationLog());
-            }
-            ImportKeyResult result =
-                    new ImportOperation(context, new ProviderHelper(context), null, mCancelled)
-                            .execute(
-                                    new ImportKeyringParcel(
-                                            keyWrapper,
-                                            Preferences.getPreferences(context)
-                                                    .getPreferredKeyserver()
-                                    ),
-                                    cryptoInputParcel
-                            );
-            if (result.isPending()) {
-                return result;
-            }
-            accumulator.accumulateKeyImport(result);
-        }
-        return accumulator.getConsolidatedResult();
+        ImportOperation importOp = new ImportOperation(context, new ProviderHelper(context), null, mCancelled);
+        importOp.setMaxThreads(1);
+        // the first key is updated without waiting. This is so that there isn't a large gap
+        // between a "Start Orbot" notification and the next key update
+        importOp.setFetchSpacing(TimeUnit.SECONDS.toMillis(ORBOT_CIRCUIT_TIMEOUT_SECONDS),
+                TimeUnit.SECONDS.toMillis(ORBOT_CIRCUIT_TIMEOUT_SECONDS));
+        return importOp.execute(keys, keys.getCount(),
+                Preferences.getPreferences(context).getPreferredKeyserver(), cryptoInputParcel);
     }
 
     /**
-     * 1. Get keys which have been updated recently and therefore do not need to
-     * be updated now
-     * 2. Get list of all keys and filter out ones that don't need to be updated
-     * 3. Return keys to be updated
+     * Gets all keys which have not been updated within KEY_UPDATE_LIMIT. Keys updated since then
+     * are filtered out by the database, using the index on updated_keys.
      *
-     * @return list of keys that require update
+     * @return keys that require update, which must be closed after use
      */
-    private ArrayList<ParcelableKeyRing> getKeysToUpdate(Context context) {
-
-        // 1. Get keys which have been updated recently and don't need to updated now
-        final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
-        final int INDEX_LAST_UPDATED = 1;
+    private KeysToUpdate getKeysToUpdate(Context context) {
 
         // all time in seconds not milliseconds
         final long CURRENT_TIME = GregorianCalendar.getInstance().getTimeInMillis() / 1000;
-        Cursor updatedKeysCursor = context.getContentResolver().query(
-                KeychainContract.UpdatedKeys.CONTENT_URI,
-                new String[]{
-                        KeychainContract.UpdatedKeys.MASTER_KEY_ID,
-                        KeychainContract.UpdatedKeys.LAST_UPDATED
-                },
-                "? - " + KeychainContract.UpdatedKeys.LAST_UPDATED + " < " + KEY_UPDATE_LIMIT,
-                new String[]{"" + CURRENT_TIME},
-                null
-        );
 
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
-        while (updatedKeysCursor != null && updatedKeysCursor.moveToNext()) {
-            long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
-            Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
-                    + updatedKeysCursor.getLong(INDEX_LAST_UPDATED) + "}s");
-            ignoreMasterKeyIds.add(masterKeyId);
-        }
-        if (updatedKeysCursor != null) {
-            updatedKeysCursor.close();
-        }
-
-        // 2. Make a list of public keys which should be updated
-        final int INDEX_MASTER_KEY_ID = 0;
-        final int INDEX_FINGERPRINT = 1;
         Cursor keyCursor = context.getContentResolver().query(
-                KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
+                KeychainContract.KeyRings.buildUnifiedKeyRingsFindUpdateDueUri(
+                        CURRENT_TIME - KEY_UPDATE_LIMIT),
                 new String[]{
                         KeychainContract.KeyRings.MASTER_KEY_ID,
                         KeychainContract.KeyRings.FINGERPRINT
@@ -450,27 +386,62 @@ public class KeyserverSyncAdapterService extends Service {
                 null
         );
 
-        if (keyCursor == null) {
-            return new ArrayList<>();
+        return new KeysToUpdate(keyCursor);
+    }
+
+    /**
+     * Reads the keys to update from a cursor as the import takes them, rather than building a
+     * list of all keys first. The import only uses it from the thread which runs the sync.
+     */
+    private static class KeysToUpdate implements Iterator<ParcelableKeyRing> {
+
+        private static final int INDEX_MASTER_KEY_ID = 0;
+        private static final int INDEX_FINGERPRINT = 1;
+
+        private final Cursor mCursor;
+
+        KeysToUpdate(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        int getCount() {
+            return mCursor != null ? mCursor.getCount() : 0;
         }
 
-        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
-        while (keyCursor.moveToNext()) {
-            long keyId = keyCursor.getLong(INDEX_MASTER_KEY_ID);
-            if (ignoreMasterKeyIds.contains(keyId)) {
-                continue;
+        @Override
+        public boolean hasNext() {
+            return mCursor != null && !mCursor.isClosed()
+                    && mCursor.getPosition() < mCursor.getCount() - 1;
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            mCursor.moveToNext();
+
+            long keyId = mCursor.getLong(INDEX_MASTER_KEY_ID);
             Log.d(Constants.TAG, "Keyserver sync: Updating {" + keyId + "}");
             String fingerprint = KeyFormattingUtils
-                    .convertFingerprintToHex(keyCursor.getBlob(INDEX_FINGERPRINT));
+                    .convertFingerprintToHex(mCursor.getBlob(INDEX_FINGERPRINT));
             String hexKeyId = KeyFormattingUtils
                     .convertKeyIdToHex(keyId);
             // we aren't updating from keybase as of now
-            keyList.add(new ParcelableKeyRing(fingerprint, hexKeyId));
+            return new ParcelableKeyRing(fingerprint, hexKeyId);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            if (mCursor != null) {
+                mCursor.close();
+            }
         }
-        keyCursor.close();
 
-        return keyList;
     }
 
     private boolean isUpdateCancelled() {
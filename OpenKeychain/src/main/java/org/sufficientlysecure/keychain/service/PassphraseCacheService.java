@@ -73,6 +73,11 @@ import java.util.Date;
  * rare occurrence, and caching by keyring is what the user expects in the vast majority of
  * cases, this is not the default behavior.
  *
+ * Along with each passphrase, the session keys derived from it by S2K are cached (see
+ * Passphrase). Operations hand newly derived session keys back via addCachedSessionKeys, so
+ * the S2K is applied only once per key while its passphrase is cached. Session keys are wiped
+ * from memory together with their passphrase.
+ *
  */
 public class PassphraseCacheService extends Service {
 
@@ -82,9 +87,14 @@ public class PassphraseCacheService extends Service {
             + "PASSPHRASE_CACHE_GET";
     public static final String ACTION_PASSPHRASE_CACHE_CLEAR = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_CLEAR";
+    public static final String ACTION_PASSPHRASE_CACHE_ADD_SESSION_KEYS = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_ADD_SESSION_KEYS";
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    /** Sent to our other processes whenever passphrases are removed from the cache. */
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_REMOVED = Constants.INTENT_PREFIX
+            + "PASSPHRASE_CACHE_REMOVED";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
@@ -92,6 +102,7 @@ public class PassphraseCacheService extends Service {
     public static final String EXTRA_PASSPHRASE = "passphrase";
     public static final String EXTRA_MESSENGER = "messenger";
     public static final String EXTRA_USER_ID = "user_id";
+    public static final String EXTRA_TIMEOUT_TIME = "timeout_time";
 
     private static final int DEFAULT_TTL = 0;
 
@@ -136,6 +147,25 @@ public class PassphraseCacheService extends Service {
         context.startService(intent);
     }
 
+    /**
+     * Adds session keys which were derived from a cached passphrase to the cache, so that the S2K
+     * only has to be applied once for each key while the passphrase is cached. The session keys
+     * are only added if the same passphrase is still cached, and are removed along with it.
+     */
+    public static void addCachedSessionKeys(Context context, long masterKeyId, long subKeyId,
+                                            Passphrase passphrase) {
+        Log.d(Constants.TAG, "PassphraseCacheService.addCachedSessionKeys() for " + masterKeyId);
+
+        Intent intent = new Intent(context, PassphraseCacheService.class);
+        intent.setAction(ACTION_PASSPHRASE_CACHE_ADD_SESSION_KEYS);
+
+        intent.putExtra(EXTRA_PASSPHRASE, passphrase);
+        intent.putExtra(EXTRA_KEY_ID, masterKeyId);
+        intent.putExtra(EXTRA_SUBKEY_ID, subKeyId);
+
+        context.startService(intent);
+    }
+
     public static void clearCachedPassphrase(Context context, long masterKeyId, long subKeyId) {
         Log.d(Constants.TAG, "PassphraseCacheService.clearCachedPassphrase() for " + masterKeyId);
 
@@ -167,6 +197,32 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        Bundle returnData = requestCachedPassphrase(context, masterKeyId, subKeyId);
+        return returnData.getParcelable(EXTRA_PASSPHRASE);
+    }
+
+    /**
+     * Gets the time at which a cached passphrase times out, in milliseconds since the epoch. Like
+     * getCachedPassphrase, this waits until the service returns.
+     *
+     * @return the timeout time, 0 if the passphrase has no fixed timeout, or -1 if it is not cached
+     */
+    public static long getCachedPassphraseTimeoutTime(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
+        Bundle returnData = requestCachedPassphrase(context, masterKeyId, subKeyId);
+        Passphrase passphrase = returnData.getParcelable(EXTRA_PASSPHRASE);
+        if (passphrase == null) {
+            return -1;
+        }
+        // we only want to know if it's there
+        passphrase.removeFromMemory();
+        return returnData.getLong(EXTRA_TIMEOUT_TIME);
+    }
+
+    /** Sends an ACTION_PASSPHRASE_CACHE_GET intent to the service, and waits for its answer. */
+    private static Bundle requestCachedPassphrase(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -212,7 +268,7 @@ public class PassphraseCacheService extends Service {
             case MSG_PASSPHRASE_CACHE_GET_OKAY:
                 Bundle returnData = returnMessage.getData();
                 returnData.setClassLoader(context.getClassLoader());
-                return returnData.getParcelable(EXTRA_PASSPHRASE);
+                return returnData;
             case MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND:
                 throw new KeyNotFoundException();
             default:
@@ -287,6 +343,19 @@ public class PassphraseCacheService extends Service {
         return cachedPassphrase.mPassphrase;
     }
 
+    /** @return the time the cached passphrase times out, or 0 if it is not cached with a ttl. */
+    private long getCachedTimeoutTime(long masterKeyId, long subKeyId) {
+        // the passphrase may be cached by subkey or by master key, see getCachedPassphraseImpl
+        CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
+        if (cachedPassphrase == null) {
+            cachedPassphrase = mPassphraseCache.get(masterKeyId);
+        }
+        if (cachedPassphrase == null || cachedPassphrase.mTimeoutMode != TimeoutMode.TTL) {
+            return 0;
+        }
+        return cachedPassphrase.mTimeoutTime;
+    }
+
     /**
      * Register BroadcastReceiver that is unregistered when service is destroyed. This
      * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then timeout
@@ -368,9 +437,9 @@ public class PassphraseCacheService extends Service {
                 } else if (timeoutTtl >= Integer.MAX_VALUE) {
                     cachedPassphrase = CachedPassphrase.getPassphraseNoTimeout(passphrase, primaryUserID);
                 } else {
-                    cachedPassphrase = CachedPassphrase.getPassphraseTtlTimeout(passphrase, primaryUserID, timeoutTtl);
-
                     long triggerTime = new Date().getTime() + (timeoutTtl * 1000);
+                    cachedPassphrase = CachedPassphrase.getPassphraseTtlTimeout(passphrase, primaryUserID, triggerTime);
+
                     // register new alarm with keyId for this passphrase
                     AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
                     am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
@@ -396,6 +465,7 @@ public class PassphraseCacheService extends Service {
                         msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         Bundle bundle = new Bundle();
                         bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
+                        bundle.putLong(EXTRA_TIMEOUT_TIME, getCachedTimeoutTime(masterKeyId, subKeyId));
                         msg.setData(bundle);
                     }
                 } catch (ProviderHelper.NotFoundException e) {
@@ -410,6 +480,28 @@ public class PassphraseCacheService extends Service {
                 }
                 break;
             }
+            case ACTION_PASSPHRASE_CACHE_ADD_SESSION_KEYS: {
+                long masterKeyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
+                long subKeyId = intent.getLongExtra(EXTRA_SUBKEY_ID, -1);
+                Passphrase passphrase = intent.getParcelableExtra(EXTRA_PASSPHRASE);
+                if (passphrase == null) {
+                    break;
+                }
+
+                // the passphrase may be cached by subkey or by master key, see above. session keys
+                // are only copied over if the cached passphrase is the same, so either is fine.
+                CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
+                if (cachedPassphrase == null) {
+                    cachedPassphrase = mPassphraseCache.get(masterKeyId);
+                }
+                if (cachedPassphrase != null && cachedPassphrase.mPassphrase != null) {
+                    cachedPassphrase.mPassphrase.addCachedSessionKeys(passphrase);
+                }
+                // addCachedSessionKeys made copies, clean up the one we received
+                passphrase.removeFromMemory();
+
+                break;
+            }
             case ACTION_PASSPHRASE_CACHE_CLEAR: {
                 AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
 
@@ -423,6 +515,7 @@ public class PassphraseCacheService extends Service {
                     }
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
+                    removeFromMemory(mPassphraseCache.get(referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
 
                 } else {
@@ -433,10 +526,12 @@ public class PassphraseCacheService extends Service {
                         if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
                             am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
                         }
+                        removeFromMemory(cachedPassphrase);
                     }
                     mPassphraseCache.clear();
 
                 }
+                notifyPassphrasesRemoved();
                 break;
             }
             default: {
@@ -455,16 +550,15 @@ public class PassphraseCacheService extends Service {
 
         CachedPassphrase cPass = mPassphraseCache.get(keyId);
         if (cPass != null) {
-            if (cPass.mPassphrase != null) {
-                // clean internal char[] from memory!
-                cPass.mPassphrase.removeFromMemory();
-            }
+            removeFromMemory(cPass);
             // remove passphrase object
             mPassphraseCache.remove(keyId);
         }
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
 
+        notifyPassphrasesRemoved();
+
         updateService();
     }
 
@@ -473,6 +567,7 @@ public class PassphraseCacheService extends Service {
         for (int i = 0; i < mPassphraseCache.size(); ) {
             CachedPassphrase cPass = mPassphraseCache.valueAt(i);
             if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
+                removeFromMemory(cPass);
                 // remove passphrase object
                 mPassphraseCache.removeAt(i);
                 continue;
@@ -483,9 +578,25 @@ public class PassphraseCacheService extends Service {
 
         Log.d(Constants.TAG, "PassphraseCacheService Removing all cached-until-lock passphrases from memory!");
 
+        notifyPassphrasesRemoved();
+
         updateService();
     }
 
+    /** Lets our other processes drop anything they keep around based on cached passphrases. */
+    private void notifyPassphrasesRemoved() {
+        Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_REMOVED);
+        intent.setPackage(getPackageName());
+        sendBroadcast(intent);
+    }
+
+    /** Cleans the internal char[] of a cached passphrase and its session keys from memory. */
+    private static void removeFromMemory(CachedPassphrase cPass) {
+        if (cPass != null && cPass.mPassphrase != null) {
+            cPass.mPassphrase.removeFromMemory();
+        }
+    }
+
     private void updateService() {
         if (mPassphraseCache.size() > 0) {
             startForeground(Constants.Notification.PASSPHRASE_CACHE, getNotification());
@@ -589,6 +700,7 @@ public class PassphraseCacheService extends Service {
             return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.NEVER, null);
         }
 
+        /** @param timeoutTime time the passphrase times out, in milliseconds since the epoch */
         static CachedPassphrase getPassphraseTtlTimeout(Passphrase passphrase, String primaryUserId, long timeoutTime) {
             return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.TTL, timeoutTime);
         }
@@ -39,7 +39,9 @@ public class ServiceProgressHandler extends Handler {
         OKAY,
         EXCEPTION,
         UPDATE_PROGRESS,
-        PREVENT_CANCEL;
+        PREVENT_CANCEL,
+        PARTIAL_RESULT,
+        PARTIAL_PROGRESS;
 
         private static final MessageStatus[] values = values();
 
@@ -58,6 +60,7 @@ public class ServiceProgressHandler extends Handler {
     public static final String DATA_PROGRESS_MAX = "max";
     public static final String DATA_MESSAGE = "message";
     public static final String DATA_MESSAGE_ID = "message_id";
+    public static final String DATA_INPUT_URI = "input_uri";
 
     // keybase proof specific
     public static final String KEYBASE_PROOF_URL = "keybase_proof_url";
@@ -143,6 +146,11 @@ public class ServiceProgressHandler extends Handler {
                 setPreventCancel(true);
                 break;
 
+            case PARTIAL_RESULT:
+            case PARTIAL_PROGRESS:
+                // handled by subclasses which expect results for several inputs
+                break;
+
             default:
                 Log.e(Constants.TAG, "unknown handler message!");
                 break;
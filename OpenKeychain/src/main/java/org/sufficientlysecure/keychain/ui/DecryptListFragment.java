@@ -75,12 +75,17 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper.PartialResultCallback;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
@@ -101,21 +106,26 @@ import org.sufficientlysecure.keychain.util.Preferences;
  *
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mCurrentInputUris, or a key in mInputDataResults.
  *
  * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
- * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- *   from the list of mPendingInputUris.
- * - Once a mCurrentInputUri is finished processing, it should be set to null and
- *   control handed back to cryptoOperation()
+ * - There is always exactly one batch operation running which works on
+ *   mCurrentInputUris, processing them concurrently in KeychainService.
+ * - Processing starts in cryptoOperation(), which moves all mPendingInputUris
+ *   into mCurrentInputUris.
+ * - Results for each URI arrive in onCryptoOperationPartialResult() as soon as
+ *   it is done, which removes it from mCurrentInputUris. If the batch needs a
+ *   passphrase, the URIs pending on the same passphrase as the first one stay in
+ *   mCurrentInputUris and are retried with it. URIs pending on other input go
+ *   back to mPendingInputUris, and get another round once the retry is done.
+ * - Once the batch is finished, control is handed back to cryptoOperation()
  * - Control flow can move through asynchronous calls, and resume in callbacks
  *   like onActivityResult() or onPermissionRequestResult().
  *
  */
 public class DecryptListFragment
-        extends QueueingCryptoOperationFragment<InputDataParcel,InputDataResult>
-        implements OnMenuItemClickListener {
+        extends QueueingCryptoOperationFragment<InputDataBatchParcel,InputDataBatchResult>
+        implements OnMenuItemClickListener, PartialResultCallback {
 
     public static final String ARG_INPUT_URIS = "input_uris";
     public static final String ARG_OUTPUT_URIS = "output_uris";
@@ -131,7 +141,9 @@ public class DecryptListFragment
     private ArrayList<Uri> mPendingInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
-    private Uri mCurrentInputUri;
+    private ArrayList<Uri> mCurrentInputUris;
+    /** The input the user will be asked for to retry mCurrentInputUris, if any is pending. */
+    private RequiredInputParcel mCurrentRequiredInput;
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
@@ -204,7 +216,7 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
 
-        // this does not save mCurrentInputUri - if anything is being
+        // this does not save mCurrentInputUris - if anything is being
         // processed at fragment recreation time, the operation in
         // progress will be lost!
 
@@ -233,7 +245,7 @@ public class DecryptListFragment
             HashMap<Uri,InputDataResult> results) {
 
         mInputUris = inputUris;
-        mCurrentInputUri = null;
+        mCurrentInputUris = new ArrayList<>();
         mInputDataResults = results != null ? results : new HashMap<Uri,InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -269,7 +281,6 @@ public class DecryptListFragment
                 if (resultCode == Activity.RESULT_OK && data != null) {
                     Uri saveUri = data.getData();
                     saveFile(saveUri);
-                    mCurrentInputUri = null;
                 }
                 return;
             }
@@ -307,7 +318,6 @@ public class DecryptListFragment
         }
 
         Uri decryptedFileUri = mCurrentSaveFileUri;
-        mCurrentInputUri = null;
 
         hideKeyboard();
 
@@ -327,34 +337,77 @@ public class DecryptListFragment
 
     @Override
     public boolean onCryptoSetProgress(String msg, int progress, int max) {
-        mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
+        // this is the progress of the whole batch, each input shows its own progress instead
         return true;
     }
 
     @Override
-    public void onQueuedOperationError(InputDataResult result) {
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+    public void onCryptoOperationPartialProgress(Uri inputUri, String msg, int progress, int max) {
+        if (mCurrentInputUris.contains(inputUri)) {
+            mAdapter.setProgress(inputUri, progress, max, msg);
+        }
+    }
+
+    @Override
+    public void onCryptoOperationPartialResult(Uri inputUri, OperationResult result) {
+        if (!mCurrentInputUris.remove(inputUri)) {
+            return;
+        }
 
+        InputDataResult inputDataResult = (InputDataResult) result;
+        if (inputDataResult.isPending()) {
+            onInputDataPending(inputUri, inputDataResult.getRequiredInputParcel());
+        } else if (inputDataResult.success()) {
+            onInputDataSuccess(inputUri, inputDataResult);
+        } else {
+            onInputDataError(inputUri, inputDataResult);
+        }
+    }
+
+    private void onInputDataPending(Uri uri, RequiredInputParcel requiredInput) {
+        // the batch asks for the input of the first pending uri
+        if (mCurrentRequiredInput == null) {
+            mCurrentRequiredInput = requiredInput;
+        }
+
+        if (isSameRequiredInput(mCurrentRequiredInput, requiredInput)) {
+            mCurrentInputUris.add(uri);
+        } else {
+            mPendingInputUris.add(uri);
+        }
+    }
+
+    /** Returns true if the input supplied for one of these can be used for the other as well. */
+    private static boolean isSameRequiredInput(RequiredInputParcel first, RequiredInputParcel second) {
+        if (first.mType != second.mType) {
+            return false;
+        }
+        switch (first.mType) {
+            case PASSPHRASE:
+                return first.getSubKeyId() != null && first.getSubKeyId().equals(second.getSubKeyId());
+            case PASSPHRASE_SYMMETRIC:
+                return true;
+            default:
+                // backup codes and security token operations are different for each input
+                return first == second;
+        }
+    }
+
+    private void onInputDataError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
         }
 
         mAdapter.addResult(uri, result);
-
-        cryptoOperation();
     }
 
-    @Override
-    public void onQueuedOperationSuccess(InputDataResult result) {
-        Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onInputDataSuccess(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
 
-        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty();
-        if (isSingleInput) {
+        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty()
+                && mCurrentInputUris.isEmpty();
+        if (isSingleInput && activity != null) {
 
             // there is always at least one mMetadata object, so we know this is >= 1 already
             boolean isSingleMetadata = result.mMetadata.size() == 1;
@@ -376,7 +429,20 @@ public class DecryptListFragment
 
         mInputDataResults.put(uri, result);
         processResult(uri);
+    }
 
+    @Override
+    public void onQueuedOperationError(InputDataBatchResult result) {
+        super.onQueuedOperationError(result);
+
+        cancelCurrentInputUris();
+        cryptoOperation();
+    }
+
+    @Override
+    public void onQueuedOperationSuccess(InputDataBatchResult result) {
+        // results for all inputs have been delivered, anything left was cancelled
+        cancelCurrentInputUris();
         cryptoOperation();
     }
 
@@ -384,16 +450,20 @@ public class DecryptListFragment
     public void onCryptoOperationCancelled() {
         super.onCryptoOperationCancelled();
 
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
-        mCancelledInputUris.add(uri);
-        mAdapter.setCancelled(uri, true);
-
+        // cancellation applies to the whole batch
+        cancelCurrentInputUris();
         cryptoOperation();
 
     }
 
+    private void cancelCurrentInputUris() {
+        for (Uri uri : mCurrentInputUris) {
+            mCancelledInputUris.add(uri);
+            mAdapter.setCancelled(uri, true);
+        }
+        mCurrentInputUris.clear();
+    }
+
     HashMap<Uri,Drawable> mIconCache = new HashMap<>();
 
     private void processResult(final Uri uri) {
@@ -472,7 +542,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (!mCurrentInputUris.isEmpty()) {
             return;
         }
 
@@ -614,31 +684,38 @@ public class DecryptListFragment
     }
 
     @Override
-    public InputDataParcel createOperationInput() {
+    public InputDataBatchParcel createOperationInput() {
 
         Activity activity = getActivity();
         if (activity == null) {
             return null;
         }
 
-        if (mCurrentInputUri == null) {
+        if (mCurrentInputUris.isEmpty()) {
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
                 return null;
             }
 
-            mCurrentInputUri = mPendingInputUris.remove(0);
+            mCurrentInputUris.addAll(mPendingInputUris);
+            mPendingInputUris.clear();
         }
 
-        Log.d(Constants.TAG, "mCurrentInputUri=" + mCurrentInputUri);
+        Log.d(Constants.TAG, "mCurrentInputUris=" + mCurrentInputUris);
+        mCurrentRequiredInput = null;
 
-        if ( ! checkAndRequestReadPermission(activity, mCurrentInputUri)) {
-            return null;
+        ArrayList<InputDataParcel> inputs = new ArrayList<>(mCurrentInputUris.size());
+        for (Uri uri : mCurrentInputUris) {
+            if ( ! checkAndRequestReadPermission(activity, uri)) {
+                return null;
+            }
+
+            PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
+                    .setAllowSymmetricDecryption(true);
+            inputs.add(new InputDataParcel(uri, decryptInput));
         }
 
-        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
-                .setAllowSymmetricDecryption(true);
-        return new InputDataParcel(mCurrentInputUri, decryptInput);
+        return new InputDataBatchParcel(inputs);
 
     }
 
@@ -647,7 +724,7 @@ public class DecryptListFragment
      *
      * This method returns true on Android < 6, or if permission is already granted. It
      * requests the permission and returns false otherwise, taking over responsibility
-     * for mCurrentInputUri.
+     * for mCurrentInputUris.
      *
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
@@ -703,21 +780,9 @@ public class DecryptListFragment
 
         } else {
 
-            // permission denied -> cancel current, and all pending file uris
-            mCancelledInputUris.add(mCurrentInputUri);
-            mAdapter.setCancelled(mCurrentInputUri, true);
-
-            mCurrentInputUri = null;
-            Iterator<Uri> it = mPendingInputUris.iterator();
-            while (it.hasNext()) {
-                Uri uri = it.next();
-                if ( ! ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-                    continue;
-                }
-                it.remove();
-                mCancelledInputUris.add(uri);
-                mAdapter.setCancelled(uri, true);
-            }
+            // permission denied -> cancel all current and pending file uris
+            cancelFileUris(mCurrentInputUris);
+            cancelFileUris(mPendingInputUris);
 
         }
 
@@ -726,6 +791,19 @@ public class DecryptListFragment
 
     }
 
+    private void cancelFileUris(ArrayList<Uri> uris) {
+        Iterator<Uri> it = uris.iterator();
+        while (it.hasNext()) {
+            Uri uri = it.next();
+            if ( ! ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                continue;
+            }
+            it.remove();
+            mCancelledInputUris.add(uri);
+            mAdapter.setCancelled(uri, true);
+        }
+    }
+
     @Override
     public boolean onMenuItemClick(MenuItem menuItem) {
         if (mAdapter.mMenuClickedModel == null || !mAdapter.mMenuClickedModel.hasResult()) {
@@ -733,7 +811,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || !mCurrentInputUris.isEmpty()) {
             return true;
         }
 
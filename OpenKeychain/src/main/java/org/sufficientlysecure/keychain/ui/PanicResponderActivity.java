@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 
+import org.sufficientlysecure.keychain.pgp.KeyPairPool;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 
 /**
@@ -40,6 +41,7 @@ public class PanicResponderActivity extends Activity {
         Intent intent = getIntent();
         if (intent != null && PANIC_TRIGGER_ACTION.equals(intent.getAction())) {
             PassphraseCacheService.clearCachedPassphrases(this);
+            KeyPairPool.getInstance(this).clear();
             PanicExitActivity.exitAndRemoveFromRecentApps(this);
         }
 
@@ -49,6 +49,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.AppCompatPreferenceActivity;
+import org.sufficientlysecure.keychain.pgp.KeyPairPool;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.base.BaseActivity;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -560,9 +561,48 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             addPreferencesFromResource(R.xml.experimental_preferences);
 
             initializeTheme((ListPreference) findPreference(Constants.Pref.THEME));
+            initializePregenerateKeys(findPreference(Constants.Pref.EXPERIMENTAL_PREGENERATE_KEYS));
+            initializeS2kUnlockBudget((ListPreference) findPreference(Constants.Pref.S2K_UNLOCK_BUDGET));
 
         }
 
+        private static void initializePregenerateKeys(Preference pregeneratePref) {
+            pregeneratePref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    Context context = preference.getContext();
+                    // save the value right away, so the pool sees it
+                    Preferences.getPreferences(context).setExperimentalPregenerateKeys((Boolean) newValue);
+                    if ((Boolean) newValue) {
+                        KeyPairPool.getInstance(context).refill();
+                    } else {
+                        KeyPairPool.getInstance(context).clear();
+                    }
+                    return true;
+                }
+            });
+        }
+
+        private static void initializeS2kUnlockBudget(final ListPreference budgetPref) {
+            // the budget is stored as an int, so the value isn't persisted by the preference itself
+            final Preferences preferences = Preferences.getPreferences(budgetPref.getContext());
+            budgetPref.setValue(Integer.toString(preferences.getS2kUnlockBudgetMillis()));
+            setS2kUnlockBudgetSummary(budgetPref, budgetPref.getEntry());
+            budgetPref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    preferences.setS2kUnlockBudgetMillis(Integer.parseInt((String) newValue));
+                    setS2kUnlockBudgetSummary(budgetPref,
+                            budgetPref.getEntries()[budgetPref.findIndexOfValue((String) newValue)]);
+                    return true;
+                }
+            });
+        }
+
+        private static void setS2kUnlockBudgetSummary(ListPreference budgetPref, CharSequence entry) {
+            // entry is null if the stored budget is not one of the listed ones
+            budgetPref.setSummary((entry != null ? entry + "\n" : "")
+                    + budgetPref.getContext().getString(R.string.label_experimental_settings_s2k_unlock_budget_summary));
+        }
+
         private static void initializeTheme(final ListPreference themePref) {
             themePref.setSummary(themePref.getEntry() + "\n"
                     + themePref.getContext().getString(R.string.label_experimental_settings_theme_summary));
@@ -912,14 +912,10 @@ public class ViewKeyActivity extends BaseSecurityTokenActivity implements
                         // this is done at the end of the animation otherwise
                     }
 
-                    AsyncTask<Long, Void, Bitmap> photoTask =
-                            new AsyncTask<Long, Void, Bitmap>() {
-                                protected Bitmap doInBackground(Long... mMasterKeyId) {
-                                    return new ContactHelper(ViewKeyActivity.this)
-                                            .loadPhotoByMasterKeyId(mMasterKeyId[0], true);
-                                }
-
-                                protected void onPostExecute(Bitmap photo) {
+                    ContactHelper.OnPhotoLoadedListener photoListener =
+                            new ContactHelper.OnPhotoLoadedListener() {
+                                @Override
+                                public void onPhotoLoaded(Bitmap photo) {
                                     if (photo == null) {
                                         return;
                                     }
@@ -929,6 +925,8 @@ public class ViewKeyActivity extends BaseSecurityTokenActivity implements
                                     mPhotoLayout.setVisibility(View.VISIBLE);
                                 }
                             };
+                    // the photo is shown across the whole width of the header
+                    int photoSize = getResources().getDisplayMetrics().widthPixels;
 
                     // Note: order is important
                     int color;
@@ -971,7 +969,7 @@ public class ViewKeyActivity extends BaseSecurityTokenActivity implements
                         if (!mFingerprintString.equals(mQrCodeLoaded)) {
                             loadQrCode(mFingerprintString);
                         }
-                        photoTask.execute(mMasterKeyId);
+                        new ContactHelper(this).loadPhotoByMasterKeyIdAsync(mMasterKeyId, photoSize, photoListener);
                         mQrCodeLayout.setVisibility(View.VISIBLE);
 
                         // and place leftOf qr code
@@ -1020,7 +1018,7 @@ public class ViewKeyActivity extends BaseSecurityTokenActivity implements
                                     State.VERIFIED, R.color.icons, true);
                             // noinspection deprecation, fix requires api level 23
                             color = getResources().getColor(R.color.key_flag_green);
-                            photoTask.execute(mMasterKeyId);
+                            new ContactHelper(this).loadPhotoByMasterKeyIdAsync(mMasterKeyId, photoSize, photoListener);
 
                             hideFab();
                         } else {
@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
@@ -48,6 +50,8 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -108,6 +112,24 @@ public class ImportKeysListCloudLoader
         super.deliverResult(data);
     }
 
+    /**
+     * Shows the results of the servers which answered so far, while waiting for the others.
+     */
+    private void deliverPartialResults(ArrayList<ImportKeysListEntry> results) {
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialWrapper =
+                new AsyncTaskResultWrapper<>(results, getKeyResult);
+        // posted before the final result is, so it can't overtake it
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    deliverResult(partialWrapper);
+                }
+            }
+        });
+    }
+
     /**
      * Query keyserver
      */
@@ -133,10 +155,18 @@ public class ImportKeysListCloudLoader
         }
 
         try {
+            // a fingerprint search must be checked against the complete result
+            CloudSearch.SearchListener listener = enforceFingerprint ? null : new CloudSearch.SearchListener() {
+                @Override
+                public void onPartialResults(ArrayList<ImportKeysListEntry> results) {
+                    deliverPartialResults(results);
+                }
+            };
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mServerQuery,
                     mCloudPrefs,
-                    parcelableProxy.getProxy()
+                    parcelableProxy.getProxy(),
+                    listener
             );
 
             mEntryList.clear();
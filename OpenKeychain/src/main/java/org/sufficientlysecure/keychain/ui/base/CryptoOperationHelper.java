@@ -24,6 +24,7 @@ import java.util.Date;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
@@ -67,6 +68,14 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         boolean onCryptoSetProgress(String msg, int progress, int max);
     }
 
+    /** Implemented by callbacks of operations which process several inputs, and deliver the result
+     * for each of them as soon as it is done.
+     */
+    public interface PartialResultCallback {
+        void onCryptoOperationPartialResult(Uri inputUri, OperationResult result);
+        void onCryptoOperationPartialProgress(Uri inputUri, String msg, int progress, int max);
+    }
+
     // request codes from CryptoOperationHelper are created essentially
     // a static property, used to identify requestCodes meant for this
     // particular helper. a request code looks as follows:
@@ -297,6 +306,31 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
                             returnData.getParcelable(OperationResult.EXTRA_RESULT);
 
                     onHandleResult(result);
+                } else if (message.arg1 == MessageStatus.PARTIAL_RESULT.ordinal()) {
+
+                    Bundle returnData = message.getData();
+                    if (returnData == null || !(mCallback instanceof PartialResultCallback)) {
+                        return;
+                    }
+
+                    Uri inputUri = returnData.getParcelable(ServiceProgressHandler.DATA_INPUT_URI);
+                    OperationResult result = returnData.getParcelable(OperationResult.EXTRA_RESULT);
+
+                    ((PartialResultCallback) mCallback).onCryptoOperationPartialResult(inputUri, result);
+                } else if (message.arg1 == MessageStatus.PARTIAL_PROGRESS.ordinal()) {
+
+                    Bundle data = message.getData();
+                    if (data == null || !(mCallback instanceof PartialResultCallback)) {
+                        return;
+                    }
+
+                    Uri inputUri = data.getParcelable(ServiceProgressHandler.DATA_INPUT_URI);
+                    String msg = data.getString(ServiceProgressHandler.DATA_MESSAGE);
+                    int progress = data.getInt(ServiceProgressHandler.DATA_PROGRESS);
+                    int max = data.getInt(ServiceProgressHandler.DATA_PROGRESS_MAX);
+
+                    ((PartialResultCallback) mCallback).onCryptoOperationPartialProgress(
+                            inputUri, msg, progress, max);
                 }
             }
 
@@ -0,0 +1,196 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.content.Context;
+
+import org.bouncycastle.util.io.Streams;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sufficientlysecure.keychain.Constants;
+
+/** Stores the results of the most recent BenchmarkOperation runs in a file, so runs with
+ * different app versions on the same device can be compared.
+ */
+public class BenchmarkHistory {
+
+    private static final String FILENAME = "benchmark_history.json";
+    private static final int MAX_RUNS = 20;
+
+    /** The timings of a single benchmarked operation. */
+    public static class Measurement {
+        public final String mName;
+        public final long mMeanMicros;
+        public final long mP50Micros;
+        public final long mP95Micros;
+        public final long mMaxMicros;
+        // throughput in MB/s, or 0 if not applicable
+        public final double mThroughput;
+
+        Measurement(String name, long meanMicros, long p50Micros, long p95Micros, long maxMicros,
+                double throughput) {
+            mName = name;
+            mMeanMicros = meanMicros;
+            mP50Micros = p50Micros;
+            mP95Micros = p95Micros;
+            mMaxMicros = maxMicros;
+            mThroughput = throughput;
+        }
+
+        /** @param bytesPerRun the amount of data processed per run, or 0 */
+        public static Measurement fromNanos(String name, long[] nanos, long bytesPerRun) {
+            long[] sorted = Arrays.copyOf(nanos, nanos.length);
+            Arrays.sort(sorted);
+
+            long totalNanos = 0;
+            for (long n : sorted) {
+                totalNanos += n;
+            }
+            long meanNanos = totalNanos / sorted.length;
+            double throughput = bytesPerRun > 0 && meanNanos > 0
+                    ? bytesPerRun / 1024.0 / 1024.0 / (meanNanos / 1000000000.0) : 0;
+
+            return new Measurement(name, meanNanos / 1000,
+                    sorted[(sorted.length - 1) / 2] / 1000,
+                    sorted[(int) Math.ceil(sorted.length * 0.95) - 1] / 1000,
+                    sorted[sorted.length - 1] / 1000, throughput);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", mName);
+            json.put("mean", mMeanMicros);
+            json.put("p50", mP50Micros);
+            json.put("p95", mP95Micros);
+            json.put("max", mMaxMicros);
+            json.put("throughput", mThroughput);
+            return json;
+        }
+
+        static Measurement fromJson(JSONObject json) throws JSONException {
+            return new Measurement(json.getString("name"), json.getLong("mean"), json.getLong("p50"),
+                    json.getLong("p95"), json.getLong("max"), json.getDouble("throughput"));
+        }
+    }
+
+    /** The measurements of one benchmark run. */
+    public static class Run {
+        public final int mVersionCode;
+        public final String mVersionName;
+        public final long mTime;
+        public final ArrayList<Measurement> mMeasurements;
+
+        public Run(int versionCode, String versionName, long time, ArrayList<Measurement> measurements) {
+            mVersionCode = versionCode;
+            mVersionName = versionName;
+            mTime = time;
+            mMeasurements = measurements;
+        }
+
+        public Measurement getMeasurement(String name) {
+            for (Measurement measurement : mMeasurements) {
+                if (measurement.mName.equals(name)) {
+                    return measurement;
+                }
+            }
+            return null;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONArray measurements = new JSONArray();
+            for (Measurement measurement : mMeasurements) {
+                measurements.put(measurement.toJson());
+            }
+            JSONObject json = new JSONObject();
+            json.put("versionCode", mVersionCode);
+            json.put("versionName", mVersionName);
+            json.put("time", mTime);
+            json.put("measurements", measurements);
+            return json;
+        }
+
+        static Run fromJson(JSONObject json) throws JSONException {
+            JSONArray jsonMeasurements = json.getJSONArray("measurements");
+            ArrayList<Measurement> measurements = new ArrayList<>(jsonMeasurements.length());
+            for (int i = 0; i < jsonMeasurements.length(); i++) {
+                measurements.add(Measurement.fromJson(jsonMeasurements.getJSONObject(i)));
+            }
+            return new Run(json.getInt("versionCode"), json.getString("versionName"),
+                    json.getLong("time"), measurements);
+        }
+    }
+
+    private final File mFile;
+
+    public BenchmarkHistory(Context context) {
+        mFile = new File(context.getFilesDir(), FILENAME);
+    }
+
+    /** @return the stored runs, oldest first */
+    public ArrayList<Run> getRuns() {
+        ArrayList<Run> runs = new ArrayList<>();
+        if (!mFile.exists()) {
+            return runs;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(mFile);
+            JSONArray json;
+            try {
+                json = new JSONArray(new String(Streams.readAll(in), "UTF-8"));
+            } finally {
+                in.close();
+            }
+            for (int i = 0; i < json.length(); i++) {
+                runs.add(Run.fromJson(json.getJSONObject(i)));
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(Constants.TAG, "could not read benchmark history, discarding it", e);
+            runs.clear();
+        }
+        return runs;
+    }
+
+    /** @return the most recent run with an app version other than the given one, or null */
+    public Run getLastRunOfOtherVersion(int versionCode) {
+        ArrayList<Run> runs = getRuns();
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            if (runs.get(i).mVersionCode != versionCode) {
+                return runs.get(i);
+            }
+        }
+        return null;
+    }
+
+    /** Adds a run, dropping the oldest ones beyond the limit. */
+    public void addRun(Run run) throws IOException {
+        ArrayList<Run> runs = getRuns();
+        runs.add(run);
+        while (runs.size() > MAX_RUNS) {
+            runs.remove(0);
+        }
+
+        try {
+            JSONArray json = new JSONArray();
+            for (Run r : runs) {
+                json.put(r.toJson());
+            }
+            FileOutputStream out = new FileOutputStream(mFile);
+            try {
+                out.write(json.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
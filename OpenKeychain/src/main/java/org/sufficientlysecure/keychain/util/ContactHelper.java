@@ -29,9 +29,12 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
 import android.util.Patterns;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
@@ -41,6 +44,8 @@ import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -53,7 +58,17 @@ import java.util.regex.Matcher;
 
 public class ContactHelper {
 
-    private static final Map<Long, Bitmap> photoCache = new HashMap<>();
+    // limit in bytes of cached photos. negative results are cached as well, so we don't query
+    // the contact db again and again for the common case of keys without a contact
+    private static final int MAX_PHOTO_CACHE_SIZE =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+    // the contact photo may change at any time, so reload entries after a while
+    private static final long PHOTO_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final PhotoLruCache sPhotoCache = new PhotoLruCache(MAX_PHOTO_CACHE_SIZE);
+
+    // ContactsProvider rejects batches of more than 500 operations without a yield point
+    static final int MAX_BATCH_SIZE = 400;
 
     private Context mContext;
     private ContentResolver mContentResolver;
@@ -391,30 +406,148 @@ public class ContactHelper {
         return contactName;
     }
 
-    private Bitmap getCachedPhotoByMasterKeyId(long masterKeyId) {
-        if (masterKeyId == -1) {
+    public interface OnPhotoLoadedListener {
+        /** Called on the UI thread, with null if there is no photo for the key. */
+        void onPhotoLoaded(Bitmap photo);
+    }
+
+    /**
+     * Loads the photo of the contact linked to a key, downsampled to about targetSize pixels,
+     * from the cache or otherwise in the background. This must be called on the UI thread.
+     */
+    public void loadPhotoByMasterKeyIdAsync(final long masterKeyId, final int targetSize,
+                                            final OnPhotoLoadedListener listener) {
+        PhotoEntry entry = getPhotoCacheEntry(masterKeyId, targetSize);
+        if (entry != null) {
+            listener.onPhotoLoaded(entry.mPhoto);
+            return;
+        }
+
+        new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                return getCachedPhotoByMasterKeyId(masterKeyId, targetSize);
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap photo) {
+                listener.onPhotoLoaded(photo);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Returns the photo of the contact linked to a key, downsampled to about targetSize pixels,
+     * from the cache or otherwise from the contact db. This blocks, use
+     * loadPhotoByMasterKeyIdAsync on the UI thread.
+     */
+    public Bitmap getCachedPhotoByMasterKeyId(long masterKeyId, int targetSize) {
+        if (masterKeyId == -1 || !isContactsPermissionGranted()) {
             return null;
         }
-        if (!photoCache.containsKey(masterKeyId)) {
-            photoCache.put(masterKeyId, loadPhotoByMasterKeyId(masterKeyId, false));
+        PhotoEntry entry = getPhotoCacheEntry(masterKeyId, targetSize);
+        if (entry != null) {
+            return entry.mPhoto;
+        }
+
+        Bitmap photo = null;
+        try {
+            long contactId = findContactId(masterKeyId);
+            if (contactId != -1) {
+                Uri contactUri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
+                // falls back to the thumbnail if there is no high resolution photo
+                InputStream photoInputStream = ContactsContract.Contacts.openContactPhotoInputStream(
+                        mContentResolver, contactUri, true);
+                if (photoInputStream != null) {
+                    photo = decodeSampledPhoto(photoInputStream, targetSize);
+                }
+            }
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            // nothing to show, cache that as well
+            Log.w(Constants.TAG, "could not load contact photo", e);
         }
-        return photoCache.get(masterKeyId);
+
+        sPhotoCache.put(masterKeyId, new PhotoEntry(photo, targetSize, SystemClock.elapsedRealtime()));
+        return photo;
     }
 
-    public Bitmap loadPhotoByMasterKeyId(long masterKeyId, boolean highRes) {
-        if (!isContactsPermissionGranted()) {
+    private static PhotoEntry getPhotoCacheEntry(long masterKeyId, int targetSize) {
+        PhotoEntry entry = sPhotoCache.get(masterKeyId);
+        if (entry == null) {
             return null;
         }
-
-        if (masterKeyId == -1) {
+        if (entry.mLoadedAt + PHOTO_CACHE_TTL_MILLIS < SystemClock.elapsedRealtime()) {
+            sPhotoCache.remove(masterKeyId);
+            return null;
+        }
+        // a photo downsampled for a smaller view isn't good enough, a missing one is
+        if (entry.mPhoto != null && entry.mTargetSize < targetSize) {
             return null;
         }
+        return entry;
+    }
+
+    public static void clearPhotoCache() {
+        sPhotoCache.evictAll();
+    }
+
+    /**
+     * Decodes a photo with the largest power of two sample size that keeps both of its
+     * dimensions at least targetSize pixels, so we don't hold more pixels than can be shown.
+     */
+    private static Bitmap decodeSampledPhoto(InputStream photoInputStream, int targetSize)
+            throws IOException {
+        byte[] data;
         try {
-            long contactId = findContactId(masterKeyId);
-            return loadPhotoByContactId(contactId, highRes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = photoInputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            data = out.toByteArray();
+        } finally {
+            photoInputStream.close();
+        }
 
-        } catch (Throwable ignored) {
-            return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= targetSize
+                && options.outHeight / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private static class PhotoEntry {
+        final Bitmap mPhoto;
+        final int mTargetSize;
+        final long mLoadedAt;
+
+        PhotoEntry(Bitmap photo, int targetSize, long loadedAt) {
+            mPhoto = photo;
+            mTargetSize = targetSize;
+            mLoadedAt = loadedAt;
+        }
+    }
+
+    private static class PhotoLruCache extends LruCache<Long, PhotoEntry> {
+        // rough size of an entry without a photo
+        private static final int EMPTY_ENTRY_SIZE = 64;
+
+        PhotoLruCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, PhotoEntry entry) {
+            return entry.mPhoto != null ? entry.mPhoto.getByteCount() : EMPTY_ENTRY_SIZE;
         }
     }
 
@@ -488,11 +621,20 @@ public class ContactHelper {
         return false;
     }
 
+    /**
+     * Brings the raw contacts of all public keys up to date. The state of each raw contact as
+     * last written is stored as a hash in its SYNC1 column, so only keys whose name or email
+     * addresses changed since then are written, all within as few batches as possible.
+     */
     private void writeKeysToNormalContacts() {
         // delete raw contacts flagged for deletion by user so they can be reinserted
         deleteFlaggedNormalRawContacts();
 
-        Set<Long> deletedKeys = getRawContactMasterKeyIds();
+        // all raw contacts that are not removed from this map are deleted below
+        Map<Long, RawContactState> existingContacts = getRawContactStates();
+        Map<Long, List<String>> emailsByMasterKeyId = getEmailsByMasterKeyId();
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
 
         // Load all public Keys from OK
         // TODO: figure out why using selectionArgs does not work in this case
@@ -509,42 +651,47 @@ public class ContactHelper {
                 boolean isRevoked = cursor.getInt(INDEX_IS_REVOKED) > 0;
                 boolean isVerified = cursor.getInt(INDEX_VERIFIED) > 0;
 
-                Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
-
-                deletedKeys.remove(masterKeyId);
-
-                ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+                RawContactState existing = existingContacts.remove(masterKeyId);
 
                 // Do not store expired or revoked or unverified keys in contact db - and
                 // remove them if they already exist. Secret keys do not reach this point
                 if (isExpired || isRevoked || !isVerified) {
-                    Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
-                            + masterKeyId);
-                    if (masterKeyId != -1) {
-                        deleteRawContactByMasterKeyId(masterKeyId);
+                    if (existing != null) {
+                        Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
+                                + masterKeyId);
+                        reserveContactsBatch(ops, 1);
+                        deleteRawContact(ops, existing.mRawContactId);
                     }
                 } else if (userIdSplit.name != null) {
 
-                    // get raw contact to this master key id
-                    long rawContactId = findRawContactId(masterKeyId);
-                    Log.d(Constants.TAG, "rawContactId: " + rawContactId);
+                    List<String> emails = emailsByMasterKeyId.get(masterKeyId);
+                    if (emails == null) {
+                        emails = new ArrayList<>();
+                    }
+                    String syncState = getSyncState(userIdSplit.name, emails);
+                    // an insert or update takes one operation for the raw contact, one each for its
+                    // key or email deletion and display name, and one per email address
+                    int keyOpCount = 3 + emails.size();
 
                     // Create a new rawcontact with corresponding key if it does not exist yet
-                    if (rawContactId == -1) {
+                    if (existing == null) {
                         Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + masterKeyId);
 
-                        insertContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
-                    }
-
-                    // We always update the display name (which is derived from primary user id)
-                    // and email addresses from user id
-                    writeContactDisplayName(ops, rawContactId, userIdSplit.name);
-                    writeContactEmail(ops, rawContactId, masterKeyId);
-                    try {
-                        mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
-                    } catch (Exception e) {
-                        Log.w(Constants.TAG, e);
+                        reserveContactsBatch(ops, keyOpCount);
+                        int backReference = ops.size();
+                        insertContact(ops, masterKeyId, syncState);
+                        writeContactKey(ops, -1, backReference, masterKeyId, userIdSplit.name);
+                        writeContactDisplayName(ops, -1, backReference, userIdSplit.name);
+                        writeContactEmail(ops, -1, backReference, emails);
+                    } else if (!syncState.equals(existing.mSyncState)) {
+                        Log.d(Constants.TAG, "Update raw contact with masterKeyId " + masterKeyId);
+
+                        // the display name is derived from the primary user id, and the email
+                        // addresses from all user ids
+                        reserveContactsBatch(ops, keyOpCount);
+                        updateContactSyncState(ops, existing.mRawContactId, syncState);
+                        writeContactDisplayName(ops, existing.mRawContactId, 0, userIdSplit.name);
+                        writeContactEmail(ops, existing.mRawContactId, 0, emails);
                     }
                 }
             }
@@ -552,10 +699,51 @@ public class ContactHelper {
         }
 
         // Delete master key ids that are no longer present in OK
-        for (Long masterKeyId : deletedKeys) {
-            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + masterKeyId);
-            deleteRawContactByMasterKeyId(masterKeyId);
+        for (Map.Entry<Long, RawContactState> entry : existingContacts.entrySet()) {
+            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + entry.getKey());
+            reserveContactsBatch(ops, 1);
+            deleteRawContact(ops, entry.getValue().mRawContactId);
+        }
+
+        applyContactsBatch(ops);
+    }
+
+    /**
+     * Applies the pending batch first if adding count operations would make it exceed
+     * MAX_BATCH_SIZE. Back references are relative to the batch, so the operations of a single
+     * key are never split across batches.
+     */
+    private void reserveContactsBatch(ArrayList<ContentProviderOperation> ops, int count) {
+        if (ops.size() + count > MAX_BATCH_SIZE) {
+            applyContactsBatch(ops);
+        }
+    }
+
+    /**
+     * Applies and clears a batch of operations on the contact db. If the batch fails, the sync
+     * state of the affected raw contacts stays unchanged, so they are retried on the next sync.
+     */
+    private void applyContactsBatch(ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        } catch (Exception e) {
+            Log.w(Constants.TAG, e);
+        }
+        ops.clear();
+    }
+
+    /**
+     * @return a hash of everything we write to the raw contact of a key
+     */
+    private static String getSyncState(String name, List<String> emails) {
+        StringBuilder state = new StringBuilder(name);
+        for (String email : emails) {
+            state.append('\n').append(email);
         }
+        return Integer.toHexString(state.toString().hashCode());
     }
 
     /**
@@ -592,7 +780,7 @@ public class ContactHelper {
 
                         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
                         insertMainProfileRawContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
+                        writeContactKey(ops, rawContactId, 0, masterKeyId, userIdSplit.name);
 
                         try {
                             mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
@@ -698,23 +886,18 @@ public class ContactHelper {
     }
 
     /**
-     * Deletes raw contacts from ContactsContract.RawContacts based on masterKeyId. Does not
-     * delete contacts from the "me" contact defined in ContactsContract.Profile
-     *
-     * @return number of rows deleted
+     * Deletes a raw contact from ContactsContract.RawContacts. Does not delete contacts from
+     * the "me" contact defined in ContactsContract.Profile
      */
-    private int deleteRawContactByMasterKeyId(long masterKeyId) {
+    private void deleteRawContact(ArrayList<ContentProviderOperation> ops, long rawContactId) {
         // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
         // would be just flagged for deletion
-        Uri deleteUri = ContactsContract.RawContacts.CONTENT_URI.buildUpon().
-                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
-
-        return mContentResolver.delete(deleteUri,
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
-                        ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                });
+        ops.add(ContentProviderOperation.newDelete(getSyncAdapterUri(ContactsContract.RawContacts.CONTENT_URI))
+                .withSelection(ContactsContract.RawContacts._ID + "=?",
+                        new String[]{
+                                Long.toString(rawContactId)
+                        })
+                .build());
     }
 
     private int deleteFlaggedNormalRawContacts() {
@@ -732,24 +915,71 @@ public class ContactHelper {
                 });
     }
 
+    private static class RawContactState {
+        final long mRawContactId;
+        final String mSyncState;
+
+        RawContactState(long rawContactId, String syncState) {
+            mRawContactId = rawContactId;
+            mSyncState = syncState;
+        }
+    }
+
     /**
-     * @return a set of all key master key ids currently present in the contact db
+     * @return the raw contact id and sync state of all raw contacts in the contact db,
+     * by master key id
      */
-    private Set<Long> getRawContactMasterKeyIds() {
-        HashSet<Long> result = new HashSet<>();
-        Cursor masterKeyIds = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+    private Map<Long, RawContactState> getRawContactStates() {
+        HashMap<Long, RawContactState> result = new HashMap<>();
+        Cursor raw = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
                 new String[]{
-                        ContactsContract.RawContacts.SOURCE_ID
+                        ContactsContract.RawContacts.SOURCE_ID,
+                        ContactsContract.RawContacts._ID,
+                        ContactsContract.RawContacts.SYNC1
                 },
                 ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
                 new String[]{
                         Constants.ACCOUNT_TYPE
                 }, null);
-        if (masterKeyIds != null) {
-            while (masterKeyIds.moveToNext()) {
-                result.add(masterKeyIds.getLong(0));
+        if (raw != null) {
+            while (raw.moveToNext()) {
+                long masterKeyId = raw.getLong(0);
+                // if there are several, the others are deleted as if their key was gone
+                if (!result.containsKey(masterKeyId)) {
+                    result.put(masterKeyId, new RawContactState(raw.getLong(1), raw.getString(2)));
+                }
             }
-            masterKeyIds.close();
+            raw.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return the email addresses of all non-revoked user ids, by master key id
+     */
+    private Map<Long, List<String>> getEmailsByMasterKeyId() {
+        HashMap<Long, List<String>> result = new HashMap<>();
+        Cursor ids = mContentResolver.query(UserPackets.buildUserIdsUri(),
+                new String[]{
+                        UserPackets.MASTER_KEY_ID,
+                        UserPackets.USER_ID
+                },
+                UserPackets.IS_REVOKED + "=0",
+                null, null);
+        if (ids != null) {
+            while (ids.moveToNext()) {
+                OpenPgpUtils.UserId userId = KeyRing.splitUserId(ids.getString(1));
+                if (userId.email != null) {
+                    long masterKeyId = ids.getLong(0);
+                    List<String> emails = result.get(masterKeyId);
+                    if (emails == null) {
+                        emails = new ArrayList<>();
+                        result.put(masterKeyId, emails);
+                    }
+                    emails.add(userId.email);
+                }
+            }
+            ids.close();
         }
         return result;
     }
@@ -776,38 +1006,26 @@ public class ContactHelper {
         return result;
     }
 
-    /**
-     * This will search the contact db for a raw contact with a given master key id
-     *
-     * @return raw contact id or -1 if not found
-     */
-    private long findRawContactId(long masterKeyId) {
-        long rawContactId = -1;
-        Cursor raw = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
-                new String[]{
-                        ContactsContract.RawContacts._ID
-                },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " + ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                }, null);
-        if (raw != null) {
-            if (raw.moveToNext()) {
-                rawContactId = raw.getLong(0);
-            }
-            raw.close();
-        }
-        return rawContactId;
-    }
-
     /**
      * Creates a empty raw contact with a given masterKeyId
      */
-    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId) {
-        ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
+    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId, String syncState) {
+        ops.add(ContentProviderOperation.newInsert(getSyncAdapterUri(ContactsContract.RawContacts.CONTENT_URI))
                 .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.ACCOUNT_NAME)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE)
                 .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId))
+                .withValue(ContactsContract.RawContacts.SYNC1, syncState)
+                .build());
+    }
+
+    private void updateContactSyncState(ArrayList<ContentProviderOperation> ops, long rawContactId,
+                                        String syncState) {
+        ops.add(ContentProviderOperation.newUpdate(getSyncAdapterUri(ContactsContract.RawContacts.CONTENT_URI))
+                .withSelection(ContactsContract.RawContacts._ID + "=?",
+                        new String[]{
+                                Long.toString(rawContactId)
+                        })
+                .withValue(ContactsContract.RawContacts.SYNC1, syncState)
                 .build());
     }
 
@@ -817,8 +1035,9 @@ public class ContactHelper {
      * This creates the link to OK in contact details
      */
     private void writeContactKey(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                 long masterKeyId, String keyName) {
-        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI), rawContactId)
+                                 int backReference, long masterKeyId, String keyName) {
+        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                rawContactId, backReference)
                 .withValue(ContactsContract.Data.MIMETYPE, Constants.CUSTOM_CONTACT_DATA_MIME_TYPE)
                 .withValue(ContactsContract.Data.DATA1, mContext.getString(R.string.contact_show_key, keyName))
                 .withValue(ContactsContract.Data.DATA2, masterKeyId)
@@ -826,63 +1045,61 @@ public class ContactHelper {
     }
 
     /**
-     * Write all known email addresses of a key (derived from user ids) to a given raw contact
+     * Write the given email addresses of a key (derived from user ids) to a given raw contact
      */
     private void writeContactEmail(ArrayList<ContentProviderOperation> ops,
-                                   long rawContactId, long masterKeyId) {
-        ops.add(selectByRawContactAndItemType(
-                ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
-                rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
-        Cursor ids = mContentResolver.query(UserPackets.buildUserIdsUri(masterKeyId),
-                new String[]{
-                        UserPackets.USER_ID
-                },
-                UserPackets.IS_REVOKED + "=0",
-                null, null);
-        if (ids != null) {
-            while (ids.moveToNext()) {
-                OpenPgpUtils.UserId userId = KeyRing.splitUserId(ids.getString(0));
-                if (userId.email != null) {
-                    ops.add(referenceRawContact(
-                            ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
-                            rawContactId)
-                            .withValue(ContactsContract.Data.MIMETYPE,
-                                    ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
-                            .withValue(ContactsContract.CommonDataKinds.Email.DATA, userId.email)
-                            .build());
-                }
-            }
-            ids.close();
+                                   long rawContactId, int backReference, List<String> emails) {
+        if (rawContactId != -1) {
+            ops.add(selectByRawContactAndItemType(
+                    ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
+                    rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
+        }
+        for (String email : emails) {
+            ops.add(referenceRawContact(
+                    ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                    rawContactId, backReference)
+                    .withValue(ContactsContract.Data.MIMETYPE,
+                            ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
+                    .withValue(ContactsContract.CommonDataKinds.Email.DATA, email)
+                    .build());
         }
     }
 
     private void writeContactDisplayName(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                         String displayName) {
+                                         int backReference, String displayName) {
         if (displayName != null) {
             ops.add(insertOrUpdateForRawContact(ContactsContract.Data.CONTENT_URI, rawContactId,
-                    ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+                    backReference, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
                     .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName)
                     .build());
         }
     }
 
+    /**
+     * References the given raw contact, or if it is -1, the one inserted by the operation at
+     * index backReference of the same batch.
+     */
     private ContentProviderOperation.Builder referenceRawContact(ContentProviderOperation.Builder builder,
-                                                                 long rawContactId) {
+                                                                 long rawContactId, int backReference) {
         return rawContactId == -1 ?
-                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0) :
+                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, backReference) :
                 builder.withValue(ContactsContract.Data.RAW_CONTACT_ID, rawContactId);
     }
 
     private ContentProviderOperation.Builder insertOrUpdateForRawContact(Uri uri, long rawContactId,
-                                                                         String itemType) {
+                                                                         int backReference, String itemType) {
         if (rawContactId == -1) {
-            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId).withValue(
-                    ContactsContract.Data.MIMETYPE, itemType);
+            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId, backReference)
+                    .withValue(ContactsContract.Data.MIMETYPE, itemType);
         } else {
             return selectByRawContactAndItemType(ContentProviderOperation.newUpdate(uri), rawContactId, itemType);
         }
     }
 
+    private static Uri getSyncAdapterUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+    }
+
     private ContentProviderOperation.Builder selectByRawContactAndItemType(
             ContentProviderOperation.Builder builder, long rawContactId, String itemType) {
         return builder.withSelection(
@@ -20,35 +20,73 @@ package org.sufficientlysecure.keychain.util;
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLSocketFactory;
+
 import okhttp3.CertificatePinner;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 
+/**
+ * Hands out OkHttpClients for the different proxy and pinning configurations.
+ *
+ * All clients are derived from a single root client via newBuilder(), so they share its
+ * connection pool and dispatcher. Clients are cached per configuration, which allows
+ * connections (and TLS sessions of pinned hosts) to be reused across requests, e.g. during
+ * a keyserver sync of many keys over Tor.
+ */
 public class OkHttpClientFactory {
-    private static OkHttpClient client;
+    private static OkHttpClient sRootClient;
+    private static final HashMap<List<Object>, OkHttpClient> sClients = new HashMap<>();
 
-    public static OkHttpClient getSimpleClient() {
-        if (client == null) {
-            client = new OkHttpClient.Builder()
+    private static synchronized OkHttpClient getRootClient() {
+        if (sRootClient == null) {
+            sRootClient = new OkHttpClient.Builder()
                     .connectTimeout(5000, TimeUnit.MILLISECONDS)
                     .readTimeout(25000, TimeUnit.MILLISECONDS)
                     .build();
         }
-        return client;
+        return sRootClient;
     }
 
-    public static OkHttpClient getSimpleClientPinned(CertificatePinner pinner) {
-        return new OkHttpClient.Builder()
-                .connectTimeout(5000, TimeUnit.MILLISECONDS)
-                .readTimeout(25000, TimeUnit.MILLISECONDS)
-                .certificatePinner(pinner)
-                .build();
+    public static OkHttpClient getSimpleClient() {
+        return getRootClient();
     }
 
-    public static OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy) throws IOException,
-            TlsHelper.TlsHelperException {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+    public static synchronized OkHttpClient getSimpleClientPinned(String hostname, String[] pins) {
+        List<Object> key = Arrays.<Object>asList(hostname, Arrays.asList(pins));
+        OkHttpClient client = sClients.get(key);
+        if (client == null) {
+            CertificatePinner.Builder pinner = new CertificatePinner.Builder();
+            for (String pin : pins) {
+                pinner.add(hostname, pin);
+            }
+            client = getRootClient().newBuilder()
+                    .certificatePinner(pinner.build())
+                    .build();
+            sClients.put(key, client);
+        }
+        return client;
+    }
+
+    public static synchronized OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy)
+            throws IOException, TlsHelper.TlsHelperException {
+        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
+        SSLSocketFactory pinnedSocketFactory =
+                url != null ? TlsHelper.getPinnedSslSocketFactory(url) : null;
+
+        // pinned socket factories are cached per host by TlsHelper, so they can be used as key
+        List<Object> key = Arrays.<Object>asList(proxy, pinnedSocketFactory);
+        OkHttpClient client = sClients.get(key);
+        if (client != null) {
+            return client;
+        }
+
+        OkHttpClient.Builder builder = getRootClient().newBuilder();
 
         // don't follow any redirects for keyservers, as discussed in the security audit
         builder.followRedirects(false)
@@ -59,18 +97,26 @@ public class OkHttpClientFactory {
             builder.proxy(proxy);
             builder.connectTimeout(30000, TimeUnit.MILLISECONDS)
                     .readTimeout(45000, TimeUnit.MILLISECONDS);
-        } else {
-            builder.connectTimeout(5000, TimeUnit.MILLISECONDS)
-                    .readTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
         // If a pinned cert is available, use it!
-        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
-        if (url != null && TlsHelper.getPinnedSslSocketFactory(url) != null) {
-            builder.sslSocketFactory(TlsHelper.getPinnedSslSocketFactory(url));
+        if (pinnedSocketFactory != null) {
+            builder.sslSocketFactory(pinnedSocketFactory);
         }
 
-        return builder.build();
+        client = builder.build();
+        sClients.put(key, client);
+        return client;
+    }
+
+    /** Returns the connection pool shared by all clients, e.g. to check its connection counts. */
+    public static ConnectionPool getConnectionPool() {
+        return getRootClient().connectionPool();
+    }
+
+    /** Returns the number of distinct client configurations handed out so far. */
+    public static synchronized int getClientCount() {
+        return sClients.size();
     }
 
 }
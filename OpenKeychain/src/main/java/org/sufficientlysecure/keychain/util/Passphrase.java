@@ -50,6 +50,8 @@ import java.util.Map.Entry;
 public class Passphrase implements Parcelable {
     private char[] mPassphrase;
     private HashMap<ComparableS2K, byte[]> mCachedSessionKeys;
+    // true if session keys were added since this object was created or unparcelled
+    private boolean mHasNewSessionKeys;
 
     /**
      * According to http://stackoverflow.com/a/15844273 EditText is not using String internally
@@ -117,6 +119,32 @@ public class Passphrase implements Parcelable {
             mCachedSessionKeys = new HashMap<>();
         }
         mCachedSessionKeys.put(new ComparableS2K(keyEncryptionAlgorithm, s2k), sessionKey);
+        mHasNewSessionKeys = true;
+    }
+
+    /** @return true if session keys were added to this object which the passphrase cache may
+     * not know about yet, since it was obtained or unparcelled.
+     */
+    public boolean hasNewSessionKeys() {
+        return mHasNewSessionKeys;
+    }
+
+    /** Copies all cached session keys from another Passphrase object which are not cached in
+     * this one yet. Nothing is copied if the other object holds a different passphrase, since
+     * its session keys would not be valid for this one.
+     */
+    public void addCachedSessionKeys(Passphrase other) {
+        if (other.mCachedSessionKeys == null || !equals(other)) {
+            return;
+        }
+        if (mCachedSessionKeys == null) {
+            mCachedSessionKeys = new HashMap<>();
+        }
+        for (Entry<ComparableS2K,byte[]> entry : other.mCachedSessionKeys.entrySet()) {
+            if (!mCachedSessionKeys.containsKey(entry.getKey())) {
+                mCachedSessionKeys.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
     }
 
     /**
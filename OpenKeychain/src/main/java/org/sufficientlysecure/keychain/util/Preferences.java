@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Constants.Pref;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.util.orbot.OrbotStatusReceiver;
 
@@ -107,6 +108,10 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SUBS, false);
     }
 
+    public boolean getPassphraseCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, false);
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -131,6 +136,15 @@ public class Preferences {
         editor.commit();
     }
 
+    /** @return the maximum size of a key downloaded from a keyserver, in bytes */
+    public long getKeyserverMaxKeySize() {
+        String megabytes = mSharedPreferences.getString(Pref.KEYSERVER_MAX_KEY_SIZE, null);
+        if (megabytes == null) {
+            return HkpKeyserver.DEFAULT_MAX_KEY_SIZE;
+        }
+        return Long.parseLong(megabytes) * 1024 * 1024;
+    }
+
     public String[] getKeyServers() {
         String rawData = mSharedPreferences.getString(Constants.Pref.KEY_SERVERS,
                 Constants.Defaults.KEY_SERVERS);
@@ -466,6 +480,43 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.EXPERIMENTAL_ENABLE_KEYBASE, false);
     }
 
+    public boolean getExperimentalPregenerateKeys() {
+        return mSharedPreferences.getBoolean(Pref.EXPERIMENTAL_PREGENERATE_KEYS, false);
+    }
+
+    public void setExperimentalPregenerateKeys(boolean pregenerateKeys) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.EXPERIMENTAL_PREGENERATE_KEYS, pregenerateKeys);
+        editor.commit();
+    }
+
+    /** @return the time in milliseconds unlocking a key with its passphrase should take on this device */
+    public int getS2kUnlockBudgetMillis() {
+        return mSharedPreferences.getInt(Pref.S2K_UNLOCK_BUDGET, Constants.Defaults.S2K_UNLOCK_BUDGET_MILLIS);
+    }
+
+    public void setS2kUnlockBudgetMillis(int budgetMillis) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.S2K_UNLOCK_BUDGET, budgetMillis);
+        editor.commit();
+    }
+
+    /** @return the S2K hash rate in bytes per millisecond measured by the given app version on
+     * this device, or 0 if it hasn't been calibrated by that version yet */
+    public long getS2kHashRate(int appVersion) {
+        if (mSharedPreferences.getInt(Pref.S2K_CALIBRATION_VERSION, 0) != appVersion) {
+            return 0;
+        }
+        return mSharedPreferences.getLong(Pref.S2K_CALIBRATION_HASH_RATE, 0);
+    }
+
+    public void setS2kHashRate(int appVersion, long bytesPerMilli) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.S2K_CALIBRATION_VERSION, appVersion);
+        editor.putLong(Pref.S2K_CALIBRATION_HASH_RATE, bytesPerMilli);
+        editor.commit();
+    }
+
     public void upgradePreferences(Context context) {
         if (mSharedPreferences.getInt(Constants.Pref.PREF_DEFAULT_VERSION, 0) !=
                 Constants.Defaults.PREF_VERSION) {
@@ -43,6 +43,8 @@ import javax.net.ssl.TrustManagerFactory;
 public class TlsHelper {
 
     private static Map<String, byte[]> sPinnedCertificates = new HashMap<>();
+    // socket factories are kept, so their SSLContext can resume TLS sessions
+    private static Map<String, SSLSocketFactory> sPinnedSslSocketFactories = new HashMap<>();
 
     /**
      * Add certificate from assets to pinned certificate map.
@@ -61,6 +63,7 @@ public class TlsHelper {
             is.close();
 
             sPinnedCertificates.put(host, baos.toByteArray());
+            sPinnedSslSocketFactories.remove(host);
         } catch (IOException e) {
             Log.w(Constants.TAG, e);
         }
@@ -73,12 +76,18 @@ public class TlsHelper {
      * @throws TlsHelperException
      * @throws IOException
      */
-    public static SSLSocketFactory getPinnedSslSocketFactory(URL url) throws TlsHelperException, IOException {
+    public static synchronized SSLSocketFactory getPinnedSslSocketFactory(URL url)
+            throws TlsHelperException, IOException {
         if (url.getProtocol().equals("https")) {
             // use certificate PIN from assets if we have one
             for (String host : sPinnedCertificates.keySet()) {
                 if (url.getHost().endsWith(host)) {
-                    return pinCertificate(sPinnedCertificates.get(host));
+                    SSLSocketFactory factory = sPinnedSslSocketFactories.get(host);
+                    if (factory == null) {
+                        factory = pinCertificate(sPinnedCertificates.get(host));
+                        sPinnedSslSocketFactories.put(host, factory);
+                    }
+                    return factory;
                 }
             }
         }
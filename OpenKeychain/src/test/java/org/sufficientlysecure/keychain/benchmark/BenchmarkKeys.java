@@ -0,0 +1,94 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.Iterator;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.util.Strings;
+import org.junit.Assert;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.WrappedSignature;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/** Test keys for the benchmarks. */
+public class BenchmarkKeys {
+
+    /** @return a new secret key ring with certification, signing and encryption subkeys */
+    public static UncachedKeyRing createKey(String userId, Algorithm algorithm, Integer keySize,
+            Curve curve, Passphrase passphrase) {
+
+        Algorithm encryptAlgorithm = algorithm == Algorithm.ECDSA ? Algorithm.ECDH : algorithm;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                algorithm, keySize, curve, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                algorithm, keySize, curve, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                encryptAlgorithm, keySize, curve, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.setNewUnlock(new ChangeUnlockParcel(passphrase));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    /** Returns a copy of a public key ring, with its first user id flooded with certifications.
+     *
+     * This resembles the certificate flooding seen on public keyservers. All certifications are
+     * made by the same key, but each is a distinct valid signature.
+     */
+    public static UncachedKeyRing floodKey(UncachedKeyRing publicRing, UncachedKeyRing certifierRing,
+            Passphrase certifierPassphrase, int certifications) throws Exception {
+
+        CanonicalizedPublicKeyRing canonicalizedRing = new CanonicalizedPublicKeyRing(
+                publicRing.getEncoded(), 0);
+        String userId = canonicalizedRing.getPrimaryUserIdWithFallback();
+
+        CanonicalizedSecretKey certifyKey = new CanonicalizedSecretKeyRing(
+                certifierRing.getEncoded(), false, 0).getSecretKey();
+        Assert.assertTrue("certifier key must unlock", certifyKey.unlock(certifierPassphrase));
+
+        PgpCertifyOperation op = new PgpCertifyOperation();
+        ByteArrayOutputStream certs = new ByteArrayOutputStream();
+        for (int i = 0; i < certifications; i++) {
+            CertifyAction action = new CertifyAction(publicRing.getMasterKeyId(),
+                    canonicalizedRing.getPublicKey().getUnorderedUserIds(), null);
+            // vary the creation time, so the certifications don't supersede each other
+            Date creationTime = new Date(System.currentTimeMillis() - i * 1000L);
+            PgpCertifyResult result = op.certify(
+                    certifyKey, canonicalizedRing, new OperationLog(), 0, action, null, creationTime);
+            Assert.assertTrue("certification must succeed", result.success());
+
+            Iterator<WrappedSignature> it = result.getCertifiedRing().getPublicKey()
+                    .getSignaturesForRawId(Strings.toUTF8ByteArray(userId));
+            while (it.hasNext()) {
+                WrappedSignature sig = it.next();
+                if (sig.getKeyId() == certifierRing.getMasterKeyId()) {
+                    certs.write(sig.getEncoded());
+                }
+            }
+        }
+
+        // the packets of a key ring start with the master key and its primary user id
+        return KeyringTestingHelper.injectPacket(publicRing, certs.toByteArray(), 2);
+    }
+
+}
@@ -0,0 +1,159 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+
+/** A small harness for benchmarks which run on the host, as part of the Robolectric unit tests.
+ *
+ * Benchmarks are skipped unless the tests are run with -Pbenchmark, e.g.
+ * "./gradlew testFdroidDebugUnitTest -Pbenchmark --tests '*Benchmark'". They take a while,
+ * and their numbers are meaningless on a loaded CI machine.
+ *
+ * Each task is run for a few warmup iterations and then timed for a number of measurement
+ * iterations. The results of all benchmarks of a class are written as JSON to
+ * build/reports/benchmarks/[class].json, in a format loosely following that of JMH, so they can
+ * be compared between releases.
+ */
+public class HostBenchmark {
+
+    public static final String PROPERTY_ENABLED = "keychain.benchmark";
+    public static final String PROPERTY_REPORT_DIR = "keychain.benchmark.dir";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+
+    /** A single benchmarked operation. setUp() is called before each run, but not timed. */
+    public static abstract class Task {
+        public void setUp() throws Exception {
+        }
+
+        /** @return the result of the operation, which is consumed so it can't be optimized away */
+        public abstract Object run() throws Exception;
+    }
+
+    public static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks are skipped, run with -Pbenchmark",
+                Boolean.getBoolean(PROPERTY_ENABLED));
+    }
+
+    /** @return a map of benchmark parameters, from alternating names and values */
+    public static Map<String, Object> params(Object... namesAndValues) {
+        LinkedHashMap<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            params.put(String.valueOf(namesAndValues[i]), namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    private final Class<?> mBenchmarkClass;
+    private final JSONArray mResults = new JSONArray();
+    private int mSink;
+
+    public HostBenchmark(Class<?> benchmarkClass) {
+        mBenchmarkClass = benchmarkClass;
+    }
+
+    /** Runs a task and records its timings.
+     *
+     * @param bytesPerOp the amount of data processed per run, to report throughput, or 0
+     */
+    public void run(String name, Map<String, Object> params, long bytesPerOp, Task task)
+            throws Exception {
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.setUp();
+            consume(task.run());
+        }
+
+        long[] nanos = new long[MEASUREMENT_ITERATIONS];
+        long totalNanos = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            task.setUp();
+            long startNanos = System.nanoTime();
+            Object result = task.run();
+            nanos[i] = System.nanoTime() - startNanos;
+            totalNanos += nanos[i];
+            consume(result);
+        }
+
+        double[] rawData = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            rawData[i] = toMillis(nanos[i]);
+        }
+        Arrays.sort(nanos);
+
+        double meanMillis = toMillis(totalNanos / MEASUREMENT_ITERATIONS);
+        JSONObject metric = new JSONObject();
+        metric.put("score", meanMillis);
+        metric.put("scoreUnit", "ms/op");
+        metric.put("p50", toMillis(nanos[(MEASUREMENT_ITERATIONS - 1) / 2]));
+        metric.put("p95", toMillis(nanos[(int) Math.ceil(MEASUREMENT_ITERATIONS * 0.95) - 1]));
+        metric.put("max", toMillis(nanos[MEASUREMENT_ITERATIONS - 1]));
+        metric.put("rawData", new JSONArray(Arrays.toString(rawData)));
+
+        JSONObject jsonParams = new JSONObject();
+        StringBuilder paramString = new StringBuilder();
+        for (Entry<String, Object> param : params.entrySet()) {
+            jsonParams.put(param.getKey(), String.valueOf(param.getValue()));
+            paramString.append(' ').append(param.getKey()).append('=').append(param.getValue());
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("benchmark", mBenchmarkClass.getName() + "." + name);
+        result.put("mode", "avgt");
+        result.put("warmupIterations", WARMUP_ITERATIONS);
+        result.put("measurementIterations", MEASUREMENT_ITERATIONS);
+        result.put("params", jsonParams);
+        result.put("primaryMetric", metric);
+        if (bytesPerOp > 0) {
+            result.put("throughputMBps", bytesPerOp / 1024.0 / 1024.0 / (meanMillis / 1000.0));
+        }
+        mResults.put(result);
+
+        System.out.println(String.format("%s.%s%s: %.3f ms/op",
+                mBenchmarkClass.getSimpleName(), name, paramString, meanMillis));
+    }
+
+    /** Writes the results recorded so far to the report directory, if there are any. */
+    public void writeResults() throws IOException, JSONException {
+        if (mResults.length() == 0) {
+            return;
+        }
+
+        File reportDir = new File(System.getProperty(PROPERTY_REPORT_DIR, "build/reports/benchmarks"));
+        if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+            throw new IOException("could not create benchmark report dir " + reportDir);
+        }
+
+        File reportFile = new File(reportDir, mBenchmarkClass.getSimpleName() + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+        try {
+            writer.write(mResults.toString(2));
+        } finally {
+            writer.close();
+        }
+        System.out.println("benchmark results written to " + reportFile);
+    }
+
+    private void consume(Object result) {
+        mSink ^= System.identityHashCode(result);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.benchmark.HostBenchmark.Task;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/** Benchmarks a round trip of key rings through a ParcelableFileCache, as done when importing. */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ParcelableFileCacheBenchmark {
+
+    static final int[] ENTRY_COUNTS = { 10, 1000 };
+
+    static HostBenchmark sBenchmark;
+    static byte[] sKeyRingBytes;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        HostBenchmark.assumeEnabled();
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sBenchmark = new HostBenchmark(ParcelableFileCacheBenchmark.class);
+        sKeyRingBytes = BenchmarkKeys.createKey("cache", Algorithm.ECDSA, 0, Curve.NIST_P256, new Passphrase())
+                .extractPublicKeyRing().getEncoded();
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (sBenchmark != null) {
+            sBenchmark.writeResults();
+        }
+    }
+
+    @Test
+    public void benchmarkRoundTrip() throws Exception {
+        for (final int count : ENTRY_COUNTS) {
+            final ArrayList<ParcelableKeyRing> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new ParcelableKeyRing(sKeyRingBytes));
+            }
+
+            sBenchmark.run("roundTrip", HostBenchmark.params("entries", count),
+                    (long) count * sKeyRingBytes.length, new Task() {
+                @Override
+                public Object run() throws Exception {
+                    ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(
+                            RuntimeEnvironment.application, "benchmark.pcl");
+                    cache.writeCache(count, entries.iterator());
+
+                    IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
+                    int read = 0;
+                    while (it.hasNext()) {
+                        it.next();
+                        read += 1;
+                    }
+                    Assert.assertEquals("all entries must be read back", count, read);
+                    return it;
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.benchmark.HostBenchmark.Task;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+/** Benchmarks PgpSignEncryptOperation and PgpDecryptVerifyOperation, for symmetric encryption
+ * and for signing and encrypting with ECC and RSA keys, each with and without compression and
+ * ascii armor, for small and large inputs.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class PgpSignEncryptBenchmark {
+
+    static final int[] SIZES = { 1024, 1024 * 1024 };
+    static final int[] SYMMETRIC_ALGORITHMS = {
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_128,
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_256,
+            OpenKeychainSymmetricKeyAlgorithmTags.TWOFISH,
+    };
+    static final int[] COMPRESSION_ALGORITHMS = {
+            CompressionAlgorithmTags.UNCOMPRESSED,
+            CompressionAlgorithmTags.ZIP,
+            CompressionAlgorithmTags.ZLIB,
+    };
+
+    static HostBenchmark sBenchmark;
+    static Passphrase sPassphrase = TestingUtils.genPassphrase(true);
+    static UncachedKeyRing sEccRing, sRsaRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        HostBenchmark.assumeEnabled();
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sBenchmark = new HostBenchmark(PgpSignEncryptBenchmark.class);
+        sEccRing = BenchmarkKeys.createKey("ecc", Algorithm.ECDSA, 0, Curve.NIST_P256, sPassphrase);
+        sRsaRing = BenchmarkKeys.createKey("rsa", Algorithm.RSA, 2048, null, sPassphrase);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (sBenchmark != null) {
+            sBenchmark.writeResults();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.saveSecretKeyRing(sEccRing, new ProgressScaler());
+        providerHelper.saveSecretKeyRing(sRsaRing, new ProgressScaler());
+    }
+
+    @Test
+    public void benchmarkSymmetric() throws Exception {
+        for (int algorithm : SYMMETRIC_ALGORITHMS) {
+            PgpSignEncryptData data = new PgpSignEncryptData();
+            data.setSymmetricPassphrase(sPassphrase);
+            data.setSymmetricEncryptionAlgorithm(algorithm);
+            benchmarkVariants("symmetric", Integer.toString(algorithm), data);
+        }
+    }
+
+    @Test
+    public void benchmarkEcc() throws Exception {
+        benchmarkVariants("asymmetric", "ECC_P256", getKeyData(sEccRing));
+    }
+
+    @Test
+    public void benchmarkRsa() throws Exception {
+        benchmarkVariants("asymmetric", "RSA_2048", getKeyData(sRsaRing));
+    }
+
+    private static PgpSignEncryptData getKeyData(UncachedKeyRing ring) {
+        PgpSignEncryptData data = new PgpSignEncryptData();
+        data.setEncryptionMasterKeyIds(new long[] { ring.getMasterKeyId() });
+        data.setSignatureMasterKeyId(ring.getMasterKeyId());
+        data.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+        return data;
+    }
+
+    private void benchmarkVariants(String mode, String algorithm, final PgpSignEncryptData data)
+            throws Exception {
+        for (int compression : COMPRESSION_ALGORITHMS) {
+            for (boolean armor : new boolean[] { false, true }) {
+                for (int size : SIZES) {
+                    data.setCompressionAlgorithm(compression);
+                    data.setEnableAsciiArmorOutput(armor);
+                    Map<String, Object> params = HostBenchmark.params("algorithm", algorithm,
+                            "compression", compression, "armor", armor, "size", size);
+
+                    final byte[] plaintext = new byte[size];
+                    new Random(size).nextBytes(plaintext);
+
+                    sBenchmark.run(mode + "Encrypt", params, size, new Task() {
+                        @Override
+                        public Object run() throws Exception {
+                            return encrypt(data, plaintext);
+                        }
+                    });
+
+                    final byte[] ciphertext = encrypt(data, plaintext);
+                    sBenchmark.run(mode + "Decrypt", params, size, new Task() {
+                        @Override
+                        public Object run() throws Exception {
+                            return decrypt(ciphertext);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private static byte[] encrypt(PgpSignEncryptData data, byte[] plaintext) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(data),
+                new CryptoInputParcel(new Date(), sPassphrase), new InputData(in, plaintext.length), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] ciphertext) {
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+        input.setAllowSymmetricDecryption(true);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(sPassphrase),
+                new InputData(in, ciphertext.length), out);
+        Assert.assertTrue("decryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.benchmark.HostBenchmark.Task;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/** Benchmarks ProviderHelper.savePublicKeyRing() against the Robolectric SQLite database, for a
+ * new key and for an update of a key which is already in the database.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ProviderHelperBenchmark {
+
+    static final int FLOOD_CERTIFICATIONS = 1000;
+
+    static HostBenchmark sBenchmark;
+    static UncachedKeyRing sSmallRing, sFloodedRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        HostBenchmark.assumeEnabled();
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sBenchmark = new HostBenchmark(ProviderHelperBenchmark.class);
+
+        Passphrase passphrase = new Passphrase();
+        sSmallRing = BenchmarkKeys.createKey("small", Algorithm.ECDSA, 0, Curve.NIST_P256, passphrase)
+                .extractPublicKeyRing();
+        UncachedKeyRing certifierRing =
+                BenchmarkKeys.createKey("certifier", Algorithm.ECDSA, 0, Curve.NIST_P256, passphrase);
+        sFloodedRing = BenchmarkKeys.floodKey(sSmallRing, certifierRing, passphrase, FLOOD_CERTIFICATIONS);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (sBenchmark != null) {
+            sBenchmark.writeResults();
+        }
+    }
+
+    @Test
+    public void benchmarkSaveNew() throws Exception {
+        benchmarkSave("small", sSmallRing, null);
+        benchmarkSave("flooded", sFloodedRing, null);
+    }
+
+    @Test
+    public void benchmarkSaveUpdate() throws Exception {
+        benchmarkSave("small", sSmallRing, sSmallRing);
+        benchmarkSave("flooded", sFloodedRing, sSmallRing);
+    }
+
+    /** @param existingRing the key ring in the database before each save, or null for none */
+    private void benchmarkSave(String key, final UncachedKeyRing ring, final UncachedKeyRing existingRing)
+            throws Exception {
+        final ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        String name = existingRing == null ? "savePublicKeyRingNew" : "savePublicKeyRingUpdate";
+        sBenchmark.run(name, HostBenchmark.params("key", key), 0, new Task() {
+            @Override
+            public void setUp() throws Exception {
+                providerHelper.getContentResolver().delete(
+                        KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()), null, null);
+                providerHelper.invalidateCachedKeyRing(ring.getMasterKeyId());
+                if (existingRing != null) {
+                    Assert.assertTrue("saving existing key ring must succeed",
+                            providerHelper.savePublicKeyRing(existingRing).success());
+                }
+            }
+
+            @Override
+            public Object run() throws Exception {
+                SaveKeyringResult result = providerHelper.savePublicKeyRing(ring);
+                Assert.assertTrue("saving key ring must succeed", result.success());
+                return result;
+            }
+        });
+    }
+
+}
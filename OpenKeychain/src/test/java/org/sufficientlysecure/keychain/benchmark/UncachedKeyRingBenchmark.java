@@ -0,0 +1,87 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.benchmark.HostBenchmark.Task;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/** Benchmarks UncachedKeyRing.canonicalize() and merge(), for a small key and for a key
+ * flooded with certifications.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class UncachedKeyRingBenchmark {
+
+    static final int FLOOD_CERTIFICATIONS = 1000;
+
+    static HostBenchmark sBenchmark;
+    static UncachedKeyRing sSmallRing, sFloodedRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        HostBenchmark.assumeEnabled();
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sBenchmark = new HostBenchmark(UncachedKeyRingBenchmark.class);
+
+        Passphrase passphrase = new Passphrase();
+        sSmallRing = BenchmarkKeys.createKey("small", Algorithm.ECDSA, 0, Curve.NIST_P256, passphrase)
+                .extractPublicKeyRing();
+        UncachedKeyRing certifierRing =
+                BenchmarkKeys.createKey("certifier", Algorithm.ECDSA, 0, Curve.NIST_P256, passphrase);
+        sFloodedRing = BenchmarkKeys.floodKey(sSmallRing, certifierRing, passphrase, FLOOD_CERTIFICATIONS);
+    }
+
+    @AfterClass
+    public static void tearDownOnce() throws Exception {
+        if (sBenchmark != null) {
+            sBenchmark.writeResults();
+        }
+    }
+
+    @Test
+    public void benchmarkCanonicalize() throws Exception {
+        benchmarkCanonicalize("small", sSmallRing);
+        benchmarkCanonicalize("flooded", sFloodedRing);
+    }
+
+    @Test
+    public void benchmarkMerge() throws Exception {
+        benchmarkMerge("small", sSmallRing, sSmallRing);
+        benchmarkMerge("smallWithFlooded", sSmallRing, sFloodedRing);
+        benchmarkMerge("flooded", sFloodedRing, sFloodedRing);
+    }
+
+    private void benchmarkCanonicalize(String key, final UncachedKeyRing ring) throws Exception {
+        sBenchmark.run("canonicalize", HostBenchmark.params("key", key), 0, new Task() {
+            @Override
+            public Object run() throws Exception {
+                return ring.canonicalize(new OperationLog(), 0);
+            }
+        });
+    }
+
+    private void benchmarkMerge(String key, final UncachedKeyRing base, final UncachedKeyRing other)
+            throws Exception {
+        sBenchmark.run("merge", HostBenchmark.params("key", key), 0, new Task() {
+            @Override
+            public Object run() throws Exception {
+                return base.merge(other, new OperationLog(), 0);
+            }
+        });
+    }
+
+}
@@ -22,8 +22,11 @@ import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.Random;
 
+import android.database.Cursor;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -36,6 +39,7 @@ import org.robolectric.shadows.ShadowLog;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
@@ -44,13 +48,19 @@ import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.KeyType;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.Suite;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.BenchmarkHistory;
+import org.sufficientlysecure.keychain.util.BenchmarkHistory.Run;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
@@ -74,7 +84,71 @@ public class BenchmarkOperationTest {
         BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application,
                 new ProviderHelper(RuntimeEnvironment.application), null);
 
-        op.execute(new BenchmarkInputParcel(), null);
+        BenchmarkInputParcel input = new BenchmarkInputParcel()
+                .setKeyTypes(EnumSet.of(KeyType.ECC_P256))
+                .setDataSize(16 * 1024)
+                .setRepeats(2)
+                .setImportKeyCount(2);
+
+        BenchmarkResult result = op.execute(input, null);
+        Assert.assertTrue("benchmark must succeed", result.success());
+
+        ArrayList<Run> runs = new BenchmarkHistory(RuntimeEnvironment.application).getRuns();
+        Assert.assertEquals("benchmark run must be stored in history", 1, runs.size());
+        Assert.assertNotNull("key import must be measured", runs.get(0).getMeasurement("key import"));
+        Assert.assertNotNull("asymmetric decryption must be measured",
+                runs.get(0).getMeasurement("ECC_P256 decrypt"));
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), null, null, null, null);
+        Assert.assertNotNull("key list query must succeed", cursor);
+        try {
+            Assert.assertEquals("benchmark keys must be removed afterwards", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testLeftoverBenchmarkKeysAreRemoved() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, null, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(BenchmarkOperation.BENCHMARK_USER_ID);
+        parcel.setNewUnlock(new ChangeUnlockParcel(new Passphrase()));
+        PgpEditKeyResult createResult = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("key creation must succeed", createResult.success());
+        Assert.assertTrue("saving leftover key must succeed",
+                providerHelper.saveSecretKeyRing(createResult.getRing(), new ProgressScaler()).success());
+
+        BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application, providerHelper, null);
+        BenchmarkResult result = op.execute(new BenchmarkInputParcel()
+                .setSuites(EnumSet.of(Suite.KEY_LIST))
+                .setRepeats(1), null);
+        Assert.assertTrue("benchmark must succeed", result.success());
+        Assert.assertTrue("leftover keys must be removed before benchmarking",
+                result.getLog().containsType(LogType.MSG_BENCH_KEY_CLEANUP));
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), null, null, null, null);
+        Assert.assertNotNull("key list query must succeed", cursor);
+        try {
+            Assert.assertEquals("leftover benchmark key must be removed", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroRepeatsAreRejected() {
+        new BenchmarkInputParcel().setRepeats(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroImportKeysAreRejected() {
+        new BenchmarkInputParcel().setImportKeyCount(0);
     }
 
 }
@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.operations;
 
+import android.database.Cursor;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -31,6 +33,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
@@ -38,6 +41,9 @@ import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
@@ -201,6 +207,101 @@ public class CertifyOperationTest {
     }
 
 
+    @Test
+    public void testConsolidateAfterSecretKeyChange() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                providerHelper, null, null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds(), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        long[] certifierIds = new long[] { mStaticRing1.getMasterKeyId() };
+
+        providerHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mStaticRing1.getMasterKeyId()), null, null);
+        ConsolidateResult conResult =
+                providerHelper.consolidateKeyRingsCertifiedBy(certifierIds, new ProgressScaler());
+        Assert.assertTrue("consolidation must succeed", conResult.success());
+
+        {
+            CanonicalizedPublicKeyRing ring = providerHelper
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("key must not be verified after certifying secret key was deleted",
+                    Certs.UNVERIFIED, ring.getVerified());
+        }
+
+        providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
+        conResult = providerHelper.consolidateKeyRingsCertifiedBy(certifierIds, new ProgressScaler());
+        Assert.assertTrue("consolidation must succeed", conResult.success());
+
+        {
+            CanonicalizedPublicKeyRing ring = providerHelper
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("key must be verified again after certifying secret key was imported",
+                    Certs.VERIFIED_SECRET, ring.getVerified());
+        }
+    }
+
+    @Test
+    public void testConsolidateWithFailingKeyRing() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                providerHelper, null, null);
+
+        UncachedKeyRing ring3;
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("dork");
+            parcel.setNewUnlock(new ChangeUnlockParcel(new Passphrase()));
+
+            PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+            Assert.assertTrue("test key creation must succeed", result.success());
+            ring3 = result.getRing().extractPublicKeyRing();
+        }
+        providerHelper.savePublicKeyRing(ring3, new ProgressScaler(), null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds(), null));
+        actions.add(new CertifyAction(ring3.getMasterKeyId(),
+                ring3.getPublicKey().getUnorderedUserIds(), null));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        // a keyring without its summary can't be loaded, so it fails to reprocess
+        new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase().delete(
+                Tables.KEY_SUMMARY, KeyRingData.MASTER_KEY_ID + " = " + ring3.getMasterKeyId(), null);
+        providerHelper.invalidateCachedKeyRing(ring3.getMasterKeyId());
+
+        providerHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mStaticRing1.getMasterKeyId()), null, null);
+        ConsolidateResult conResult = providerHelper.consolidateKeyRingsCertifiedBy(
+                new long[] { mStaticRing1.getMasterKeyId() }, new ProgressScaler());
+        Assert.assertTrue("consolidation must succeed despite the failing keyring", conResult.success());
+        Assert.assertTrue("failing keyring must be logged",
+                conResult.getLog().containsType(LogType.MSG_CON_WARN_REPROCESS));
+
+        {
+            CanonicalizedPublicKeyRing ring = providerHelper
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("other keyring must be reprocessed after certifying secret key was deleted",
+                    Certs.UNVERIFIED, ring.getVerified());
+        }
+
+        Cursor cursor = providerHelper.getContentResolver().query(
+                KeyRingData.buildPublicKeyRingUri(ring3.getMasterKeyId()),
+                new String[] { KeyRingData.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue("failing keyring must be kept", cursor.moveToFirst());
+        cursor.close();
+    }
+
     @Test
     public void testCertifySelf() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
@@ -0,0 +1,124 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.security.Security;
+import java.util.ArrayList;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ImportOperationTest {
+
+    static UncachedKeyRing sSymantec, sMailvelope, sCooperFirst, sCooperSecond;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sSymantec = readRingFromResource("/test-keys/symantec_public.asc");
+        sMailvelope = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        // both share the same long key id, so the second one can't be saved after the first
+        sCooperFirst = readRingFromResource(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc");
+        sCooperSecond = readRingFromResource(
+                "/test-keys/cooperpair/A55120427374F3F7AA5F1166DDA252EBB8EBE1AF.asc");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+    }
+
+    @Test
+    public void testBulkImportWithFailingKeyRing() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, providerHelper, null);
+        op.setBulkChunkSize(10);
+        ImportKeyResult result = importKeyRings(op, sSymantec, sCooperFirst, sCooperSecond, sMailvelope);
+
+        Assert.assertEquals("keyrings around the failing one should be imported", 3, result.mNewKeys);
+        Assert.assertEquals("failing keyring should be counted as bad", 1, result.mBadKeys);
+        Assert.assertTrue("import should be partially successful", result.success());
+
+        assertKeyRingExists(providerHelper, sSymantec);
+        assertKeyRingExists(providerHelper, sCooperFirst);
+        assertKeyRingExists(providerHelper, sMailvelope);
+        Assert.assertArrayEquals("failing keyring must not replace the first one",
+                sCooperFirst.getFingerprint(), providerHelper.getCachedPublicKeyRing(
+                        sCooperFirst.getMasterKeyId()).getFingerprint());
+    }
+
+    @Test
+    public void testBulkImportContinuesAfterFailingKeyRing() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        // the failing keyring is the first of the second chunk
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, providerHelper, null);
+        op.setBulkChunkSize(2);
+        ImportKeyResult result = importKeyRings(op, sSymantec, sCooperFirst, sCooperSecond, sMailvelope);
+
+        Assert.assertEquals("keyrings around the failing one should be imported", 3, result.mNewKeys);
+        Assert.assertEquals("failing keyring should be counted as bad", 1, result.mBadKeys);
+
+        assertKeyRingExists(providerHelper, sSymantec);
+        assertKeyRingExists(providerHelper, sCooperFirst);
+        assertKeyRingExists(providerHelper, sMailvelope);
+    }
+
+    @Test
+    public void testBulkImportWithSeveralFailingKeyRings() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        // both failures are in the same chunk, the keyrings before each are committed again
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, providerHelper, null);
+        op.setBulkChunkSize(10);
+        ImportKeyResult result = importKeyRings(op,
+                sSymantec, sCooperFirst, sCooperSecond, sMailvelope, sCooperSecond);
+
+        Assert.assertEquals("keyrings around the failing ones should be imported", 3, result.mNewKeys);
+        Assert.assertEquals("failing keyrings should be counted as bad", 2, result.mBadKeys);
+
+        assertKeyRingExists(providerHelper, sSymantec);
+        assertKeyRingExists(providerHelper, sCooperFirst);
+        assertKeyRingExists(providerHelper, sMailvelope);
+    }
+
+    private static ImportKeyResult importKeyRings(ImportOperation op, UncachedKeyRing... rings)
+            throws Exception {
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        for (UncachedKeyRing ring : rings) {
+            entries.add(new ParcelableKeyRing(ring.getEncoded()));
+        }
+        return op.serialKeyRingImport(entries.iterator(), entries.size(), null, null);
+    }
+
+    private static void assertKeyRingExists(ProviderHelper providerHelper, UncachedKeyRing ring) {
+        try {
+            providerHelper.getCanonicalizedPublicKeyRing(ring.getMasterKeyId());
+        } catch (NotFoundException e) {
+            Assert.fail("keyring " + Long.toHexString(ring.getMasterKeyId()) + " should have been imported");
+        }
+    }
+
+    private static UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(ImportOperationTest.class.getResourceAsStream(name)).next();
+    }
+
+}
@@ -24,6 +24,9 @@ import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Application;
 import android.content.ContentResolver;
@@ -40,20 +43,31 @@ import org.openintents.openpgp.OpenPgpMetadata;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation;
+import org.sufficientlysecure.keychain.operations.InputDataBatchOperation.InputDataResultListener;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataBatchResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import org.sufficientlysecure.keychain.service.InputDataBatchParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -287,6 +301,286 @@ public class InputDataOperationTest {
                 result.getOutputUris().get(0), FAKE_CONTENT_INPUT_URI_1);
     }
 
+    @Test
+    public void testDecryptMimeDecodingSinglePass() throws Exception {
+
+        String mimeContent = "Content-Type: text/plain; charset=utf-8\n" +
+                "Content-Disposition: attachment; filename=data.txt\n" +
+                "\n" +
+                "encrypted message part\n";
+
+        Passphrase passphrase = new Passphrase("swordfish");
+        byte[] ciphertext;
+
+        { // encrypt mime content with a passphrase
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(mimeContent.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setSymmetricPassphrase(passphrase);
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData),
+                    new CryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mock(ContentResolver.class);
+
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenReturn(outStream1);
+        when(mockResolver.openInputStream(FAKE_CONTENT_INPUT_URI_1)).thenReturn(
+                new ByteArrayInputStream(ciphertext));
+
+        Uri fakeOutputUri1 = Uri.parse("content://fake/out/1");
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(fakeOutputUri1);
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        InputDataOperation op = new InputDataOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel();
+        decryptInput.setAllowSymmetricDecryption(true);
+        InputDataParcel input = new InputDataParcel(FAKE_CONTENT_INPUT_URI_1, decryptInput);
+        InputDataResult result = op.execute(input, new CryptoInputParcel(passphrase));
+
+        Assert.assertTrue("decryption and mime parsing must succeed", result.success());
+        Assert.assertNotNull(result.mDecryptVerifyResult);
+
+        ArrayList<Uri> outUris = result.getOutputUris();
+        Assert.assertEquals("must have one output URI", 1, outUris.size());
+        Assert.assertEquals("uri must be the one we provided", fakeOutputUri1, outUris.get(0));
+        Assert.assertEquals("part must have expected content",
+                "encrypted message part\n", new String(outStream1.toByteArray()));
+        Assert.assertEquals("data.txt", result.mMetadata.get(0).getFilename());
+
+        // the plaintext was parsed while decrypting, so no temporary file was needed for it
+        verify(mockResolver, times(1)).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
+        verify(mockResolver, times(1)).openOutputStream(any(Uri.class), eq("w"));
+    }
+
+    @Test
+    public void testDecryptMimeDecodingLargePlaintext() throws Exception {
+
+        StringBuilder mimeContent = new StringBuilder("Content-Type: text/plain; charset=utf-8\n" +
+                "Content-Disposition: attachment; filename=data.txt\n" +
+                "\n");
+        // well over the size which is kept in memory
+        for (int i = 0; i < 32 * 1024; i++) {
+            mimeContent.append("large encrypted message part\n");
+        }
+
+        Passphrase passphrase = new Passphrase("swordfish");
+        byte[] ciphertext;
+
+        { // encrypt mime content with a passphrase
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(mimeContent.toString().getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setSymmetricPassphrase(passphrase);
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData),
+                    new CryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ByteArrayOutputStream();
+            }
+        });
+        when(mockResolver.openInputStream(FAKE_CONTENT_INPUT_URI_1)).thenReturn(
+                new ByteArrayInputStream(ciphertext));
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(Uri.parse("content://fake/out/1"), Uri.parse("content://fake/out/2"));
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        InputDataOperation op = new InputDataOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel();
+        decryptInput.setAllowSymmetricDecryption(true);
+        InputDataParcel input = new InputDataParcel(FAKE_CONTENT_INPUT_URI_1, decryptInput);
+        InputDataResult result = op.execute(input, new CryptoInputParcel(passphrase));
+
+        Assert.assertTrue("decryption and mime parsing must succeed", result.success());
+        Assert.assertEquals("must have one output URI", 1, result.getOutputUris().size());
+
+        // the plaintext stopped being kept once the part was found, so it never went to a file
+        verify(mockResolver, times(1)).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
+        verify(mockResolver, times(0)).delete(any(Uri.class), any(String.class), any(String[].class));
+    }
+
+    @Test
+    public void testMimeDecodingBatch() throws Exception {
+
+        Uri fakeInputUri2 = Uri.parse("content://fake/2");
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ByteArrayOutputStream();
+            }
+        });
+        when(mockResolver.openInputStream(FAKE_CONTENT_INPUT_URI_1)).thenReturn(new ByteArrayInputStream(
+                "Content-Type: text/plain\n\nfirst message\n".getBytes()));
+        when(mockResolver.openInputStream(fakeInputUri2)).thenReturn(new ByteArrayInputStream(
+                "Content-Type: text/plain\n\nsecond message\n".getBytes()));
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(Uri.parse("content://fake/out/1"), Uri.parse("content://fake/out/2"));
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        final HashMap<Uri, InputDataResult> results = new HashMap<>();
+        InputDataBatchOperation op = new InputDataBatchOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null, null, new InputDataResultListener() {
+                    @Override
+                    public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                        results.put(inputUri, result);
+                    }
+
+                    @Override
+                    public void onInputDataProgress(Uri inputUri, String message, int progress, int max) {
+                    }
+                });
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        inputs.add(new InputDataParcel(FAKE_CONTENT_INPUT_URI_1, null));
+        inputs.add(new InputDataParcel(fakeInputUri2, null));
+        InputDataBatchResult result = op.execute(new InputDataBatchParcel(inputs), new CryptoInputParcel());
+
+        Assert.assertTrue("batch must be successful", result.success());
+        Assert.assertFalse("batch must not be cancelled", result.cancelled());
+        Assert.assertEquals("must have received a result for each input", 2, results.size());
+        Assert.assertTrue(results.get(FAKE_CONTENT_INPUT_URI_1).success());
+        Assert.assertTrue(results.get(fakeInputUri2).success());
+        Assert.assertEquals(1, results.get(FAKE_CONTENT_INPUT_URI_1).getOutputUris().size());
+        Assert.assertEquals(1, results.get(fakeInputUri2).getOutputUris().size());
+    }
+
+    @Test
+    public void testDecryptBatchPending() throws Exception {
+
+        Uri fakeInputUri2 = Uri.parse("content://fake/2");
+        byte[] ciphertext;
+
+        { // encrypt mime content with a passphrase
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(
+                    "Content-Type: text/plain\n\nencrypted message\n".getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setSymmetricPassphrase(new Passphrase("swordfish"));
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData),
+                    new CryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ByteArrayOutputStream();
+            }
+        });
+        when(mockResolver.openInputStream(FAKE_CONTENT_INPUT_URI_1)).thenReturn(
+                new ByteArrayInputStream(ciphertext));
+        when(mockResolver.openInputStream(fakeInputUri2)).thenReturn(new ByteArrayInputStream(
+                "Content-Type: text/plain\n\nsecond message\n".getBytes()));
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(Uri.parse("content://fake/out/1"), Uri.parse("content://fake/out/2"));
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        final HashMap<Uri, InputDataResult> results = new HashMap<>();
+        InputDataBatchOperation op = new InputDataBatchOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null, null, new InputDataResultListener() {
+                    @Override
+                    public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                        results.put(inputUri, result);
+                    }
+
+                    @Override
+                    public void onInputDataProgress(Uri inputUri, String message, int progress, int max) {
+                    }
+                });
+
+        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel();
+        decryptInput.setAllowSymmetricDecryption(true);
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        inputs.add(new InputDataParcel(FAKE_CONTENT_INPUT_URI_1, decryptInput));
+        inputs.add(new InputDataParcel(fakeInputUri2, null));
+        InputDataBatchResult result = op.execute(new InputDataBatchParcel(inputs), new CryptoInputParcel());
+
+        Assert.assertTrue("batch must be pending", result.isPending());
+        Assert.assertEquals("batch must ask for a symmetric passphrase",
+                RequiredInputType.PASSPHRASE_SYMMETRIC, result.getRequiredInputParcel().mType);
+        Assert.assertEquals("must have received a result for each input", 2, results.size());
+        Assert.assertTrue("pending input must be delivered as pending",
+                results.get(FAKE_CONTENT_INPUT_URI_1).isPending());
+        Assert.assertEquals(RequiredInputType.PASSPHRASE_SYMMETRIC,
+                results.get(FAKE_CONTENT_INPUT_URI_1).getRequiredInputParcel().mType);
+        Assert.assertTrue("other input must not be affected", results.get(fakeInputUri2).success());
+    }
+
+    @Test
+    public void testMimeDecodingBatchCancelled() throws Exception {
+
+        final HashMap<Uri, InputDataResult> results = new HashMap<>();
+        InputDataBatchOperation op = new InputDataBatchOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, new AtomicBoolean(true),
+                new InputDataResultListener() {
+                    @Override
+                    public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                        results.put(inputUri, result);
+                    }
+
+                    @Override
+                    public void onInputDataProgress(Uri inputUri, String message, int progress, int max) {
+                    }
+                });
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        inputs.add(new InputDataParcel(FAKE_CONTENT_INPUT_URI_1, null));
+        inputs.add(new InputDataParcel(Uri.parse("content://fake/2"), null));
+        InputDataBatchResult result = op.execute(new InputDataBatchParcel(inputs), new CryptoInputParcel());
+
+        Assert.assertTrue("batch must be cancelled", result.cancelled());
+        Assert.assertTrue("no input must have been processed", results.isEmpty());
+    }
+
     private InputDataResult runSimpleDataInputOperation(byte[] mimeContentBytes) throws FileNotFoundException {
         ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
         ByteArrayOutputStream outStream2 = new ByteArrayOutputStream();
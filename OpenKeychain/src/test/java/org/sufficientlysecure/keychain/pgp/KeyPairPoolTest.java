@@ -0,0 +1,83 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class KeyPairPoolTest {
+
+    static KeyPair sKeyPair;
+
+    KeyPairPool mPool;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        keyGen.initialize(256);
+        sKeyPair = keyGen.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Preferences.getPreferences(RuntimeEnvironment.application).setExperimentalPregenerateKeys(true);
+        // the device isn't charging, so the pool is never filled in the background
+        mPool = new KeyPairPool(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testTake() throws Exception {
+        mPool.add(Algorithm.ECDSA, 0, Curve.NIST_P256, sKeyPair);
+
+        Assert.assertNull("key pair with other parameters must not be handed out",
+                mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P384));
+        Assert.assertNull("key pair of another algorithm must not be handed out",
+                mPool.take(Algorithm.ECDH, 0, Curve.NIST_P256));
+        Assert.assertSame("pooled key pair must be handed out",
+                sKeyPair, mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P256));
+        Assert.assertNull("key pair must only be handed out once",
+                mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P256));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        mPool.add(Algorithm.ECDSA, 0, Curve.NIST_P256, sKeyPair);
+        mPool.clear();
+
+        Assert.assertNull("key pair must not be handed out after clearing",
+                mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P256));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        mPool.add(Algorithm.ECDSA, 0, Curve.NIST_P256, sKeyPair);
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setExperimentalPregenerateKeys(false);
+        Assert.assertNull("key pair must not be handed out while disabled",
+                mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P256));
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setExperimentalPregenerateKeys(true);
+        Assert.assertNull("pool must have been cleared when it was disabled",
+                mPool.take(Algorithm.ECDSA, 0, Curve.NIST_P256));
+    }
+
+}
@@ -24,9 +24,14 @@ import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+
 import org.apache.tools.ant.util.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
@@ -48,10 +53,12 @@ import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPKeyFlags;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
@@ -69,6 +76,9 @@ import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import static org.hamcrest.core.AnyOf.anyOf;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
 
 @RunWith(RobolectricGradleTestRunner.class)
@@ -406,6 +416,26 @@ public class PgpEncryptDecryptTest {
 
         }
 
+        { // verification from input bytes, which are read twice instead of buffered, should succeed
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(ciphertext);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel());
+
+            Assert.assertTrue("verification must succeed", result.success());
+
+            Assert.assertTrue("verification text should equal plaintext (ignoring newlines)",
+                    new String(result.getOutputBytes()).replace(StringUtils.LINE_SEP, "")
+                            .equals(plaintext.replace("\r", "").replace("\n", "")));
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+
+            OpenPgpMetadata metadata = result.getDecryptionMetadata();
+            Assert.assertEquals("filesize must be correct",
+                    result.getOutputBytes().length, metadata.getOriginalSize());
+
+        }
+
     }
 
     @Test
@@ -934,6 +964,71 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testMultiFileSignEncrypt() throws Exception {
+
+        int numFiles = 3;
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        ArrayList<Uri> outputUris = new ArrayList<>();
+        HashMap<Uri, ByteArrayOutputStream> outStreams = new HashMap<>();
+        for (int i = 0; i < numFiles; i++) {
+            Uri inputUri = Uri.parse("content://fake/in/" + i);
+            Uri outputUri = Uri.parse("content://fake/out/" + i);
+            when(mockResolver.openInputStream(inputUri)).thenReturn(
+                    new ByteArrayInputStream((plaintext + i).getBytes()));
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            when(mockResolver.openOutputStream(outputUri)).thenReturn(outStream);
+            inputUris.add(inputUri);
+            outputUris.add(outputUri);
+            outStreams.put(outputUri, outStream);
+        }
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        { // sign and encrypt all files at once, with a single passphrase
+            SignEncryptOperation op = new SignEncryptOperation(spyApplication,
+                    new ProviderHelper(RuntimeEnvironment.application), null, null);
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing2.getMasterKeyId() });
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            SignEncryptParcel input = new SignEncryptParcel(pgpData);
+            input.addInputUris(inputUris);
+            input.addOutputUris(outputUris);
+
+            SignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date(), mKeyPhrase1));
+            Assert.assertTrue("signing and encryption of all files must succeed", result.success());
+            Assert.assertEquals("must have a result for each file", numFiles, result.getResults().size());
+        }
+
+        // output must be in order of the inputs
+        for (int i = 0; i < numFiles; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(outStreams.get(outputUris.get(i)).toByteArray());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase2, mStaticRing2.getMasterKeyId(), null);
+            DecryptVerifyResult result = op.execute(
+                    new PgpDecryptVerifyInputParcel(), new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    (plaintext + i).getBytes(), out.toByteArray());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
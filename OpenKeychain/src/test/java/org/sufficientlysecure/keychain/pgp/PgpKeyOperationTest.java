@@ -63,13 +63,16 @@ import org.sufficientlysecure.keychain.util.TestingUtils;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.KeyPair;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
@@ -279,6 +282,65 @@ public class PgpKeyOperationTest {
 
     }
 
+    @Test
+    public void testCreateWithConcurrentSubkeys() throws Exception {
+        final List<Thread> takeThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        op.setKeyPairSource(new PgpKeyOperation.KeyPairSource() {
+            @Override
+            public KeyPair take(Algorithm algorithm, Integer keySize, SaveKeyringParcel.Curve curve) {
+                takeThreads.add(Thread.currentThread());
+                return null;
+            }
+        });
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.AUTHENTICATION, 0L));
+        parcel.mAddUserIds.add("rarity");
+        parcel.setNewUnlock(new ChangeUnlockParcel(passphrase));
+        UncachedKeyRing ring = assertCreateSuccess("creating ring with concurrent subkeys must succeed", parcel);
+
+        Assert.assertEquals("a key pair must be requested for every key", 4, takeThreads.size());
+        Assert.assertEquals("only the master key must be generated on the calling thread",
+                1, Collections.frequency(takeThreads, Thread.currentThread()));
+
+        List<UncachedPublicKey> subkeys = KeyringTestingHelper.itToList(ring.getPublicKeys());
+        Assert.assertEquals("number of keys must be four", 4, subkeys.size());
+        Assert.assertEquals("first (master) key can certify",
+                KeyFlags.CERTIFY_OTHER, (long) subkeys.get(0).getKeyUsage());
+        Assert.assertEquals("second key can sign",
+                KeyFlags.SIGN_DATA, (long) subkeys.get(1).getKeyUsage());
+        Assert.assertEquals("third key can encrypt",
+                KeyFlags.ENCRYPT_COMMS, (long) subkeys.get(2).getKeyUsage());
+        Assert.assertEquals("fourth key can authenticate",
+                KeyFlags.AUTHENTICATION, (long) subkeys.get(3).getKeyUsage());
+    }
+
+    @Test
+    public void testCreateCancelled() throws Exception {
+        PgpKeyOperation op = new PgpKeyOperation(null, new AtomicBoolean(true));
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("applejack");
+        parcel.setNewUnlock(new ChangeUnlockParcel(passphrase));
+
+        PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+        Assert.assertTrue("creating a cancelled ring must be cancelled", result.cancelled());
+        Assert.assertNull("creating a cancelled ring must not return a ring", result.getRing());
+        Assert.assertTrue("creating a cancelled ring must log the cancellation",
+                result.getLog().containsType(LogType.MSG_OPERATION_CANCELLED));
+    }
+
     @Test
     public void testBadKeyModification() throws Exception {
 
@@ -0,0 +1,34 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class S2kCalibrationTest {
+
+    @Test
+    public void testHashedBytes() throws Exception {
+        assertEquals("0x60 should hash 64 KiB", 65536L, S2kCalibration.getHashedBytes(0x60));
+        assertEquals("0x90 should hash 512 KiB", 524288L, S2kCalibration.getHashedBytes(0x90));
+        assertEquals("0xff should hash 62 MiB", 65011712L, S2kCalibration.getHashedBytes(0xff));
+    }
+
+    @Test
+    public void testCountForBudget() throws Exception {
+        // 524288 bytes in 100ms
+        assertEquals("exact budget should yield matching count",
+                0x90, S2kCalibration.getS2kCountForBudget(5243, 100));
+        assertEquals("slow device should not go below minimum count",
+                S2kCalibration.MIN_S2K_COUNT, S2kCalibration.getS2kCountForBudget(1, 100));
+        assertEquals("fast device should not go above maximum count",
+                S2kCalibration.MAX_S2K_COUNT, S2kCalibration.getS2kCountForBudget(Integer.MAX_VALUE, 100));
+    }
+
+}
@@ -18,6 +18,9 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+import android.net.Uri;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -39,11 +42,17 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +258,191 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testKeyRingCacheInvalidation() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        CanonicalizedKeyRingCache cache = ProviderHelper.getKeyRingCache(RuntimeEnvironment.application);
+
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        CanonicalizedPublicKeyRing first = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        int hits = cache.getHitCount();
+        CanonicalizedPublicKeyRing second = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("second lookup should be served from cache", first, second);
+        Assert.assertEquals("second lookup should count as cache hit", hits + 1, cache.getHitCount());
+
+        result = mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        Assert.assertTrue("secret keyring import should succeed", result.success());
+
+        CanonicalizedPublicKeyRing third = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("saving a keyring should invalidate its cache entry", first, third);
+        Assert.assertNotNull("secret keyring should be available after save",
+                mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId));
+
+    }
+
+    @Test public void testFindByUserIdAndEmail() throws Exception {
+
+        UncachedKeyRing symantec = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing mailvelope = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        mProviderHelper.savePublicKeyRing(symantec);
+        mProviderHelper.savePublicKeyRing(mailvelope);
+
+        Assert.assertEquals("prefix of name should match both keys",
+                2, findKeyRings(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("tes")).size());
+        Assert.assertEquals("prefix of email should match only one key",
+                Arrays.asList(mailvelope.getMasterKeyId()),
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("mailv")));
+        Assert.assertEquals("all words of a query must match",
+                Arrays.asList(mailvelope.getMasterKeyId()),
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("test somewhere-gm")));
+        Assert.assertEquals("comma separated queries should match any",
+                2, findKeyRings(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("blah, mailvelope")).size());
+        Assert.assertTrue("non-prefix substrings should not match",
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("ahblah")).isEmpty());
+
+        Assert.assertEquals("email lookup should match",
+                Arrays.asList(symantec.getMasterKeyId()),
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByEmailUri("test@blahblah.de")));
+        Assert.assertEquals("email lookup should be case insensitive",
+                Arrays.asList(symantec.getMasterKeyId()),
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByEmailUri("TEST@blahblah.DE")));
+        Assert.assertTrue("email lookup should not match prefixes",
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByEmailUri("test@blahblah")).isEmpty());
+
+        // the index must follow deletions
+        mProviderHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(symantec.getMasterKeyId()), null, null);
+        Assert.assertTrue("deleted key should not be found",
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindByEmailUri("test@blahblah.de")).isEmpty());
+
+    }
+
+    @Test public void testFindKeyRingsByEmails() throws Exception {
+
+        UncachedKeyRing symantec = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing mailvelope = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        mProviderHelper.savePublicKeyRing(symantec);
+        mProviderHelper.savePublicKeyRing(mailvelope);
+
+        ProviderHelper.KeyRingsByEmailResult result = mProviderHelper.findKeyRingsByEmails(Arrays.asList(
+                "TEST@blahblah.de", "mailvelope@somewhere-gmail.com", "nobody@example.com"));
+
+        Assert.assertEquals("both keys should be found",
+                new HashSet<>(Arrays.asList(symantec.getMasterKeyId(), mailvelope.getMasterKeyId())),
+                result.mKeyIds);
+        Assert.assertEquals("unknown email should be reported missing",
+                Arrays.asList("nobody@example.com"), result.mMissingEmails);
+        Assert.assertTrue("there should be no duplicates", result.mDuplicateEmails.isEmpty());
+
+    }
+
+    @Test public void testFindKeyRingsUpdateDue() throws Exception {
+
+        UncachedKeyRing symantec = readRingFromResource("/test-keys/symantec_public.asc");
+        UncachedKeyRing mailvelope = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        mProviderHelper.savePublicKeyRing(symantec);
+        mProviderHelper.savePublicKeyRing(mailvelope);
+
+        Assert.assertEquals("keys never updated should be due",
+                2, findKeyRings(KeyRings.buildUnifiedKeyRingsFindUpdateDueUri(1000)).size());
+
+        mProviderHelper.renewKeyLastUpdatedTime(symantec.getMasterKeyId(), 2000, TimeUnit.SECONDS);
+        mProviderHelper.renewKeyLastUpdatedTime(mailvelope.getMasterKeyId(), 500, TimeUnit.SECONDS);
+
+        Assert.assertEquals("only the key updated before the limit should be due",
+                Arrays.asList(mailvelope.getMasterKeyId()),
+                findKeyRings(KeyRings.buildUnifiedKeyRingsFindUpdateDueUri(1000)));
+        Assert.assertEquals("all keys updated before the limit should be due",
+                2, findKeyRings(KeyRings.buildUnifiedKeyRingsFindUpdateDueUri(3000)).size());
+
+    }
+
+    @Test public void testKeyUpdateState() throws Exception {
+
+        UncachedKeyRing symantec = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = symantec.getMasterKeyId();
+        mProviderHelper.savePublicKeyRing(symantec);
+
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 1000, TimeUnit.SECONDS);
+        Assert.assertTrue("keys updated without content hash should have no state",
+                mProviderHelper.getKeyUpdateStates().isEmpty());
+
+        byte[] contentHash = new byte[] { 1, 2, 3 };
+        mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, 2000, TimeUnit.SECONDS,
+                new ProviderHelper.KeyUpdateState(contentHash, "\"etag\"", null));
+
+        // saving the keyring again must keep its update state
+        mProviderHelper.savePublicKeyRing(symantec);
+
+        ProviderHelper.KeyUpdateState state = mProviderHelper.getKeyUpdateStates().get(masterKeyId);
+        Assert.assertNotNull("state should be stored", state);
+        Assert.assertArrayEquals("content hash should be stored", contentHash, state.mContentHash);
+        Assert.assertEquals("etag should be stored", "\"etag\"", state.mETag);
+        Assert.assertNull("missing last modified should be stored as null", state.mLastModified);
+
+    }
+
+    @Test public void testKeySummary() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+        String[] projection = new String[] {
+                KeyRings.USER_ID, KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ENCRYPT, KeyRings.HAS_DUPLICATE_USER_ID
+        };
+
+        mProviderHelper.savePublicKeyRing(pubkey);
+        long encryptId = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId).getEncryptId();
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue("saved keyring should have a summary", cursor.moveToFirst());
+        Assert.assertEquals("summary should contain primary user id", "Test <test@blahblah.de>", cursor.getString(0));
+        Assert.assertEquals("public keyring should have no secret", 0, cursor.getInt(1));
+        Assert.assertEquals("summary should contain encryption subkey", encryptId, cursor.getLong(2));
+        Assert.assertEquals("single keyring should have no duplicate user id", 0, cursor.getInt(3));
+        cursor.close();
+
+        mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue("saved keyring should have a summary", cursor.moveToFirst());
+        Assert.assertEquals("summary should be updated after secret keyring import", 1, cursor.getInt(1));
+        cursor.close();
+
+        // saving an update replaces the keyring along with its summary in the same batch
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("update of keyring should succeed", result.updated());
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        Assert.assertNotNull(cursor);
+        Assert.assertTrue("updated keyring should have a summary", cursor.moveToFirst());
+        Assert.assertEquals("summary should keep the secret keyring", 1, cursor.getInt(1));
+        cursor.close();
+
+    }
+
+    List<Long> findKeyRings(Uri uri) {
+        ArrayList<Long> result = new ArrayList<>();
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                uri, new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        while (cursor.moveToNext()) {
+            result.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return result;
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
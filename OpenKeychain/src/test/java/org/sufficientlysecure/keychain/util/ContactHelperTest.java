@@ -0,0 +1,215 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+
+import android.app.Application;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.ContactsContract;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class ContactHelperTest {
+
+    static final long KEY_WITH_PHOTO = 0x1111L;
+    static final long KEY_WITHOUT_PHOTO = 0x2222L;
+    static final long CONTACT_WITH_PHOTO = 11;
+    static final long CONTACT_WITHOUT_PHOTO = 22;
+
+    ContentResolver mMockResolver;
+    Application mSpyApplication;
+
+    @Before
+    public void setUp() throws Exception {
+        ContactHelper.clearPhotoCache();
+
+        mMockResolver = mock(ContentResolver.class);
+
+        mSpyApplication = spy(RuntimeEnvironment.application);
+        when(mSpyApplication.getContentResolver()).thenReturn(mMockResolver);
+        doReturn(PackageManager.PERMISSION_GRANTED).when(mSpyApplication)
+                .checkPermission(anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testPhotoCacheHit() throws Exception {
+        stubPhotoQueries();
+        ContactHelper contactHelper = new ContactHelper(mSpyApplication);
+
+        Bitmap photo = contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 48);
+        Assert.assertNotNull("photo must be loaded", photo);
+
+        Assert.assertSame("photo must be returned from the cache", photo,
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 48));
+        Assert.assertSame("photo must be returned from the cache for a smaller size", photo,
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 24));
+        verifyRawContactQueries(KEY_WITH_PHOTO, 1);
+    }
+
+    @Test
+    public void testPhotoCacheMiss() throws Exception {
+        stubPhotoQueries();
+        ContactHelper contactHelper = new ContactHelper(mSpyApplication);
+
+        contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 48);
+        Assert.assertNotNull("photo must be loaded again for a larger size",
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 96));
+        verifyRawContactQueries(KEY_WITH_PHOTO, 2);
+
+        ContactHelper.clearPhotoCache();
+        Assert.assertNotNull("photo must be loaded again after clearing the cache",
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITH_PHOTO, 96));
+        verifyRawContactQueries(KEY_WITH_PHOTO, 3);
+    }
+
+    @Test
+    public void testPhotoCacheMissWithoutPhoto() throws Exception {
+        stubPhotoQueries();
+        ContactHelper contactHelper = new ContactHelper(mSpyApplication);
+
+        Assert.assertNull("key without photo must have no photo",
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITHOUT_PHOTO, 48));
+        Assert.assertNull("key without photo must have no photo",
+                contactHelper.getCachedPhotoByMasterKeyId(KEY_WITHOUT_PHOTO, 96));
+        // the missing photo is cached as well, even for a larger size
+        verifyRawContactQueries(KEY_WITHOUT_PHOTO, 1);
+    }
+
+    @Test
+    public void testContactsBatchesDontSplitKeys() throws Exception {
+        final int keyCount = 100;
+        final int emailsPerKey = 3;
+        // raw contact, key, display name and email addresses
+        final int opsPerKey = 3 + emailsPerKey;
+
+        when(mMockResolver.query(any(Uri.class), any(String[].class), any(String.class),
+                any(String[].class), any(String.class))).thenAnswer(new Answer<Cursor>() {
+            @Override
+            public Cursor answer(InvocationOnMock invocation) {
+                Uri uri = (Uri) invocation.getArguments()[0];
+                String selection = (String) invocation.getArguments()[2];
+                if (KeyRings.buildUnifiedKeyRingsUri().equals(uri)) {
+                    MatrixCursor cursor = new MatrixCursor(ContactHelper.KEYS_TO_CONTACT_PROJECTION);
+                    // only public keys, there are no secret ones
+                    if (!selection.endsWith("!=0")) {
+                        for (long masterKeyId = 1; masterKeyId <= keyCount; masterKeyId++) {
+                            cursor.addRow(new Object[] {
+                                    masterKeyId, "Key " + masterKeyId + " <key@example.com>", 0, 0, 1, 0, 0 });
+                        }
+                    }
+                    return cursor;
+                }
+                if (UserPackets.buildUserIdsUri().equals(uri)) {
+                    MatrixCursor cursor = new MatrixCursor(
+                            new String[] { UserPackets.MASTER_KEY_ID, UserPackets.USER_ID });
+                    for (long masterKeyId = 1; masterKeyId <= keyCount; masterKeyId++) {
+                        for (int i = 0; i < emailsPerKey; i++) {
+                            cursor.addRow(new Object[] {
+                                    masterKeyId, "Key " + masterKeyId + " <key" + i + "@example.com>" });
+                        }
+                    }
+                    return cursor;
+                }
+                // no existing raw contacts
+                return new MatrixCursor(new String[] { ContactsContract.RawContacts.SOURCE_ID,
+                        ContactsContract.RawContacts._ID, ContactsContract.RawContacts.SYNC1 });
+            }
+        });
+
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        when(mMockResolver.applyBatch(eq(ContactsContract.AUTHORITY), any(ArrayList.class))).thenAnswer(
+                new Answer<ContentProviderResult[]>() {
+                    @Override
+                    public ContentProviderResult[] answer(InvocationOnMock invocation) {
+                        batchSizes.add(((ArrayList<?>) invocation.getArguments()[1]).size());
+                        return new ContentProviderResult[0];
+                    }
+                });
+
+        new ContactHelper(mSpyApplication).writeKeysToContacts();
+
+        int totalOps = 0;
+        for (int batchSize : batchSizes) {
+            Assert.assertTrue("batch must not exceed the maximum size",
+                    batchSize <= ContactHelper.MAX_BATCH_SIZE);
+            Assert.assertEquals("batch must only contain complete keys", 0, batchSize % opsPerKey);
+            totalOps += batchSize;
+        }
+        Assert.assertEquals("all keys must be written", keyCount * opsPerKey, totalOps);
+        Assert.assertTrue("keys must be written in more than one batch", batchSizes.size() > 1);
+    }
+
+    private void stubPhotoQueries() {
+        when(mMockResolver.query(any(Uri.class), any(String[].class), any(String.class),
+                any(String[].class), any(String.class))).thenAnswer(new Answer<Cursor>() {
+            @Override
+            public Cursor answer(InvocationOnMock invocation) {
+                Uri uri = (Uri) invocation.getArguments()[0];
+                String[] selectionArgs = (String[]) invocation.getArguments()[3];
+                if (ContactsContract.RawContacts.CONTENT_URI.equals(uri)) {
+                    return findRawContact(Long.parseLong(selectionArgs[1]));
+                }
+                return findPhoto(uri);
+            }
+        });
+    }
+
+    private void verifyRawContactQueries(long masterKeyId, int count) {
+        verify(mMockResolver, times(count)).query(eq(ContactsContract.RawContacts.CONTENT_URI),
+                any(String[].class), any(String.class),
+                eq(new String[] { Constants.ACCOUNT_TYPE, Long.toString(masterKeyId), "0" }),
+                any(String.class));
+    }
+
+    private static Cursor findRawContact(long masterKeyId) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { ContactsContract.RawContacts.CONTACT_ID });
+        if (masterKeyId == KEY_WITH_PHOTO) {
+            cursor.addRow(new Object[] { CONTACT_WITH_PHOTO });
+        } else if (masterKeyId == KEY_WITHOUT_PHOTO) {
+            cursor.addRow(new Object[] { CONTACT_WITHOUT_PHOTO });
+        }
+        return cursor;
+    }
+
+    /** Answers the thumbnail query of ContactsContract.Contacts.openContactPhotoInputStream. */
+    private static Cursor findPhoto(Uri uri) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { ContactsContract.Contacts.Photo.PHOTO });
+        if (uri.getPathSegments().contains(Long.toString(CONTACT_WITH_PHOTO))) {
+            cursor.addRow(new Object[] { new byte[] { 1, 2, 3, 4 } });
+        }
+        return cursor;
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+public class PassphraseTest {
+
+    static final int ALGO = SymmetricKeyAlgorithmTags.AES_256;
+    static final S2K S2K_PARAMS = new S2K(HashAlgorithmTags.SHA256,
+            new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 0x60);
+
+    @Test
+    public void testAddCachedSessionKeys() throws Exception {
+        byte[] sessionKey = new byte[] { 42, 23, 5 };
+
+        Passphrase cached = new Passphrase("swordfish");
+        Passphrase derived = new Passphrase("swordfish");
+        assertFalse("fresh passphrase should not have new session keys", derived.hasNewSessionKeys());
+
+        derived.addCachedSessionKeyForParameters(ALGO, S2K_PARAMS, sessionKey);
+        assertTrue("added session key should be marked as new", derived.hasNewSessionKeys());
+
+        cached.addCachedSessionKeys(derived);
+        byte[] copiedKey = cached.getCachedSessionKeyForParameters(ALGO, S2K_PARAMS);
+        assertArrayEquals("session key should be copied over", sessionKey, copiedKey);
+        assertNotSame("session key should be copied, not shared", sessionKey, copiedKey);
+        assertFalse("copied session keys should not be marked as new", cached.hasNewSessionKeys());
+
+        derived.removeFromMemory();
+        assertArrayEquals("wiping the source must not affect the copy",
+                new byte[] { 42, 23, 5 }, cached.getCachedSessionKeyForParameters(ALGO, S2K_PARAMS));
+    }
+
+    @Test
+    public void testAddCachedSessionKeysDifferentPassphrase() throws Exception {
+        Passphrase cached = new Passphrase("swordfish");
+        Passphrase derived = new Passphrase("hunter2");
+        derived.addCachedSessionKeyForParameters(ALGO, S2K_PARAMS, new byte[] { 42, 23, 5 });
+
+        cached.addCachedSessionKeys(derived);
+        assertNull("session keys of a different passphrase must not be copied",
+                cached.getCachedSessionKeyForParameters(ALGO, S2K_PARAMS));
+    }
+
+}